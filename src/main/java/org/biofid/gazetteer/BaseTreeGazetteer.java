@@ -1,21 +1,21 @@
 package org.biofid.gazetteer;
 
 import com.google.common.base.Charsets;
-import com.google.common.base.Strings;
-import com.google.common.collect.Lists;
 import de.tudarmstadt.ukp.dkpro.core.api.ner.type.NamedEntity;
 import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Lemma;
 import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Sentence;
 import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.uima.UIMAException;
 import org.apache.uima.UimaContext;
 import org.apache.uima.analysis_engine.AnalysisEngine;
 import org.apache.uima.analysis_engine.AnalysisEngineProcessException;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.FSIndexRepository;
 import org.apache.uima.cas.Type;
 import org.apache.uima.cas.TypeSystem;
+import org.apache.uima.cas.text.AnnotationIndex;
 import org.apache.uima.fit.descriptor.ConfigurationParameter;
 import org.apache.uima.fit.factory.AnalysisEngineFactory;
 import org.apache.uima.fit.factory.JCasFactory;
@@ -25,23 +25,52 @@ import org.apache.uima.jcas.JCas;
 import org.apache.uima.jcas.tcas.Annotation;
 import org.apache.uima.resource.ResourceInitializationException;
 import org.biofid.gazetteer.models.ITreeGazetteerModel;
+import org.biofid.gazetteer.models.ExternalModelCompiler;
+import org.biofid.gazetteer.models.MappedTreeGazetteerModel;
+import org.biofid.gazetteer.models.ModelCache;
+import org.biofid.gazetteer.models.StringGazetteerModel;
 import org.biofid.gazetteer.models.TreeGazetteerModel;
-import org.biofid.gazetteer.tree.ITreeNode;
+import org.biofid.gazetteer.tree.AbbreviationIndex;
+import org.biofid.gazetteer.tree.AhoCorasickAutomaton;
+import org.biofid.gazetteer.tree.ArrayTreeNode;
+import org.biofid.gazetteer.tree.CharacterTransducer;
+import org.biofid.gazetteer.tree.IFrozenTreeNode;
+import org.biofid.gazetteer.tree.ITokenVocabulary;
+import org.biofid.gazetteer.tree.MatchStartFilter;
+import org.biofid.gazetteer.tree.PerfectHashChildIndex;
+import org.biofid.gazetteer.tree.RadixTreeNode;
+import org.biofid.gazetteer.tree.SkipMatcher;
+import org.biofid.gazetteer.tree.StringTreeNode;
 import org.biofid.gazetteer.util.UnicodeRegexSegmenter;
 import org.dkpro.core.api.parameter.ComponentParameters;
 import org.dkpro.core.api.resources.MappingProvider;
 import org.dkpro.core.api.segmentation.SegmenterBase;
 
+import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
-import java.net.URI;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.stream.IntStream;
 
 public abstract class BaseTreeGazetteer extends SegmenterBase {
 	public static final String PARAM_ADD_ABBREVIATED_TAXA = "pAddAbbreviatedTaxa";
+	/**
+	 * A regular expression matching a single character, at which matches may begin and end when tagging with
+	 * {@link #PARAM_USE_CHARACTER_MATCHING}. Default: {@code [\s\p{P}]}.
+	 */
+	public static final String PARAM_BOUNDARY_CHARACTER_CLASS = "pBoundaryCharacterClass";
+	/**
+	 * Integer, if greater than zero, compile the model out of core with {@link ExternalModelCompiler}, spilling the
+	 * skip-grams to disk whenever they exceed this many megabytes of heap. The model is compiled to
+	 * {@link #PARAM_MODEL_LOCATION} or into the gazetteer cache folder, even if {@link #PARAM_USE_MODEL_CACHE} is
+	 * false. Default: 0, build the model in memory.
+	 */
+	public static final String PARAM_BUILD_HEAP_BUDGET = "pBuildHeapBudget";
 	/**
 	 * File location for a single text file of words to be filtered out.
 	 */
@@ -62,6 +91,43 @@ public abstract class BaseTreeGazetteer extends SegmenterBase {
 	 * Minimum word count to create skips.
 	 */
 	public static final String PARAM_MIN_WORD_COUNT = "pMinWordCount";
+	/**
+	 * Optional location of a compiled model file. If the file exists, the model is opened from it through a read-only
+	 * memory mapping and the sources are ignored, but the other model parameters must be the ones the model was built
+	 * with. Otherwise, the model is built and compiled to this location first. Processes on the same host opening the
+	 * same file share a single copy of the model.
+	 */
+	public static final String PARAM_MODEL_LOCATION = "pModelLocation";
+	/**
+	 * Boolean, if true and no {@link #PARAM_MODEL_LOCATION} is given, compile the model into the gazetteer cache
+	 * folder and open it from there on later runs with the same sources and parameters, see {@link ModelCache}. Models
+	 * of other sources or parameters are not removed from the cache folder. Default: false.
+	 */
+	public static final String PARAM_USE_MODEL_CACHE = "pUseModelCache";
+	/**
+	 * Boolean, if true and tagging with {@link #PARAM_USE_AHO_CORASICK}, annotate all occurrences of all skip-grams,
+	 * including those contained in longer matches. Otherwise, only non-overlapping matches are annotated.
+	 * Default: false.
+	 */
+	public static final String PARAM_OVERLAPPING_MATCHES = "pOverlappingMatches";
+	/**
+	 * Integer, if greater than 0, tag the entire document text in chunks of this many tokens in parallel. The chunks
+	 * are reconciled to exactly the matches of a serial scan. Has no effect on {@link #PARAM_USE_AHO_CORASICK},
+	 * {@link #PARAM_USE_CHARACTER_MATCHING} and {@link #PARAM_USE_SENTECE_LEVEL_TAGGING}. Default: 4096.
+	 */
+	public static final String PARAM_PARALLEL_CHUNK_SIZE = "pParallelChunkSize";
+	/**
+	 * Integer, documents with fewer tokens are tagged serially, since forking would cost more than it saves. Larger
+	 * documents are tagged in parallel, see {@link #PARAM_PARALLEL_CHUNK_SIZE}, {@link #PARAM_USE_SENTECE_LEVEL_TAGGING}
+	 * and {@link #PARAM_TAGGING_THREADS}. Default: 2048.
+	 */
+	public static final String PARAM_PARALLEL_MIN_TOKENS = "pParallelMinTokens";
+	/**
+	 * Integer, if greater than 0, build a minimal perfect hash function over the children of every tree node with at
+	 * least this many children, see {@link PerfectHashChildIndex}. Has no effect on
+	 * {@link #PARAM_USE_RADIX_TREE} and {@link #PARAM_USE_CHARACTER_MATCHING}. Default: 0.
+	 */
+	public static final String PARAM_PERFECT_HASH_FAN_OUT = "pPerfectHashFanOut";
 	public static final String PARAM_RETOKENIZE = "pRetokenize";
 	/**
 	 * Location from which the taxon data is read.
@@ -75,6 +141,25 @@ public abstract class BaseTreeGazetteer extends SegmenterBase {
 	 * The pattern for the next-word-search after passing a single token/charater
 	 */
 	public static final String PARAM_TOKEN_BOUNDARY_REGEX = "tokenBoundaryRegex";
+	/**
+	 * Integer, if greater than 0, tag documents in parallel on a dedicated pool of this many threads, owned by the
+	 * engine and shared by all its documents. Otherwise, use the common {@link ForkJoinPool}, which is shared with all
+	 * other parallel streams of the JVM. Default: 0.
+	 */
+	public static final String PARAM_TAGGING_THREADS = "pTaggingThreads";
+	/**
+	 * Boolean, if true, find matches with an Aho-Corasick automaton in a single pass over the tokens instead of
+	 * traversing the tree from every token. Non-overlapping matches are selected leftmost-longest, see
+	 * {@link AhoCorasickAutomaton#findAll(int[], int, int, boolean, AhoCorasickAutomaton.MatchHandler)}.
+	 * Default: false.
+	 */
+	public static final String PARAM_USE_AHO_CORASICK = "pUseAhoCorasick";
+	/**
+	 * Boolean, if true, match skip-grams character by character in the document text instead of matching
+	 * {@link Token Tokens} or {@link Lemma Lemmata}. No tokenization is required, matches begin and end at characters
+	 * matching {@link #PARAM_BOUNDARY_CHARACTER_CLASS}. All other tagging parameters are ignored. Default: false.
+	 */
+	public static final String PARAM_USE_CHARACTER_MATCHING = "pUseCharacterMatching";
 	/**
 	 * If true, use {@link Lemma Lemmata} instead of {@link Token forms} for tagging. Default: true.
 	 */
@@ -91,11 +176,31 @@ public abstract class BaseTreeGazetteer extends SegmenterBase {
 	 * Default: false.
 	 */
 	public static final String PARAM_USE_SENTECE_LEVEL_TAGGING = "pUseSentenceLevelTagging";
+	/**
+	 * Boolean, if true, collapse chains of tree nodes with a single child into single edges for traversal, see
+	 * {@link RadixTreeNode}. Has no effect on {@link #PARAM_USE_AHO_CORASICK} and
+	 * {@link #PARAM_USE_CHARACTER_MATCHING}. Default: false.
+	 */
+	public static final String PARAM_USE_RADIX_TREE = "pUseRadixTree";
+	/**
+	 * Boolean, if true, do not add abbreviated taxa to the model, but match tokens like "P." against all taxa with
+	 * this initial at query time, see {@link AbbreviationIndex}. Abbreviations are resolved to the last capitalized
+	 * genus with the same initial earlier in the document, if any. Overrides {@link #PARAM_ADD_ABBREVIATED_TAXA} and has
+	 * no effect on {@link #PARAM_USE_AHO_CORASICK} and {@link #PARAM_USE_CHARACTER_MATCHING}. Default: false.
+	 */
+	public static final String PARAM_USE_QUERY_ABBREVIATIONS = "pUseQueryAbbreviations";
+	/**
+	 * Boolean, if true, store only the taxa in the tree and skip taxon tokens while traversing it, instead of storing
+	 * every skip-gram, see {@link SkipMatcher}. The rules of {@link #PARAM_GET_ALL_SKIPS},
+	 * {@link #PARAM_MIN_WORD_COUNT} and {@link #PARAM_MIN_LENGTH} apply as before. Has no effect on
+	 * {@link #PARAM_USE_AHO_CORASICK} and {@link #PARAM_USE_CHARACTER_MATCHING}, which will only find the stored
+	 * entries. Default: false.
+	 */
+	public static final String PARAM_USE_QUERY_SKIPS = "pUseQuerySkips";
 	/**
 	 * Boolean, if true, use StringTree implementation. Default: true.
 	 */
 	public static final String PARAM_USE_STRING_TREE = "pUseStringTree";
-	protected static AnalysisEngine regexSegmenter;
 	@ConfigurationParameter(name = PARAM_LANGUAGE, mandatory = false, defaultValue = "de")
 	protected String language;
 	@ConfigurationParameter(name = PARAM_SOURCE_LOCATION, mandatory = false, defaultValue = "https://www.texttechnologylab.org/files/BIOfidTaxa.zip")
@@ -127,12 +232,60 @@ public abstract class BaseTreeGazetteer extends SegmenterBase {
 	protected boolean pAddAbbreviatedTaxa;
 	@ConfigurationParameter(name = PARAM_RETOKENIZE, mandatory = false, defaultValue = "false")
 	protected boolean pRetokenize;
-	protected ArrayList<Annotation> tokens;
-	protected ConcurrentHashMap<Integer, Integer> tokenBeginIndex;
+	@ConfigurationParameter(name = PARAM_MODEL_LOCATION, mandatory = false)
+	protected String pModelLocation;
+	@ConfigurationParameter(name = PARAM_USE_MODEL_CACHE, mandatory = false, defaultValue = "false")
+	protected boolean pUseModelCache;
+	@ConfigurationParameter(name = PARAM_USE_AHO_CORASICK, mandatory = false, defaultValue = "false")
+	protected boolean pUseAhoCorasick;
+	@ConfigurationParameter(name = PARAM_OVERLAPPING_MATCHES, mandatory = false, defaultValue = "false")
+	protected boolean pOverlappingMatches;
+	@ConfigurationParameter(name = PARAM_USE_CHARACTER_MATCHING, mandatory = false, defaultValue = "false")
+	protected boolean pUseCharacterMatching;
+	@ConfigurationParameter(name = PARAM_BOUNDARY_CHARACTER_CLASS, mandatory = false, defaultValue = "[\\s\\p{P}]")
+	protected String pBoundaryCharacterClass;
+	@ConfigurationParameter(name = PARAM_USE_RADIX_TREE, mandatory = false, defaultValue = "false")
+	protected boolean pUseRadixTree;
+	@ConfigurationParameter(name = PARAM_PARALLEL_CHUNK_SIZE, mandatory = false, defaultValue = "4096")
+	protected int pParallelChunkSize;
+	@ConfigurationParameter(name = PARAM_PARALLEL_MIN_TOKENS, mandatory = false, defaultValue = "2048")
+	protected int pParallelMinTokens;
+	@ConfigurationParameter(name = PARAM_TAGGING_THREADS, mandatory = false, defaultValue = "0")
+	protected int pTaggingThreads;
+	@ConfigurationParameter(name = PARAM_PERFECT_HASH_FAN_OUT, mandatory = false, defaultValue = "0")
+	protected int pPerfectHashFanOut;
+	@ConfigurationParameter(name = PARAM_USE_QUERY_SKIPS, mandatory = false, defaultValue = "false")
+	protected boolean pUseQuerySkips;
+	@ConfigurationParameter(name = PARAM_USE_QUERY_ABBREVIATIONS, mandatory = false, defaultValue = "false")
+	protected boolean pUseQueryAbbreviations;
+	@ConfigurationParameter(name = PARAM_BUILD_HEAP_BUDGET, mandatory = false, defaultValue = "0")
+	protected int pBuildHeapBudget;
 	protected Type taggingType;
+	/**
+	 * The type system the tagging types were last inferred from, see {@link #inferTaggingType(TypeSystem)}.
+	 */
+	protected volatile TypeSystem taggingTypeSystem;
+	/**
+	 * The joined URIs of each taxon, used as the value of its annotations. Filled lazily by
+	 * {@link #getTaxonValue(int)}.
+	 */
+	protected String[] taxonValues;
 	protected int skipGramTreeDepth;
-	protected ITreeNode skipGramTreeRoot;
-	protected JCas localJCas;
+	protected IFrozenTreeNode skipGramTreeRoot;
+	protected AhoCorasickAutomaton automaton;
+	protected MatchStartFilter matchStartFilter;
+	protected SkipMatcher skipMatcher;
+	protected AbbreviationIndex abbreviationIndex;
+	protected CharacterTransducer characterTransducer;
+	/**
+	 * The idle retokenizers, see {@link #PARAM_RETOKENIZE}. Each retokenizer is taken from the queue for a single
+	 * document, so it is only ever used by one thread at a time.
+	 */
+	protected final ConcurrentLinkedQueue<Retokenizer> retokenizers = new ConcurrentLinkedQueue<>();
+	/**
+	 * The dedicated pool for parallel tagging, see {@link #PARAM_TAGGING_THREADS}. Null, if the common pool is used.
+	 */
+	protected ForkJoinPool taggingPool;
 	protected ITreeGazetteerModel stringTreeGazetteerModel;
 	MappingProvider namedEntityMappingProvider;
 	
@@ -143,28 +296,174 @@ public abstract class BaseTreeGazetteer extends SegmenterBase {
 		namedEntityMappingProvider.setDefault(MappingProvider.LOCATION, "classpath:/org/hucompute/textimager/biofid/lib/ner-default.map");
 		namedEntityMappingProvider.setDefault(MappingProvider.BASE_TYPE, NamedEntity.class.getName());
 		namedEntityMappingProvider.setOverride(MappingProvider.LANGUAGE, language);
+		// Abbreviations are matched at query time instead
+		if (pUseQueryAbbreviations) {
+			pAddAbbreviatedTaxa = false;
+		}
 		
 		try {
 			if (pRetokenize) {
 				getLogger().info("Initializing UnicodeRegexSegmenter");
-				regexSegmenter = AnalysisEngineFactory.createEngine(UnicodeRegexSegmenter.class,
-						UnicodeRegexSegmenter.PARAM_TOKEN_BOUNDARY_REGEX, tokenBoundaryRegex,
-						UnicodeRegexSegmenter.PARAM_WRITE_TOKEN, true,
-						UnicodeRegexSegmenter.PARAM_WRITE_FORM, false,
-						UnicodeRegexSegmenter.PARAM_WRITE_SENTENCE, false);
+				retokenizers.add(createRetokenizer());
 			}
 			
 			createTreeModel();
-			
-			localJCas = JCasFactory.createJCas();
 		} catch (IOException | ClassNotFoundException | UIMAException e) {
 			throw new ResourceInitializationException(e);
 		}
+		
+		if (pTaggingThreads > 0) {
+			getLogger().info(String.format("Tagging on a dedicated pool of %d threads", pTaggingThreads));
+			taggingPool = new ForkJoinPool(pTaggingThreads);
+		}
+	}
+	
+	@Override
+	public void destroy() {
+		if (taggingPool != null) {
+			taggingPool.shutdown();
+		}
+		super.destroy();
 	}
 	
 	protected void createTreeModel() throws IOException, ClassNotFoundException {
+		String modelLocation = pModelLocation;
+		if (StringUtils.isEmpty(modelLocation) && (pUseModelCache || pBuildHeapBudget > 0)) {
+			modelLocation = getCachedModelLocation();
+		}
+		if (StringUtils.isNotEmpty(modelLocation)) {
+			if (!new File(modelLocation).exists()) {
+				getLogger().info(String.format("Compiling model to '%s'", modelLocation));
+				if (pBuildHeapBudget > 0) {
+					createModelCompiler().compile(modelLocation);
+				} else {
+					MappedTreeGazetteerModel.write(buildTreeModel(), modelLocation);
+				}
+			}
+			getLogger().info(String.format("Opening compiled model '%s'", modelLocation));
+			MappedTreeGazetteerModel model = new MappedTreeGazetteerModel(modelLocation);
+			String buildParameters = getBuildParameters();
+			if (!model.getBuildParameters().equals(buildParameters)) {
+				throw new IOException(String.format("Compiled model '%s' was built with the parameters [%s], expected [%s]!",
+						modelLocation, model.getBuildParameters(), buildParameters));
+			}
+			stringTreeGazetteerModel = model;
+		} else {
+			stringTreeGazetteerModel = buildTreeModel();
+		}
+		taxonValues = new String[stringTreeGazetteerModel.getTaxonUriMap().size()];
+		skipGramTreeRoot = stringTreeGazetteerModel.getTree();
+		skipGramTreeDepth = skipGramTreeRoot.depth();
+		if ((pUseAhoCorasick || pUseRadixTree || pPerfectHashFanOut > 0 || pUseQuerySkips || pUseQueryAbbreviations) && !(skipGramTreeRoot instanceof ArrayTreeNode)) {
+			throw new IllegalStateException("Aho-Corasick matching, radix trees, perfect hashing, query skips and query abbreviations require a FrozenTreeNode or MappedTreeNode!");
+		}
+		if (pPerfectHashFanOut > 0) {
+			long startTime = System.currentTimeMillis();
+			PerfectHashChildIndex childIndex = ((ArrayTreeNode) skipGramTreeRoot).buildChildIndex(pPerfectHashFanOut);
+			getLogger().info(String.format("Built perfect hash functions for %d nodes in %dms", childIndex.size(), System.currentTimeMillis() - startTime));
+		}
+		if (pUseAhoCorasick) {
+			long startTime = System.currentTimeMillis();
+			automaton = new AhoCorasickAutomaton((ArrayTreeNode) skipGramTreeRoot);
+			getLogger().info(String.format("Built Aho-Corasick automaton in %dms", System.currentTimeMillis() - startTime));
+		}
+		if (pUseQuerySkips) {
+			long startTime = System.currentTimeMillis();
+			skipMatcher = createSkipMatcher((ArrayTreeNode) skipGramTreeRoot);
+			getLogger().info(String.format("Built skip matcher in %dms", System.currentTimeMillis() - startTime));
+		}
+		if (pUseQueryAbbreviations) {
+			abbreviationIndex = new AbbreviationIndex((ArrayTreeNode) skipGramTreeRoot, skipMatcher, stringTreeGazetteerModel::getTaxonId);
+			getLogger().info(String.format("Matching abbreviations of %d initials", abbreviationIndex.size()));
+		}
+		if (pUseRadixTree) {
+			long startTime = System.currentTimeMillis();
+			skipGramTreeRoot = new RadixTreeNode((ArrayTreeNode) skipGramTreeRoot);
+			getLogger().info(String.format("Built radix tree with %d nodes in %dms", skipGramTreeRoot.size(), System.currentTimeMillis() - startTime));
+		}
+		matchStartFilter = new MatchStartFilter(skipGramTreeRoot);
+		getLogger().info(String.format("%d of %d tokens may start a match", matchStartFilter.cardinality(), skipGramTreeRoot.getVocabulary().size()));
+		if (pUseCharacterMatching) {
+			long startTime = System.currentTimeMillis();
+			characterTransducer = new CharacterTransducer(stringTreeGazetteerModel.getTree(), pUseLowercase, pBoundaryCharacterClass);
+			getLogger().info(String.format("Built character transducer with %d states in %dms", characterTransducer.size(), System.currentTimeMillis() - startTime));
+		}
+	}
+	
+	/**
+	 * Create a {@link SkipMatcher} for the given tree, allowing each entry the skips of the skip-grams that would have
+	 * been created for it. Entries with the same tokens as their taxon are the taxon itself.
+	 *
+	 * @param tree The tree of the {@link #stringTreeGazetteerModel}.
+	 * @return A new SkipMatcher.
+	 */
+	protected SkipMatcher createSkipMatcher(ArrayTreeNode tree) {
+		Pattern tokenBoundaryPattern = Pattern.compile(tokenBoundaryRegex, Pattern.UNICODE_CHARACTER_CLASS);
+		byte[] allowedSkips = new byte[tree.nodesWithValue()];
+		BitSet taxonValues = new BitSet(allowedSkips.length);
+		for (int i = 0; i < allowedSkips.length; i++) {
+			int taxonId = stringTreeGazetteerModel.getTaxonId(i);
+			if (taxonId > -1) {
+				String value = tree.getValue(i);
+				String taxon = stringTreeGazetteerModel.getTaxon(taxonId);
+				allowedSkips[i] = (byte) StringGazetteerModel.getAllowedQuerySkips(value, taxon, pMinWordCount, pGetAllSkips, pSplitHyphen, tokenBoundaryPattern);
+				if (Arrays.equals(StringTreeNode.split(value, tokenBoundaryPattern), StringTreeNode.split(taxon, tokenBoundaryPattern))) {
+					taxonValues.set(i);
+				}
+			}
+		}
+		return new SkipMatcher(tree, allowedSkips, stringTreeGazetteerModel::getTaxonId, taxonValues, pMinLength);
+	}
+	
+	/**
+	 * Get the location of the compiled model for the current sources and parameters in the {@link ModelCache}.
+	 *
+	 * @return The location of the compiled model, which may not exist yet.
+	 * @throws IOException If a source could not be read.
+	 */
+	protected String getCachedModelLocation() throws IOException {
+		return ModelCache.getModelLocation(
+				sourceLocation,
+				false,
+				pUseLowercase,
+				language,
+				pMinLength,
+				pGetAllSkips,
+				pSplitHyphen,
+				pAddAbbreviatedTaxa,
+				pMinWordCount,
+				tokenBoundaryRegex,
+				getFilterSet(),
+				pUseQuerySkips
+		).toString();
+	}
+	
+	/**
+	 * Describe the current parameters like {@link StringGazetteerModel#getBuildParameters()}, to check compiled models
+	 * against.
+	 *
+	 * @return The build parameters of the model.
+	 * @throws IOException If the filter could not be read.
+	 */
+	protected String getBuildParameters() throws IOException {
+		return StringGazetteerModel.getBuildParameters(
+				false,
+				pUseLowercase,
+				language,
+				pMinLength,
+				pGetAllSkips,
+				pSplitHyphen,
+				pAddAbbreviatedTaxa,
+				pMinWordCount,
+				tokenBoundaryRegex,
+				getFilterSet(),
+				pUseQuerySkips
+		);
+	}
+	
+	protected ITreeGazetteerModel buildTreeModel() throws IOException, ClassNotFoundException {
 		getLogger().info("Initializing StringTreeGazetteerModel");
-		stringTreeGazetteerModel = new TreeGazetteerModel(
+		return new TreeGazetteerModel(
 				sourceLocation,
 				pUseLowercase,
 				language,
@@ -174,10 +473,34 @@ public abstract class BaseTreeGazetteer extends SegmenterBase {
 				pAddAbbreviatedTaxa,
 				pMinWordCount,
 				tokenBoundaryRegex,
-				getFilterSet()
+				getFilterSet(),
+				pUseQuerySkips
+		);
+	}
+	
+	/**
+	 * Create a compiler for the current sources and parameters, see {@link #PARAM_BUILD_HEAP_BUDGET}.
+	 *
+	 * @return A new ExternalModelCompiler.
+	 * @throws IOException If the taxa could not be loaded.
+	 */
+	protected ExternalModelCompiler createModelCompiler() throws IOException {
+		getLogger().info(String.format("Initializing ExternalModelCompiler with a heap budget of %dMB", pBuildHeapBudget));
+		return new ExternalModelCompiler(
+				sourceLocation,
+				false,
+				pUseLowercase,
+				language,
+				pMinLength,
+				pGetAllSkips,
+				pSplitHyphen,
+				pAddAbbreviatedTaxa,
+				pMinWordCount,
+				tokenBoundaryRegex,
+				getFilterSet(),
+				pUseQuerySkips,
+				pBuildHeapBudget * 1024L * 1024L
 		);
-		skipGramTreeRoot = stringTreeGazetteerModel.getTree();
-		skipGramTreeDepth = skipGramTreeRoot.depth();
 	}
 	
 	protected HashSet<String> getFilterSet() throws IOException {
@@ -198,9 +521,10 @@ public abstract class BaseTreeGazetteer extends SegmenterBase {
 	
 	@Override
 	protected void process(JCas originalJCas, String text, int zoneBegin) throws AnalysisEngineProcessException {
-		namedEntityMappingProvider.configure(originalJCas.getCas());
-		inferTaggingType(originalJCas.getTypeSystem());
-		tokenBeginIndex = new ConcurrentHashMap<>();
+		synchronized (namedEntityMappingProvider) {
+			namedEntityMappingProvider.configure(originalJCas.getCas());
+		}
+		updateTaggingType(originalJCas.getTypeSystem());
 		
 		if (originalJCas.getDocumentText().trim().length() == 0) {
 			getLogger().debug("Skipping empty JCas");
@@ -208,34 +532,96 @@ public abstract class BaseTreeGazetteer extends SegmenterBase {
 		}
 		
 		getLogger().debug("Tagging");
+		if (pUseCharacterMatching) {
+			characterTransducer.findAll(text, 0, text.length(),
+					(begin, end, valueIndex) -> addAnnotation(originalJCas, zoneBegin + begin, zoneBegin + end, valueIndex));
+			return;
+		}
+		TaggingContext context = new TaggingContext(originalJCas, skipMatcher);
+		Retokenizer retokenizer = null;
 		try {
+			JCas localJCas;
 			if (pRetokenize) {
-				localJCas = processLocalJCas(originalJCas);
+				retokenizer = acquireRetokenizer();
+				localJCas = processLocalJCas(originalJCas, retokenizer);
 			} else {
 				localJCas = originalJCas;
 			}
 			
-			Collection<Sentence> sentences = JCasUtil.select(localJCas, Sentence.class);
-			if (!pUseSentenceLevelTagging || sentences.isEmpty()) {
-				tagEntireDocumentText(originalJCas, localJCas);
+			AnnotationIndex<? extends Annotation> sentences = localJCas.getAnnotationIndex(Sentence.type);
+			if (!pUseSentenceLevelTagging || sentences.size() == 0) {
+				tagEntireDocumentText(context, localJCas);
 			} else {
-				int sentencesLength = sentences.stream().map(Sentence::getCoveredText).collect(Collectors.joining(" ")).length();
-				getLogger().debug(String.format("Tagging sentences. Coverage: %d/%d", sentencesLength, localJCas.getDocumentText().length()));
-				tagSentences(originalJCas, localJCas, sentences);
+				tagSentences(context, localJCas, sentences);
 			}
 		} catch (UIMAException e) {
 			throw new AnalysisEngineProcessException(e);
+		} finally {
+			if (retokenizer != null) {
+				releaseRetokenizer(retokenizer);
+			}
+		}
+	}
+	
+	/**
+	 * Infer the tagging types, unless they have already been inferred from the given type system. The type system
+	 * rarely changes between documents, so the types are usually only resolved once.
+	 *
+	 * @param typeSystem The type system of the current document.
+	 */
+	protected void updateTaggingType(TypeSystem typeSystem) {
+		if (typeSystem != taggingTypeSystem) {
+			synchronized (this) {
+				if (typeSystem != taggingTypeSystem) {
+					inferTaggingType(typeSystem);
+					taggingTypeSystem = typeSystem;
+				}
+			}
 		}
 	}
 	
 	protected abstract void inferTaggingType(TypeSystem typeSystem);
 	
-	protected JCas processLocalJCas(JCas originalJCas) throws AnalysisEngineProcessException {
+	protected Retokenizer createRetokenizer() throws UIMAException {
+		return new Retokenizer(
+				AnalysisEngineFactory.createEngine(UnicodeRegexSegmenter.class,
+						UnicodeRegexSegmenter.PARAM_TOKEN_BOUNDARY_REGEX, tokenBoundaryRegex,
+						UnicodeRegexSegmenter.PARAM_WRITE_TOKEN, true,
+						UnicodeRegexSegmenter.PARAM_WRITE_FORM, false,
+						UnicodeRegexSegmenter.PARAM_WRITE_SENTENCE, false),
+				JCasFactory.createJCas()
+		);
+	}
+	
+	/**
+	 * Take an idle retokenizer from the {@link #retokenizers} or create a new one, if all are in use by other threads.
+	 *
+	 * @return A retokenizer to be returned by {@link #releaseRetokenizer(Retokenizer)}.
+	 * @throws UIMAException If a new retokenizer could not be created.
+	 */
+	protected Retokenizer acquireRetokenizer() throws UIMAException {
+		Retokenizer retokenizer = retokenizers.poll();
+		return retokenizer != null ? retokenizer : createRetokenizer();
+	}
+	
+	/**
+	 * Reset the JCas of a retokenizer, so the annotations of the last document are released, and return it to the
+	 * {@link #retokenizers}.
+	 *
+	 * @param retokenizer A retokenizer from {@link #acquireRetokenizer()}.
+	 */
+	protected void releaseRetokenizer(Retokenizer retokenizer) {
+		retokenizer.jCas.reset();
+		retokenizers.add(retokenizer);
+	}
+	
+	protected JCas processLocalJCas(JCas originalJCas, Retokenizer retokenizer) throws AnalysisEngineProcessException {
+		JCas localJCas = retokenizer.jCas;
 		localJCas.reset();
 		localJCas.setDocumentText(originalJCas.getDocumentText());
 		localJCas.setDocumentLanguage(originalJCas.getDocumentLanguage());
 		
-		SimplePipeline.runPipeline(localJCas, regexSegmenter);
+		SimplePipeline.runPipeline(localJCas, retokenizer.segmenter);
 		
 		if (pUseSentenceLevelTagging) {
 			JCasUtil.select(originalJCas, Sentence.class).forEach(
@@ -246,79 +632,178 @@ public abstract class BaseTreeGazetteer extends SegmenterBase {
 		return localJCas;
 	}
 	
-	protected void tagEntireDocumentText(JCas originalJCas, JCas localJCas) {
+	protected void tagEntireDocumentText(TaggingContext context, JCas localJCas) {
 		getLogger().debug(String.format(
 				"%s, tagging entire document text.",
 				pUseSentenceLevelTagging ? "PARAM_FORCE_DOCUMENT_TEXT_TAGGING=true" : "Found no sentences"
 				)
 		);
 		
-		ArrayList<String> query = getDocumentLevelQuery(localJCas);
-		findAllMatches(skipGramTreeRoot, query, 0).forEach(m -> addAnnotation(originalJCas, m));
+		int[] query = indexTokens(context, getTokenIndex(localJCas));
+		addAnnotations(context, findAllMatchesInChunks(context, skipGramTreeRoot, query, 0, query.length));
+	}
+	
+	/**
+	 * @param aJCas The JCas to tag.
+	 * @return The index of the {@link Lemma Lemmata} of the JCas, if {@link #PARAM_USE_LEMMATA} is set and there are
+	 * any, and the index of its {@link Token Tokens} otherwise.
+	 */
+	protected AnnotationIndex<? extends Annotation> getTokenIndex(JCas aJCas) {
+		AnnotationIndex<? extends Annotation> lemmata = aJCas.getAnnotationIndex(Lemma.type);
+		if (pUseLemmata && lemmata.size() > 0) {
+			return lemmata;
+		}
+		return aJCas.getAnnotationIndex(Token.type);
 	}
 	
-	protected ArrayList<String> getDocumentLevelQuery(JCas aJCas) {
-		ArrayList<String> query = new ArrayList<>();
-		tokens = Lists.newArrayList(JCasUtil.select(aJCas, Lemma.class));
-		if (!pUseLemmata || tokens.isEmpty()) {
-			tokens = Lists.newArrayList(JCasUtil.select(aJCas, Token.class));
+	/**
+	 * Index the given tokens in a single pass over the annotation index: store their offsets in the context and
+	 * convert them to their IDs in the vocabulary of the tree. Tokens that are not part of the vocabulary are mapped to
+	 * {@link ITokenVocabulary#UNKNOWN}. If the {@link #abbreviationIndex} is set, also find the abbreviations among the
+	 * tokens.
+	 *
+	 * @param context The context of the current document.
+	 * @param tokens  The tokens or lemmata to match.
+	 * @return An array of token IDs, one for each token.
+	 */
+	protected int[] indexTokens(TaggingContext context, AnnotationIndex<? extends Annotation> tokens) {
+		ITokenVocabulary vocabulary = skipGramTreeRoot.getVocabulary();
+		int count = tokens.size();
+		int[] query = new int[count];
+		int[] tokenBegins = new int[count];
+		int[] tokenEnds = new int[count];
+		int[] lastGenus = null;
+		if (abbreviationIndex != null) {
+			context.abbreviationInitials = new int[count];
+			context.abbreviationGenera = new int[count];
+			lastGenus = new int[abbreviationIndex.size()];
+			Arrays.fill(lastGenus, ITokenVocabulary.UNKNOWN);
 		}
+		int i = 0;
 		for (Annotation token : tokens) {
-			String qText = getAnnotationText(token);
-			query.add(qText);
+			String text = getAnnotationText(token);
+			tokenBegins[i] = token.getBegin();
+			tokenEnds[i] = token.getEnd();
+			query[i] = vocabulary.getId(text);
+			if (abbreviationIndex != null) {
+				findAbbreviation(context, i, token, text, query[i], lastGenus);
+			}
+			i++;
 		}
+		context.tokenBegins = tokenBegins;
+		context.tokenEnds = tokenEnds;
 		return query;
 	}
 	
-	protected void tagSentences(JCas originalJCas, JCas localJCas, Collection<Sentence> sentences) {
-		tokens = Lists.newArrayList(JCasUtil.select(localJCas, Lemma.class));
-		final ConcurrentHashMap<Sentence, Collection<Annotation>> sentenceIndex;
-		if (pUseLemmata && !tokens.isEmpty()) {
-			sentenceIndex = new ConcurrentHashMap<>(JCasUtil.indexCovered(localJCas, Sentence.class, Lemma.class));
-			for (int i = 0; i < tokens.size(); i++) {
-				tokenBeginIndex.put(tokens.get(i).getBegin(), i);
+	/**
+	 * Set the {@link TaggingContext#abbreviationInitials} and {@link TaggingContext#abbreviationGenera} for a token.
+	 * Each abbreviation is resolved to the last capitalized token before it, that starts with the same initial and may
+	 * start a match.
+	 *
+	 * @param context   The context of the current document.
+	 * @param i         The index of the token.
+	 * @param token     The token.
+	 * @param text      The text of the token, see {@link #getAnnotationText(Annotation)}.
+	 * @param tokenId   The ID of the token.
+	 * @param lastGenus The token ID of the last capitalized token by the index of its initial, see
+	 *                  {@link AbbreviationIndex#indexOf(int)}, updated for the given token.
+	 */
+	protected void findAbbreviation(TaggingContext context, int i, Annotation token, String text, int tokenId, int[] lastGenus) {
+		context.abbreviationInitials[i] = -1;
+		context.abbreviationGenera[i] = ITokenVocabulary.UNKNOWN;
+		if (matchStartFilter.mayStart(tokenId)) {
+			String coveredText = token.getCoveredText();
+			if (!coveredText.isEmpty() && Character.isUpperCase(coveredText.codePointAt(0))) {
+				int index = abbreviationIndex.indexOf(text.codePointAt(0));
+				if (index > -1) {
+					lastGenus[index] = tokenId;
+				}
 			}
 		} else {
-			sentenceIndex = new ConcurrentHashMap<>(JCasUtil.indexCovered(localJCas, Sentence.class, Token.class));
-			tokens = Lists.newArrayList(JCasUtil.select(localJCas, Token.class));
-			for (int i = 0; i < tokens.size(); i++) {
-				tokenBeginIndex.put(tokens.get(i).getBegin(), i);
+			int initial = AbbreviationIndex.getInitial(text);
+			int index = initial > -1 ? abbreviationIndex.indexOf(initial) : -1;
+			if (index > -1) {
+				context.abbreviationInitials[i] = initial;
+				context.abbreviationGenera[i] = lastGenus[index];
 			}
 		}
-		sentences.stream()
-				.parallel()
-				.flatMap(sentence -> {
-					ImmutablePair<Integer, ArrayList<String>> pair = getSentenceList(sentenceIndex, sentence);
-					Integer sentenceOffset = pair.left;
-					ArrayList<String> query = pair.right;
-					if (sentenceOffset < 0 || query.size() == 0) {
-						return Stream.empty();
-					}
-					return findAllMatches(skipGramTreeRoot, query, sentenceOffset).stream();
-				})
-				.collect(Collectors.toList())
-				.forEach(m -> addAnnotation(originalJCas, m));
+	}
+	
+	protected void tagSentences(TaggingContext context, JCas localJCas, AnnotationIndex<? extends Annotation> sentences) {
+		final int[] query = indexTokens(context, getTokenIndex(localJCas));
+		final int[] sentenceRanges = indexSentences(context, sentences);
+		int sentenceCount = sentenceRanges.length / 2;
+		List<Match> matches;
+		if (isParallel(query.length)) {
+			matches = runInTaggingPool(() -> findSentenceMatches(context, query, sentenceRanges, IntStream.range(0, sentenceCount).parallel()));
+		} else {
+			matches = findSentenceMatches(context, query, sentenceRanges, IntStream.range(0, sentenceCount));
+		}
+		addAnnotations(context, matches);
 	}
 	
 	/**
-	 * Get a list of tokens or lemmata covered by this sentence.
+	 * Get the range of tokens covered by each sentence in a single sweep over the sentences and the token offsets of
+	 * the context, which are both sorted by their begin.
 	 *
-	 * @param sentenceIndex The JCas containing the sentence.
-	 * @param sentence      The sentence in question.
-	 * @return A list of token or lemma values.
+	 * @param context   The context of the current document, with its tokens already indexed.
+	 * @param sentences The sentences.
+	 * @return For each sentence, the index of its first covered token (inclusive) followed by the index of its last
+	 * covered token (exclusive).
 	 */
-	protected ImmutablePair<Integer, ArrayList<String>> getSentenceList(Map<Sentence, Collection<Annotation>> sentenceIndex, Sentence sentence) {
-		ArrayList<String> arrayList = new ArrayList<>();
-		ArrayList<Annotation> annotations = new ArrayList<>(sentenceIndex.get(sentence));
-		
-		int sentenceBeginIndex = -1;
-		if (annotations.size() > 0) {
-			sentenceBeginIndex = tokenBeginIndex.get(annotations.get(0).getBegin());
-			annotations.forEach(
-					annotation -> arrayList.add(getAnnotationText(annotation))
-			);
+	protected int[] indexSentences(TaggingContext context, AnnotationIndex<? extends Annotation> sentences) {
+		int[] tokenBegins = context.tokenBegins;
+		int[] tokenEnds = context.tokenEnds;
+		int[] sentenceRanges = new int[2 * sentences.size()];
+		long coverage = -1;
+		int token = 0;
+		int i = 0;
+		for (Annotation sentence : sentences) {
+			while (token < tokenBegins.length && tokenBegins[token] < sentence.getBegin()) {
+				token++;
+			}
+			int end = token;
+			while (end < tokenEnds.length && tokenEnds[end] <= sentence.getEnd()) {
+				end++;
+			}
+			sentenceRanges[i++] = token;
+			sentenceRanges[i++] = end;
+			coverage += sentence.getEnd() - sentence.getBegin() + 1;
 		}
-		return ImmutablePair.of(sentenceBeginIndex, arrayList);
+		getLogger().debug(String.format("Tagging sentences. Coverage: %d/%d", coverage, context.jCas.getDocumentText().length()));
+		return sentenceRanges;
+	}
+	
+	private List<Match> findSentenceMatches(TaggingContext context, int[] query, int[] sentenceRanges, IntStream sentences) {
+		boolean parallel = sentences.isParallel();
+		return sentences
+				.filter(i -> sentenceRanges[2 * i] < sentenceRanges[2 * i + 1])
+				.mapToObj(i -> findAllMatches(parallel ? context.fork() : context, skipGramTreeRoot, query,
+						sentenceRanges[2 * i], sentenceRanges[2 * i + 1]))
+				.flatMap(List::stream)
+				.collect(Collectors.toList());
+	}
+	
+	/**
+	 * @param tokenCount The number of tokens of a document.
+	 * @return True, if the document is large enough to be tagged in parallel, see {@link #PARAM_PARALLEL_MIN_TOKENS}.
+	 */
+	protected boolean isParallel(int tokenCount) {
+		return tokenCount >= pParallelMinTokens;
+	}
+	
+	/**
+	 * Run a task, that uses parallel streams, on the {@link #taggingPool}. The tasks of parallel streams are forked in
+	 * the pool of the thread that runs the stream, so they are confined to the dedicated pool as well.
+	 *
+	 * @param task The task.
+	 * @return The result of the task.
+	 */
+	protected <T> T runInTaggingPool(Supplier<T> task) {
+		if (taggingPool == null) {
+			return task.get();
+		}
+		return taggingPool.submit(task::get).join();
 	}
 	
 	/**
@@ -340,57 +825,307 @@ public abstract class BaseTreeGazetteer extends SegmenterBase {
 		}
 	}
 	
-	protected ArrayList<Match> findAllMatches(ITreeNode root, final ArrayList<String> query, int globalOffset) {
+	/**
+	 * Find all matches in the given range of token IDs. Uses the {@link #automaton} if set and greedily traverses the
+	 * tree from each token otherwise.
+	 *
+	 * @param context The context of the current document.
+	 * @param root    The root of the tree to match against.
+	 * @param query   The token IDs of the entire document.
+	 * @param from    The first index of the range (inclusive).
+	 * @param to      The last index of the range (exclusive).
+	 * @return A list of matches, with start and end indices into query.
+	 */
+	protected ArrayList<Match> findAllMatches(TaggingContext context, IFrozenTreeNode root, final int[] query, int from, int to) {
 		ArrayList<Match> matches = new ArrayList<>();
-		int offset = 0;
-		do {
-			List<String> subList = query.subList(offset, Math.min(query.size(), offset + skipGramTreeDepth));
-			ImmutablePair<String, Integer> matchedString = root.traverse(subList);
-			if (!Strings.isNullOrEmpty(matchedString.left) && matchedString.right > -1) {
-				int start = offset;
-				int end = offset + matchedString.right;
-				matches.add(new Match(start + globalOffset, end + globalOffset, matchedString.left));
-				offset += matchedString.right;
+		if (automaton != null) {
+			automaton.findAll(query, from, to, pOverlappingMatches,
+					(start, end, valueIndex) -> matches.add(new Match(start, end, valueIndex)));
+			return matches;
+		}
+		scan(context, root, query, from, getScanLimit(from, to), to, matches);
+		return matches;
+	}
+	
+	/**
+	 * Like {@link #findAllMatches(TaggingContext, IFrozenTreeNode, int[], int, int)}, but split the range into chunks of
+	 * {@link #pParallelChunkSize} tokens, which are scanned in parallel. Each chunk reads up to
+	 * {@link #skipGramTreeDepth} tokens past its end, so its matches do not depend on other chunks. A chunk may start
+	 * inside a match of the previous chunk, though, so the chunks are reconciled at their seams: from the end of the
+	 * previous chunk, tokens are scanned serially until the scan reaches a token the chunk was scanned from, after
+	 * which both scans are identical.
+	 *
+	 * @return The same matches as {@link #findAllMatches(TaggingContext, IFrozenTreeNode, int[], int, int)}.
+	 */
+	protected ArrayList<Match> findAllMatchesInChunks(TaggingContext context, IFrozenTreeNode root, final int[] query, int from, int to) {
+		int limit = getScanLimit(from, to);
+		if (automaton != null || pParallelChunkSize < 1 || limit - from <= pParallelChunkSize || !isParallel(to - from)) {
+			return findAllMatches(context, root, query, from, to);
+		}
+		int chunkCount = (int) ((limit - from + (long) pParallelChunkSize - 1) / pParallelChunkSize);
+		List<Chunk> chunks = runInTaggingPool(() -> IntStream.range(0, chunkCount)
+				.parallel()
+				.mapToObj(i -> {
+					Chunk chunk = new Chunk(from + i * pParallelChunkSize, Math.min(limit, from + (i + 1) * pParallelChunkSize));
+					chunk.next = scan(context.fork(), root, query, chunk.begin, chunk.end, to, chunk.matches);
+					return chunk;
+				})
+				.collect(Collectors.toList()));
+		
+		ArrayList<Match> matches = new ArrayList<>();
+		int offset = from;
+		for (Chunk chunk : chunks) {
+			int i = 0;
+			while (offset < chunk.end) {
+				while (i < chunk.matches.size() && chunk.matches.get(i).end < offset) {
+					i++;
+				}
+				// The chunk was scanned from this offset, unless it lies within one of its matches
+				if (i == chunk.matches.size() || chunk.matches.get(i).start >= offset) {
+					break;
+				}
+				offset = scan(context, root, query, offset, offset + 1, to, matches);
 			}
-			offset += 1;
-		} while (offset < (query.size() - skipGramTreeDepth) && offset > -1);
+			if (offset < chunk.end) {
+				matches.addAll(chunk.matches.subList(i, chunk.matches.size()));
+				offset = chunk.next;
+			}
+		}
 		return matches;
 	}
 	
-	protected void addAnnotation(JCas aJCas, Match match) {
-		try {
-			Annotation fromToken = tokens.get(match.start);
-			Annotation toToken = tokens.get(match.end);
-			
-			String taxon = stringTreeGazetteerModel.getSkipGramTaxonLookup().get(match.value);
-			NamedEntity annotation = (NamedEntity) aJCas.getCas().createAnnotation(getTaggingType(taxon), fromToken.getBegin(), toToken.getEnd());
-			
-			String uris = stringTreeGazetteerModel.getTaxonUriMap().get(taxon).stream()
-					.map(URI::toString)
-					.collect(Collectors.joining(", "));
-			annotation.setValue(uris);
-			
+	/**
+	 * A match may start at the first token of a range and at any token before the last {@link #skipGramTreeDepth}
+	 * tokens of the range.
+	 *
+	 * @return The first index of the range at which no match may start.
+	 */
+	private int getScanLimit(int from, int to) {
+		return Math.max(from + 1, to - skipGramTreeDepth);
+	}
+	
+	/**
+	 * Greedily traverse the tree from each token in the given range, continuing after the end of each match.
+	 *
+	 * @param context The context of the current document.
+	 * @param root    The root of the tree to match against.
+	 * @param query   The token IDs of the entire document.
+	 * @param offset  The first index to start a match at (inclusive).
+	 * @param limit   The last index to start a match at (exclusive).
+	 * @param to      The last index of query to match (exclusive).
+	 * @param matches The list to add the matches to.
+	 * @return The first index at or after limit the scan would have continued at.
+	 */
+	protected int scan(TaggingContext context, IFrozenTreeNode root, final int[] query, int offset, int limit, int to, List<Match> matches) {
+		while (offset < limit && offset > -1) {
+			long result = IFrozenTreeNode.pack(-1, -1);
+			if (offset < to && abbreviationIndex != null && context.abbreviationInitials[offset] > -1) {
+				result = abbreviationIndex.match(context.abbreviationInitials[offset], context.abbreviationGenera[offset], query, offset + 1,
+						Math.min(to, offset + skipGramTreeDepth), context.skipMatches);
+			} else if (offset < to && matchStartFilter.mayStart(query[offset])) {
+				// Most tokens can never start a match, skip them without entering the tree
+				result = skipMatcher != null
+						? skipMatcher.match(query, offset, to, context.skipMatches)
+						: root.traversePacked(query, offset, Math.min(to, offset + skipGramTreeDepth));
+			}
+			int valueIndex = IFrozenTreeNode.matchedValue(result);
+			int matchedIndex = IFrozenTreeNode.matchedIndex(result);
+			if (valueIndex > -1 && matchedIndex > -1) {
+				matches.add(new Match(offset, offset + matchedIndex, valueIndex));
+				offset += matchedIndex;
+			}
+			offset += 1;
+		}
+		return offset;
+	}
+	
+	/**
+	 * Annotate all given matches. The CAS and its index repository are only looked up once and the value of each taxon
+	 * is only built once, see {@link #getTaxonValue(int)}.
+	 *
+	 * @param context The context of the current document, the annotations are added to its JCas.
+	 * @param matches The matches, with start and end indices into the tokens of the context.
+	 */
+	protected void addAnnotations(TaggingContext context, List<Match> matches) {
+		CAS cas = context.jCas.getCas();
+		FSIndexRepository indexRepository = context.jCas.getFSIndexRepository();
+		for (Match match : matches) {
+			NamedEntity annotation = createAnnotation(cas, context.tokenBegins[match.start], context.tokenEnds[match.end], match.valueIndex);
+			if (annotation != null) {
+				indexRepository.addFS(annotation);
+			}
+		}
+	}
+	
+	/**
+	 * Annotate the given skip-gram match. The taxon is taken from the payload of the matched value, so no string
+	 * lookups are needed.
+	 *
+	 * @param aJCas      The JCas to add the annotation to.
+	 * @param begin      The character offset of the beginning of the match.
+	 * @param end        The character offset of the end of the match.
+	 * @param valueIndex The index of the matched skip-gram in the tree of the {@link #stringTreeGazetteerModel}.
+	 */
+	protected void addAnnotation(JCas aJCas, int begin, int end, int valueIndex) {
+		NamedEntity annotation = createAnnotation(aJCas.getCas(), begin, end, valueIndex);
+		if (annotation != null) {
 			aJCas.addFsToIndexes(annotation);
-		} catch (NullPointerException e) {
-			// FIXME: Remove this
-			System.err.println(e.getMessage());
-			System.err.println(match.value);
-			e.printStackTrace();
 		}
 	}
 	
-	protected abstract Type getTaggingType(String taxon);
+	/**
+	 * Create the annotation of the given skip-gram match without adding it to the indexes.
+	 *
+	 * @param cas        The CAS to create the annotation in.
+	 * @param begin      The character offset of the beginning of the match.
+	 * @param end        The character offset of the end of the match.
+	 * @param valueIndex The index of the matched skip-gram in the tree of the {@link #stringTreeGazetteerModel}.
+	 * @return The annotation or null, if the matched value has no taxon or the taxon has no tagging type.
+	 */
+	@Nullable
+	protected NamedEntity createAnnotation(CAS cas, int begin, int end, int valueIndex) {
+		int taxonId = valueIndex < 0 ? -1 : stringTreeGazetteerModel.getTaxonId(valueIndex);
+		if (taxonId < 0) {
+			getLogger().warn(String.format("Match at [%d, %d) has no taxon!", begin, end));
+			return null;
+		}
+		Type type = getTaggingType(taxonId);
+		if (type == null) {
+			getLogger().warn(String.format("Taxon '%s' has no tagging type!", stringTreeGazetteerModel.getTaxon(taxonId)));
+			return null;
+		}
+		NamedEntity annotation = (NamedEntity) cas.createAnnotation(type, begin, end);
+		annotation.setValue(getTaxonValue(taxonId));
+		return annotation;
+	}
+	
+	/**
+	 * Get the value of the annotations of a taxon, its URIs joined by {@code ", "}. The value is built on the first
+	 * call and cached afterwards. Concurrent calls may build the same value more than once, which is harmless.
+	 *
+	 * @param taxonId The ID of the taxon, see {@link ITreeGazetteerModel#getTaxonId(int)}.
+	 * @return The value.
+	 */
+	protected String getTaxonValue(int taxonId) {
+		String value = taxonValues[taxonId];
+		if (value == null) {
+			value = String.join(", ", stringTreeGazetteerModel.getUris(taxonId));
+			taxonValues[taxonId] = value;
+		}
+		return value;
+	}
+	
+	/**
+	 * @param taxonId The ID of the matched taxon, see {@link ITreeGazetteerModel#getTaxonId(int)}.
+	 * @return The type to annotate the taxon with or null, if the taxon is not to be annotated.
+	 */
+	protected abstract Type getTaggingType(int taxonId);
+	
+	/**
+	 * The state of tagging a single document. A new context is created for each call of
+	 * {@link BaseTreeGazetteer#process(JCas, String, int)}, so a single engine can tag documents in several threads at once and no
+	 * document stays reachable after it has been processed.
+	 */
+	protected static class TaggingContext {
+		
+		/**
+		 * The JCas to add the annotations to.
+		 */
+		final JCas jCas;
+		/**
+		 * The begin offset of each token or lemma to match, from the retokenized JCas if
+		 * {@link BaseTreeGazetteer#PARAM_RETOKENIZE} is set.
+		 */
+		int[] tokenBegins;
+		/**
+		 * The end offset of each token, see {@link #tokenBegins}.
+		 */
+		int[] tokenEnds;
+		/**
+		 * The initial of each token, if it is an abbreviation of an initial of the
+		 * {@link BaseTreeGazetteer#abbreviationIndex}, and -1 otherwise. Only set if the index is set.
+		 */
+		int[] abbreviationInitials;
+		/**
+		 * The token ID of the genus each abbreviation was resolved to, or
+		 * {@link ITokenVocabulary#UNKNOWN}.
+		 */
+		int[] abbreviationGenera;
+		/**
+		 * The buffer of the {@link BaseTreeGazetteer#skipMatcher} or null, if there is none. Thus, a context must only
+		 * be used by one thread at a time, tasks running in parallel use a {@link #fork()}.
+		 */
+		final int[] skipMatches;
+		
+		public TaggingContext(JCas jCas, @Nullable SkipMatcher skipMatcher) {
+			this(jCas, skipMatcher != null ? skipMatcher.createMatchBuffer() : null);
+		}
+		
+		private TaggingContext(JCas jCas, int[] skipMatches) {
+			this.jCas = jCas;
+			this.skipMatches = skipMatches;
+		}
+		
+		/**
+		 * @return A context of the same document and tokens with its own buffers.
+		 */
+		TaggingContext fork() {
+			TaggingContext context = new TaggingContext(jCas, skipMatches != null ? new int[skipMatches.length] : null);
+			context.tokenBegins = tokenBegins;
+			context.tokenEnds = tokenEnds;
+			context.abbreviationInitials = abbreviationInitials;
+			context.abbreviationGenera = abbreviationGenera;
+			return context;
+		}
+	}
+	
+	/**
+	 * A {@link UnicodeRegexSegmenter} with the JCas it retokenizes the documents in.
+	 */
+	protected static class Retokenizer {
+		
+		final AnalysisEngine segmenter;
+		final JCas jCas;
+		
+		public Retokenizer(AnalysisEngine segmenter, JCas jCas) {
+			this.segmenter = segmenter;
+			this.jCas = jCas;
+		}
+	}
+	
+	/**
+	 * The matches of a chunk of the tokens, see
+	 * {@link #findAllMatchesInChunks(TaggingContext, IFrozenTreeNode, int[], int, int)}.
+	 */
+	private static class Chunk {
+		
+		final int begin;
+		final int end;
+		final ArrayList<Match> matches = new ArrayList<>();
+		/**
+		 * The index the scan of the chunk would have continued at.
+		 */
+		int next;
+		
+		Chunk(int begin, int end) {
+			this.begin = begin;
+			this.end = end;
+		}
+	}
 	
 	protected static class Match {
 		
 		final int start;
 		final int end;
-		final String value;
+		/**
+		 * The index of the matched value in the tree of the {@link #stringTreeGazetteerModel}.
+		 */
+		final int valueIndex;
 		
-		public Match(int start, int end, String value) {
+		public Match(int start, int end, int valueIndex) {
 			this.start = start;
 			this.end = end;
-			this.value = value;
+			this.valueIndex = valueIndex;
 		}
 	}
 }
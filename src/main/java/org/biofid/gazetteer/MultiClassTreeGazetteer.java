@@ -5,8 +5,12 @@ import org.apache.uima.cas.Type;
 import org.apache.uima.cas.TypeSystem;
 import org.apache.uima.fit.descriptor.ConfigurationParameter;
 import org.apache.uima.resource.ResourceInitializationException;
+import org.biofid.gazetteer.models.ExternalModelCompiler;
+import org.biofid.gazetteer.models.IMultiClassGazetteerModel;
 import org.biofid.gazetteer.models.ITreeGazetteerModel;
+import org.biofid.gazetteer.models.ModelCache;
 import org.biofid.gazetteer.models.MultiClassTreeGazetteerModel;
+import org.biofid.gazetteer.models.StringGazetteerModel;
 
 import java.io.IOException;
 import java.security.InvalidParameterException;
@@ -39,9 +43,9 @@ public class MultiClassTreeGazetteer extends BaseTreeGazetteer {
 	}
 	
 	@Override
-	protected void createTreeModel() throws IOException, ClassNotFoundException {
+	protected ITreeGazetteerModel buildTreeModel() throws IOException {
 		getLogger().info("Initializing MultiClassTreeGazetteerModel");
-		stringTreeGazetteerModel = new MultiClassTreeGazetteerModel(
+		return new MultiClassTreeGazetteerModel(
 				sourceLocation,
 				pUseLowercase,
 				language,
@@ -51,10 +55,64 @@ public class MultiClassTreeGazetteer extends BaseTreeGazetteer {
 				pAddAbbreviatedTaxa,
 				pMinWordCount,
 				tokenBoundaryRegex,
-				getFilterSet()
+				getFilterSet(),
+				pUseQuerySkips
+		);
+	}
+	
+	@Override
+	protected ExternalModelCompiler createModelCompiler() throws IOException {
+		getLogger().info(String.format("Initializing ExternalModelCompiler with a heap budget of %dMB", pBuildHeapBudget));
+		return new ExternalModelCompiler(
+				sourceLocation,
+				true,
+				pUseLowercase,
+				language,
+				pMinLength,
+				pGetAllSkips,
+				pSplitHyphen,
+				pAddAbbreviatedTaxa,
+				pMinWordCount,
+				tokenBoundaryRegex,
+				getFilterSet(),
+				pUseQuerySkips,
+				pBuildHeapBudget * 1024L * 1024L
+		);
+	}
+	
+	@Override
+	protected String getCachedModelLocation() throws IOException {
+		return ModelCache.getModelLocation(
+				sourceLocation,
+				true,
+				pUseLowercase,
+				language,
+				pMinLength,
+				pGetAllSkips,
+				pSplitHyphen,
+				pAddAbbreviatedTaxa,
+				pMinWordCount,
+				tokenBoundaryRegex,
+				getFilterSet(),
+				pUseQuerySkips
+		).toString();
+	}
+	
+	@Override
+	protected String getBuildParameters() throws IOException {
+		return StringGazetteerModel.getBuildParameters(
+				true,
+				pUseLowercase,
+				language,
+				pMinLength,
+				pGetAllSkips,
+				pSplitHyphen,
+				pAddAbbreviatedTaxa,
+				pMinWordCount,
+				tokenBoundaryRegex,
+				getFilterSet(),
+				pUseQuerySkips
 		);
-		skipGramTreeRoot = ((ITreeGazetteerModel) stringTreeGazetteerModel).getTree();
-		skipGramTreeDepth = skipGramTreeRoot.depth();
 	}
 	
 	@Override
@@ -65,7 +123,8 @@ public class MultiClassTreeGazetteer extends BaseTreeGazetteer {
 	}
 	
 	@Override
-	protected Type getTaggingType(String taxon) {
-		return taggingTypes[((MultiClassTreeGazetteerModel) stringTreeGazetteerModel).getClassIdFromTaxon(taxon)];
+	protected Type getTaggingType(int taxonId) {
+		int classId = ((IMultiClassGazetteerModel) stringTreeGazetteerModel).getClassId(taxonId);
+		return classId < 0 ? null : taggingTypes[classId];
 	}
 }
@@ -4,6 +4,7 @@ import de.tudarmstadt.ukp.dkpro.core.api.ner.type.NamedEntity;
 import org.apache.uima.cas.Type;
 import org.apache.uima.cas.TypeSystem;
 import org.apache.uima.fit.descriptor.ConfigurationParameter;
+import org.biofid.gazetteer.models.ITreeGazetteerModel;
 import org.biofid.gazetteer.models.TreeGazetteerModel;
 
 import java.io.IOException;
@@ -23,9 +24,10 @@ public class SingleClassTreeGazetteer extends BaseTreeGazetteer {
 	protected String pTaggingTypeName;
 	
 	
-	protected void createTreeModel() throws IOException, ClassNotFoundException {
+	@Override
+	protected ITreeGazetteerModel buildTreeModel() throws IOException, ClassNotFoundException {
 		getLogger().info(String.format("Initializing StringTreeGazetteerModel for %s", Class.forName(pTaggingTypeName).getSimpleName()));
-		stringTreeGazetteerModel = new TreeGazetteerModel(
+		return new TreeGazetteerModel(
 				sourceLocation,
 				pUseLowercase,
 				language,
@@ -35,10 +37,9 @@ public class SingleClassTreeGazetteer extends BaseTreeGazetteer {
 				pAddAbbreviatedTaxa,
 				pMinWordCount,
 				tokenBoundaryRegex,
-				getFilterSet()
+				getFilterSet(),
+				pUseQuerySkips
 		);
-		skipGramTreeRoot = stringTreeGazetteerModel.getTree();
-		skipGramTreeDepth = skipGramTreeRoot.depth();
 	}
 	
 	@Override
@@ -47,7 +48,7 @@ public class SingleClassTreeGazetteer extends BaseTreeGazetteer {
 	}
 	
 	@Override
-	protected Type getTaggingType(String taxon) {
+	protected Type getTaggingType(int taxonId) {
 		return this.taggingType;
 	}
 	
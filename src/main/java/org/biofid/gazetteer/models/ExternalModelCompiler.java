@@ -0,0 +1,361 @@
+package org.biofid.gazetteer.models;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.biofid.gazetteer.tree.SortedTreeWriter;
+import org.biofid.gazetteer.tree.StringTreeNode;
+import org.biofid.gazetteer.tree.TokenVocabulary;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Compiles a {@link MappedTreeGazetteerModel} out of core, for taxa lists whose skip-grams do not fit on the heap.
+ * <p>
+ * The skip-grams of all taxa are buffered together with the ID of their taxon until the buffer exceeds the heap
+ * budget. Each full buffer is sorted by the keys of the skip-grams and spilled to a run file next to the target
+ * location. The runs are merged, resolving skip-grams of more than one taxon like {@link TreeGazetteerModel}, and the
+ * sorted skip-grams are written bottom-up by a {@link SortedTreeWriter}. Thus, neither the skip-grams nor the tree are
+ * ever held in memory as a whole. The taxa with their URIs and the distinct tokens of all skip-grams are kept on the
+ * heap and not covered by the budget.
+ */
+public class ExternalModelCompiler {
+	
+	protected static final Logger logger = Logger.getLogger(ExternalModelCompiler.class);
+	
+	/**
+	 * The number of runs merged at once. If there are more runs, they are merged in several passes.
+	 */
+	private static final int MAX_MERGE_WIDTH = 64;
+	/**
+	 * The estimated heap size of a buffered skip-gram without the characters of its key and value.
+	 */
+	private static final long RECORD_OVERHEAD = 128;
+	/**
+	 * Separates the tokens of a key. It sorts before all other characters, so keys sort like their token sequences.
+	 */
+	private static final char KEY_SEPARATOR = '\0';
+	
+	private final StringGazetteerModel model;
+	private final long heapBudget;
+	private final Pattern tokenBoundaryPattern;
+	
+	/**
+	 * Load the taxa for a compiled model, but do not create any skip-grams yet. The parameters are the same as for
+	 * {@link TreeGazetteerModel} and {@link MultiClassTreeGazetteerModel}.
+	 *
+	 * @param aSourceLocations          The source locations.
+	 * @param bMultiClass               If true, compile a multi-class model with one class per source location.
+	 * @param bUseLowercase             If true, use lower cased skip-grams.
+	 * @param sLanguage                 The language to be used as locale for lower casing.
+	 * @param dMinLength                The minimum skip-gram length.
+	 * @param bAllSkips                 If true, get all m-skip-n-grams of length n > 2.
+	 * @param bSplitHyphen              If true, taxon tokens will be split at hyphens.
+	 * @param bAddAbbreviatedTaxa       If true, additionally add taxa with the first token abbreviated.
+	 * @param iMinWordCountForSkipGrams The lower bound token count for the skip-gram creation.
+	 * @param tokenBoundaryRegex        The token boundary pattern of the tree.
+	 * @param pFilterSet                The set of filtered skip-grams.
+	 * @param bQueryTimeSkips           If true, skip tokens at query time instead of creating skip-grams.
+	 * @param lHeapBudget               The number of bytes of buffered skip-grams before they are spilled to disk.
+	 * @throws IOException If the taxa could not be loaded.
+	 */
+	public ExternalModelCompiler(
+			String[] aSourceLocations,
+			boolean bMultiClass,
+			Boolean bUseLowercase,
+			String sLanguage,
+			double dMinLength,
+			boolean bAllSkips,
+			boolean bSplitHyphen,
+			boolean bAddAbbreviatedTaxa,
+			int iMinWordCountForSkipGrams,
+			String tokenBoundaryRegex,
+			HashSet<String> pFilterSet,
+			boolean bQueryTimeSkips,
+			long lHeapBudget
+	) throws IOException {
+		if (bMultiClass) {
+			model = new MultiClassTaxaModel(aSourceLocations, bUseLowercase, sLanguage, dMinLength, bAllSkips, bSplitHyphen,
+					bAddAbbreviatedTaxa, iMinWordCountForSkipGrams, tokenBoundaryRegex, pFilterSet, bQueryTimeSkips);
+		} else {
+			model = new TaxaModel(aSourceLocations, bUseLowercase, sLanguage, dMinLength, bAllSkips, bSplitHyphen,
+					bAddAbbreviatedTaxa, iMinWordCountForSkipGrams, tokenBoundaryRegex, pFilterSet, bQueryTimeSkips);
+		}
+		heapBudget = lHeapBudget;
+		tokenBoundaryPattern = Pattern.compile(tokenBoundaryRegex, Pattern.UNICODE_CHARACTER_CLASS);
+	}
+	
+	/**
+	 * Compile the model into a file that can be opened with {@link MappedTreeGazetteerModel#MappedTreeGazetteerModel(String)}.
+	 * Run files are spilled to a temporary folder next to the target location, which is deleted afterwards.
+	 *
+	 * @param modelLocation The target location.
+	 * @throws IOException If a run file or the model could not be written.
+	 */
+	public void compile(String modelLocation) throws IOException {
+		long startTime = System.currentTimeMillis();
+		Path target = Paths.get(modelLocation).toAbsolutePath();
+		Files.createDirectories(target.getParent());
+		Path directory = Files.createTempDirectory(target.getParent(), target.getFileName().toString());
+		try {
+			TokenVocabulary taxa = new TokenVocabulary(model.getTaxonUriMap().keySet().toArray(new String[0]));
+			TreeSet<String> tokens = new TreeSet<>();
+			
+			List<Path> runs = spillRuns(taxa, tokens, directory);
+			int pass = 0;
+			while (runs.size() > MAX_MERGE_WIDTH) {
+				ArrayList<Path> merged = new ArrayList<>();
+				for (int i = 0; i < runs.size(); i += MAX_MERGE_WIDTH) {
+					Path run = directory.resolve(String.format("merged-%d-%d", pass, merged.size()));
+					mergeRuns(runs.subList(i, Math.min(runs.size(), i + MAX_MERGE_WIDTH)), run);
+					merged.add(run);
+				}
+				runs = merged;
+				pass++;
+			}
+			
+			TokenVocabulary vocabulary = new TokenVocabulary(tokens.toArray(new String[0]));
+			tokens.clear();
+			try (SortedTreeWriter treeWriter = new SortedTreeWriter(vocabulary, directory)) {
+				int ambiguousSkipGrams = addSkipGrams(runs, taxa, vocabulary, treeWriter);
+				logger.info(String.format("Ignoring %d duplicate skip-grams!", ambiguousSkipGrams));
+				logger.info(String.format("Writing tree with %d nodes..", treeWriter.size()));
+				MappedTreeGazetteerModel.write(model, taxa, modelLocation, out -> {
+					treeWriter.write(out);
+					taxa.write(out);
+					treeWriter.writePayloads(out);
+				});
+			}
+		} finally {
+			FileUtils.deleteDirectory(directory.toFile());
+		}
+		logger.info(String.format("Finished compiling model from %d taxa in %dms.",
+				model.getTaxonUriMap().size(), System.currentTimeMillis() - startTime
+		));
+	}
+	
+	/**
+	 * Create the skip-grams of all taxa and spill them to sorted runs.
+	 *
+	 * @param taxa      The taxa.
+	 * @param tokens    Collects the distinct tokens of all skip-grams.
+	 * @param directory The folder to spill to.
+	 * @return The run files.
+	 */
+	private List<Path> spillRuns(TokenVocabulary taxa, Set<String> tokens, Path directory) throws IOException {
+		ArrayList<Path> runs = new ArrayList<>();
+		ArrayList<Record> buffer = new ArrayList<>();
+		long bufferSize = 0;
+		long skipGramCount = 0;
+		for (int taxonId = 0; taxonId < taxa.size(); taxonId++) {
+			String taxon = taxa.getToken(taxonId);
+			ArrayList<Record> records = new ArrayList<>();
+			int id = taxonId;
+			model.forEachEntryOfTaxon(taxon, (words, skipGram) -> {
+				if (model.isIncluded(skipGram)) {
+					String value = model.useLowercase ? skipGram.toLowerCase() : skipGram;
+					String[] keys = value.equals(skipGram)
+							? StringTreeNode.split(words, value, tokenBoundaryPattern)
+							: StringTreeNode.split(value, tokenBoundaryPattern);
+					Collections.addAll(tokens, keys);
+					records.add(new Record(String.join(String.valueOf(KEY_SEPARATOR), keys), value, id, taxon.equals(skipGram)));
+				}
+			});
+			for (Record record : records) {
+				buffer.add(record);
+				bufferSize += RECORD_OVERHEAD + 2L * (record.key.length() + record.value.length());
+				skipGramCount++;
+				if (bufferSize > heapBudget) {
+					runs.add(spill(buffer, directory.resolve("run-" + runs.size())));
+					bufferSize = 0;
+				}
+			}
+		}
+		if (!buffer.isEmpty() || runs.isEmpty()) {
+			runs.add(spill(buffer, directory.resolve("run-" + runs.size())));
+		}
+		logger.info(String.format("Spilled %d skip-grams of %d taxa to %d runs.", skipGramCount, taxa.size(), runs.size()));
+		return runs;
+	}
+	
+	private static Path spill(ArrayList<Record> buffer, Path run) throws IOException {
+		Record[] records = buffer.toArray(new Record[0]);
+		buffer.clear();
+		Arrays.parallelSort(records);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run)))) {
+			for (Record record : records) {
+				record.write(out);
+			}
+		}
+		return run;
+	}
+	
+	/**
+	 * Merge the given runs into a single run, keeping all records.
+	 */
+	private static void mergeRuns(List<Path> runs, Path target) throws IOException {
+		try (RunMerger merger = new RunMerger(runs);
+			 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(target)))) {
+			Record record;
+			while ((record = merger.next()) != null) {
+				record.write(out);
+			}
+		}
+		for (Path run : runs) {
+			Files.delete(run);
+		}
+	}
+	
+	/**
+	 * Merge the given runs and add one value per key to the tree. Records with the same key are resolved like in
+	 * {@link TreeGazetteerModel}: taxa are always mapped to themselves, other skip-grams of more than one taxon are
+	 * dropped.
+	 *
+	 * @return The number of dropped skip-grams.
+	 */
+	private static int addSkipGrams(List<Path> runs, TokenVocabulary taxa, TokenVocabulary vocabulary, SortedTreeWriter treeWriter) throws IOException {
+		int ambiguousSkipGrams = 0;
+		try (RunMerger merger = new RunMerger(runs)) {
+			Record record = merger.next();
+			while (record != null) {
+				Record selected = record;
+				boolean ambiguous = false;
+				Record next;
+				while ((next = merger.next()) != null && next.key.equals(record.key)) {
+					if (next.isTaxon) {
+						selected = next;
+					} else if (!selected.isTaxon && next.taxonId != selected.taxonId) {
+						ambiguous = true;
+					}
+				}
+				if (selected.isTaxon || !ambiguous) {
+					treeWriter.add(getPath(selected.key, vocabulary), selected.value, selected.taxonId);
+				} else {
+					ambiguousSkipGrams++;
+				}
+				record = next;
+			}
+		}
+		return ambiguousSkipGrams;
+	}
+	
+	private static int[] getPath(String key, TokenVocabulary vocabulary) {
+		String[] keys = key.split(String.valueOf(KEY_SEPARATOR), -1);
+		int[] path = new int[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			path[i] = vocabulary.getId(keys[i]);
+		}
+		return path;
+	}
+	
+	/**
+	 * A skip-gram with the keys of its path, joined by {@link #KEY_SEPARATOR}.
+	 */
+	private static class Record implements Comparable<Record> {
+		final String key;
+		final String value;
+		final int taxonId;
+		/**
+		 * True, if the skip-gram is the taxon itself.
+		 */
+		final boolean isTaxon;
+		
+		Record(String key, String value, int taxonId, boolean isTaxon) {
+			this.key = key;
+			this.value = value;
+			this.taxonId = taxonId;
+			this.isTaxon = isTaxon;
+		}
+		
+		static Record read(DataInputStream in) throws IOException {
+			return new Record(in.readUTF(), in.readUTF(), in.readInt(), in.readBoolean());
+		}
+		
+		void write(DataOutputStream out) throws IOException {
+			out.writeUTF(key);
+			out.writeUTF(value);
+			out.writeInt(taxonId);
+			out.writeBoolean(isTaxon);
+		}
+		
+		@Override
+		public int compareTo(Record other) {
+			int result = key.compareTo(other.key);
+			return result != 0 ? result : Integer.compare(taxonId, other.taxonId);
+		}
+	}
+	
+	/**
+	 * Merges sorted runs into a single sorted sequence of records.
+	 */
+	private static class RunMerger implements Closeable {
+		private final ArrayList<DataInputStream> inputs = new ArrayList<>();
+		private final ArrayList<Integer> remaining = new ArrayList<>();
+		private final PriorityQueue<Map.Entry<Record, Integer>> heads = new PriorityQueue<>(Map.Entry.comparingByKey());
+		
+		RunMerger(List<Path> runs) throws IOException {
+			for (Path run : runs) {
+				DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run)));
+				inputs.add(in);
+				advance(inputs.size() - 1);
+			}
+		}
+		
+		/**
+		 * @return The next record of all runs or null, if all runs are exhausted.
+		 */
+		Record next() throws IOException {
+			Map.Entry<Record, Integer> head = heads.poll();
+			if (head == null) {
+				return null;
+			}
+			advance(head.getValue());
+			return head.getKey();
+		}
+		
+		private void advance(int run) throws IOException {
+			try {
+				heads.add(new AbstractMap.SimpleImmutableEntry<>(Record.read(inputs.get(run)), run));
+			} catch (EOFException e) {
+				inputs.get(run).close();
+			}
+		}
+		
+		@Override
+		public void close() throws IOException {
+			for (DataInputStream in : inputs) {
+				in.close();
+			}
+		}
+	}
+	
+	private static class TaxaModel extends StringGazetteerModel {
+		TaxaModel(String[] aSourceLocations, Boolean bUseLowercase, String sLanguage, double dMinLength, boolean bAllSkips, boolean bSplitHyphen, boolean bAddAbbreviatedTaxa, int iMinWordCountForSkipGrams, String tokenBoundaryRegex, HashSet<String> pFilterSet, boolean bQueryTimeSkips) throws IOException {
+			super(aSourceLocations, bUseLowercase, sLanguage, dMinLength, bAllSkips, bSplitHyphen, bAddAbbreviatedTaxa, iMinWordCountForSkipGrams, tokenBoundaryRegex, pFilterSet, bQueryTimeSkips);
+		}
+		
+		/**
+		 * The skip-grams are created by the compiler instead.
+		 */
+		@Override
+		protected void buildSkipGrams() {
+		}
+	}
+	
+	private static class MultiClassTaxaModel extends MultiClassTreeGazetteerModel {
+		MultiClassTaxaModel(String[] aSourceLocations, Boolean bUseLowercase, String sLanguage, double dMinLength, boolean bAllSkips, boolean bSplitHyphen, boolean bAddAbbreviatedTaxa, int iMinWordCountForSkipGrams, String tokenBoundaryRegex, HashSet<String> pFilterSet, boolean bQueryTimeSkips) throws IOException {
+			super(aSourceLocations, bUseLowercase, sLanguage, dMinLength, bAllSkips, bSplitHyphen, bAddAbbreviatedTaxa, iMinWordCountForSkipGrams, tokenBoundaryRegex, pFilterSet, bQueryTimeSkips);
+		}
+		
+		/**
+		 * The skip-grams are created by the compiler instead.
+		 */
+		@Override
+		protected void buildSkipGrams() {
+		}
+	}
+}
@@ -2,6 +2,7 @@ package org.biofid.gazetteer.models;
 
 import java.net.URI;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -11,4 +12,12 @@ public interface IGazetteerModel {
 	Set<String> getSortedSkipGramSet();
 	
 	Map<String, HashSet<URI>> getTaxonUriMap();
+	
+	/**
+	 * Get the URIs of a taxon as strings, without creating {@link URI} objects.
+	 *
+	 * @param taxon The taxon.
+	 * @return A read-only list of the URIs of the taxon or null, if the taxon is unknown.
+	 */
+	List<String> getUrisFromTaxon(String taxon);
 }
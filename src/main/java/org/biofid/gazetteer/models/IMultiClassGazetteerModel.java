@@ -0,0 +1,20 @@
+package org.biofid.gazetteer.models;
+
+public interface IMultiClassGazetteerModel extends IGazetteerModel {
+	
+	/**
+	 * Get the class of a taxon, which is the index of the source location the taxon was loaded from.
+	 *
+	 * @param taxon The taxon.
+	 * @return The class ID or null, if the taxon is unknown.
+	 */
+	Integer getClassIdFromTaxon(String taxon);
+	
+	/**
+	 * Get the class of a taxon by its ID, see {@link ITreeGazetteerModel#getTaxonId(int)}.
+	 *
+	 * @param taxonId The taxon ID.
+	 * @return The class ID or -1, if the taxon has no class.
+	 */
+	int getClassId(int taxonId);
+}
@@ -1,8 +1,37 @@
 package org.biofid.gazetteer.models;
 
-import org.biofid.gazetteer.tree.ITreeNode;
+import org.biofid.gazetteer.tree.IFrozenTreeNode;
+import org.biofid.gazetteer.tree.ITokenVocabulary;
+
+import java.util.List;
 
 public interface ITreeGazetteerModel extends IGazetteerModel {
 	
-	ITreeNode getTree();
+	IFrozenTreeNode getTree();
+	
+	/**
+	 * Get the taxon a value of the tree was created from. Taxa are numbered densely in the order of
+	 * {@link #getTaxonUriMap()}.
+	 *
+	 * @param valueIndex The index of a value of {@link #getTree()}.
+	 * @return The taxon ID or -1, if the value has no taxon.
+	 */
+	int getTaxonId(int valueIndex);
+	
+	/**
+	 * @return The taxa, each with its taxon ID as token ID.
+	 */
+	ITokenVocabulary getTaxonVocabulary();
+	
+	/**
+	 * @param taxonId A taxon ID as returned by {@link #getTaxonId(int)}.
+	 * @return The taxon.
+	 */
+	String getTaxon(int taxonId);
+	
+	/**
+	 * @param taxonId A taxon ID as returned by {@link #getTaxonId(int)}.
+	 * @return A read-only list of the URIs of the taxon.
+	 */
+	List<String> getUris(int taxonId);
 }
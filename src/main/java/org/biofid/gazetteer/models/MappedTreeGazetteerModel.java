@@ -0,0 +1,371 @@
+package org.biofid.gazetteer.models;
+
+import org.apache.log4j.Logger;
+import org.biofid.gazetteer.tree.FrozenTreeNode;
+import org.biofid.gazetteer.tree.IFrozenTreeNode;
+import org.biofid.gazetteer.tree.ITokenVocabulary;
+import org.biofid.gazetteer.tree.MappedStringTable;
+import org.biofid.gazetteer.tree.MappedTokenVocabulary;
+import org.biofid.gazetteer.tree.MappedTreeNode;
+import org.biofid.gazetteer.tree.TokenVocabulary;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * A compiled gazetteer model, opened from a file through a read-only {@link MappedByteBuffer}.
+ * <p>
+ * The file contains the {@link FrozenTreeNode tree} of a {@link TreeGazetteerModel} together with its taxa, URIs and
+ * (for {@link MultiClassTreeGazetteerModel multi-class models}) class IDs. Nothing but a few buffer views is kept on
+ * the heap, the maps of {@link IGazetteerModel} are read-only views that decode their entries on access. Thus, all
+ * processes on a host opening the same file share a single copy of the model in the page cache.
+ * <p>
+ * Compiled models record the parameters they were built with, see {@link #getBuildParameters()}, but not their
+ * sources. Use {@link #write(ITreeGazetteerModel, String)} to compile a model.
+ */
+public class MappedTreeGazetteerModel implements ITreeGazetteerModel, IMultiClassGazetteerModel {
+	
+	private static final int MAGIC = 0x42474D46; // "BGMF"
+	static final int VERSION = 3;
+	
+	protected static final Logger logger = Logger.getLogger(MappedTreeGazetteerModel.class);
+	
+	private final String buildParameters;
+	private final MappedTreeNode tree;
+	private final MappedTokenVocabulary taxa;
+	/**
+	 * The taxon ID of each value in the tree or -1, if there is no such taxon.
+	 */
+	private final IntBuffer valueTaxa;
+	private final UriTable uris;
+	/**
+	 * The class ID of each taxon or null, if the model was compiled from a single-class model.
+	 */
+	private final IntBuffer classIds;
+	
+	private final Map<String, String> skipGramTaxonLookup = new SkipGramTaxonLookup();
+	private final Map<String, HashSet<URI>> taxonUriMap = new TaxonUriMap();
+	private final Set<String> skipGramSet = new SkipGramSet();
+	
+	/**
+	 * Open a compiled model.
+	 *
+	 * @param modelLocation The location of a file written by {@link #write(ITreeGazetteerModel, String)}.
+	 * @throws IOException If the file can not be read or is not a compiled model.
+	 */
+	public MappedTreeGazetteerModel(String modelLocation) throws IOException {
+		long startTime = System.currentTimeMillis();
+		MappedByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(Paths.get(modelLocation), StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException(String.format("Compiled model '%s' exceeds 2GB!", modelLocation));
+			}
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		
+		if (buffer.getInt() != MAGIC) {
+			throw new IOException(String.format("'%s' is not a compiled gazetteer model!", modelLocation));
+		}
+		int version = buffer.getInt();
+		if (version != VERSION) {
+			throw new IOException(String.format("Compiled model '%s' has version %d, expected %d!", modelLocation, version, VERSION));
+		}
+		buildParameters = new MappedStringTable(buffer).get(0);
+		boolean hasClassIds = buffer.getInt() == 1;
+		
+		tree = new MappedTreeNode(buffer);
+		taxa = new MappedTokenVocabulary(buffer);
+		valueTaxa = MappedStringTable.sliceInts(buffer, tree.nodesWithValue());
+		uris = new UriTable(buffer);
+		classIds = hasClassIds ? MappedStringTable.sliceInts(buffer, taxa.size()) : null;
+		
+		logger.info(String.format("Opened compiled model with %d nodes and %d taxa in %dms.",
+				tree.size(), taxa.size(), System.currentTimeMillis() - startTime
+		));
+	}
+	
+	/**
+	 * Compile the given model into a file that can be opened with {@link #MappedTreeGazetteerModel(String)}. The file
+	 * is written to a temporary location first and moved to the target location afterwards, so concurrent processes
+	 * never see a partially written model.
+	 *
+	 * @param model         A {@link TreeGazetteerModel}.
+	 * @param modelLocation The target location.
+	 * @throws IOException If the file could not be written.
+	 */
+	public static void write(ITreeGazetteerModel model, String modelLocation) throws IOException {
+		if (!(model instanceof TreeGazetteerModel)) {
+			throw new IllegalArgumentException("Only TreeGazetteerModels can be compiled!");
+		}
+		TreeGazetteerModel treeModel = (TreeGazetteerModel) model;
+		FrozenTreeNode frozenTree = (FrozenTreeNode) treeModel.getTree();
+		TokenVocabulary taxonVocabulary = treeModel.getTaxonVocabulary();
+		write(treeModel, taxonVocabulary, modelLocation, out -> {
+			frozenTree.write(out);
+			taxonVocabulary.write(out);
+			
+			for (int i = 0; i < frozenTree.nodesWithValue(); i++) {
+				int taxonId = frozenTree.getPayload(i);
+				out.writeInt(taxonId < 0 ? -1 : taxonId);
+			}
+		});
+	}
+	
+	/**
+	 * Write a compiled model like {@link #write(ITreeGazetteerModel, String)}, but let the caller write the tree, the
+	 * taxa and the taxon ID of each value.
+	 *
+	 * @param model           The model to take the build parameters and the URIs and class IDs of the taxa from.
+	 * @param taxonVocabulary The taxa of the model in the order of {@link IGazetteerModel#getTaxonUriMap()}, so the
+	 *                        taxon IDs agree with {@link IMultiClassGazetteerModel#getClassId(int)}.
+	 * @param modelLocation   The target location.
+	 * @param treeSection     Writes the tree, the taxon vocabulary and the taxon ID of each value.
+	 * @throws IOException If the file could not be written.
+	 */
+	static void write(StringGazetteerModel model, TokenVocabulary taxonVocabulary, String modelLocation, Section treeSection) throws IOException {
+		long startTime = System.currentTimeMillis();
+		boolean hasClassIds = model instanceof IMultiClassGazetteerModel;
+		
+		Path target = Paths.get(modelLocation).toAbsolutePath();
+		Files.createDirectories(target.getParent());
+		Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+		try {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				MappedStringTable.write(out, new String[]{model.getBuildParameters()});
+				out.writeInt(hasClassIds ? 1 : 0);
+				
+				treeSection.write(out);
+				
+				UriTable.write(out, taxonVocabulary.size(), taxonId -> model.getUrisFromTaxon(taxonVocabulary.getToken(taxonId)));
+				
+				if (hasClassIds) {
+					for (int taxonId = 0; taxonId < taxonVocabulary.size(); taxonId++) {
+						out.writeInt(((IMultiClassGazetteerModel) model).getClassId(taxonId));
+					}
+				}
+			}
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+		logger.info(String.format("Compiled model to '%s' in %dms.", target, System.currentTimeMillis() - startTime));
+	}
+	
+	/**
+	 * A section of a compiled model file.
+	 */
+	interface Section {
+		void write(DataOutputStream out) throws IOException;
+	}
+	
+	/**
+	 * @return The parameters the model was built with, see {@link StringGazetteerModel#getBuildParameters()}.
+	 */
+	public String getBuildParameters() {
+		return buildParameters;
+	}
+	
+	@Override
+	public IFrozenTreeNode getTree() {
+		return tree;
+	}
+	
+	@Override
+	public Map<String, String> getSkipGramTaxonLookup() {
+		return skipGramTaxonLookup;
+	}
+	
+	/**
+	 * Get all skip-grams in the tree. Unlike {@link StringGazetteerModel#getSortedSkipGramSet()}, the skip-grams are
+	 * returned in the order of the tree.
+	 *
+	 * @return A read-only view of all skip-grams in the tree.
+	 */
+	@Override
+	public Set<String> getSortedSkipGramSet() {
+		return skipGramSet;
+	}
+	
+	@Override
+	public Map<String, HashSet<URI>> getTaxonUriMap() {
+		return taxonUriMap;
+	}
+	
+	@Override
+	public Integer getClassIdFromTaxon(String taxon) {
+		int taxonId = taxa.getId(taxon);
+		if (classIds == null || taxonId < 0 || classIds.get(taxonId) < 0) {
+			return null;
+		}
+		return classIds.get(taxonId);
+	}
+	
+	@Override
+	public int getClassId(int taxonId) {
+		return classIds == null ? -1 : classIds.get(taxonId);
+	}
+	
+	@Override
+	public int getTaxonId(int valueIndex) {
+		return valueTaxa.get(valueIndex);
+	}
+	
+	@Override
+	public ITokenVocabulary getTaxonVocabulary() {
+		return taxa;
+	}
+	
+	@Override
+	public String getTaxon(int taxonId) {
+		return taxa.getToken(taxonId);
+	}
+	
+	@Override
+	public List<String> getUris(int taxonId) {
+		return uris.getUris(taxonId);
+	}
+	
+	@Override
+	public List<String> getUrisFromTaxon(String taxon) {
+		int taxonId = taxa.getId(taxon);
+		return taxonId < 0 ? null : uris.getUris(taxonId);
+	}
+	
+	private String getTaxonFromValue(int valueIndex) {
+		int taxonId = valueTaxa.get(valueIndex);
+		return taxonId < 0 ? null : taxa.getToken(taxonId);
+	}
+	
+	private HashSet<URI> getUriSet(int taxonId) {
+		HashSet<URI> uriSet = new HashSet<>();
+		for (String uri : uris.getUris(taxonId)) {
+			uriSet.add(URI.create(uri));
+		}
+		return uriSet;
+	}
+	
+	private class SkipGramTaxonLookup extends AbstractMap<String, String> {
+		@Override
+		public String get(Object key) {
+			if (!(key instanceof String)) {
+				return null;
+			}
+			int valueIndex = tree.getValueIndex((String) key);
+			return valueIndex < 0 ? null : getTaxonFromValue(valueIndex);
+		}
+		
+		@Override
+		public boolean containsKey(Object key) {
+			return get(key) != null;
+		}
+		
+		@Override
+		public Set<Entry<String, String>> entrySet() {
+			return new AbstractSet<Entry<String, String>>() {
+				@Override
+				public Iterator<Entry<String, String>> iterator() {
+					return IntStream.range(0, tree.nodesWithValue())
+							.mapToObj(i -> (Entry<String, String>) new SimpleImmutableEntry<>(tree.getValue(i), getTaxonFromValue(i)))
+							.iterator();
+				}
+				
+				@Override
+				public int size() {
+					return tree.nodesWithValue();
+				}
+			};
+		}
+	}
+	
+	private class TaxonUriMap extends AbstractMap<String, HashSet<URI>> {
+		@Override
+		public HashSet<URI> get(Object key) {
+			if (!(key instanceof String)) {
+				return null;
+			}
+			int taxonId = taxa.getId((String) key);
+			return taxonId < 0 ? null : getUriSet(taxonId);
+		}
+		
+		@Override
+		public boolean containsKey(Object key) {
+			return key instanceof String && taxa.getId((String) key) > -1;
+		}
+		
+		@Override
+		public int size() {
+			return taxa.size();
+		}
+		
+		/**
+		 * @return A read-only view of the taxa, which does not decode their URIs.
+		 */
+		@Override
+		public Set<String> keySet() {
+			return new AbstractSet<String>() {
+				@Override
+				public Iterator<String> iterator() {
+					return IntStream.range(0, taxa.size()).mapToObj(taxa::getToken).iterator();
+				}
+				
+				@Override
+				public boolean contains(Object o) {
+					return containsKey(o);
+				}
+				
+				@Override
+				public int size() {
+					return taxa.size();
+				}
+			};
+		}
+		
+		@Override
+		public Set<Entry<String, HashSet<URI>>> entrySet() {
+			return new AbstractSet<Entry<String, HashSet<URI>>>() {
+				@Override
+				public Iterator<Entry<String, HashSet<URI>>> iterator() {
+					return IntStream.range(0, taxa.size())
+							.mapToObj(i -> (Entry<String, HashSet<URI>>) new SimpleImmutableEntry<>(taxa.getToken(i), getUriSet(i)))
+							.iterator();
+				}
+				
+				@Override
+				public int size() {
+					return taxa.size();
+				}
+			};
+		}
+	}
+	
+	private class SkipGramSet extends AbstractSet<String> {
+		@Override
+		public Iterator<String> iterator() {
+			return IntStream.range(0, tree.nodesWithValue()).mapToObj(tree::getValue).iterator();
+		}
+		
+		@Override
+		public boolean contains(Object o) {
+			return o instanceof String && tree.getValueIndex((String) o) > -1;
+		}
+		
+		@Override
+		public int size() {
+			return tree.nodesWithValue();
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package org.biofid.gazetteer.models;
+
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * Locates compiled models in the gazetteer cache folder, see {@link StringGazetteerModel#getTaxaLocation()}.
+ * <p>
+ * Each model is stored under a key, which is a SHA-256 hash over the contents of all source files, all parameters
+ * that change the built model, the {@link StringGazetteerModel#BUILD_VERSION} and the {@link MappedTreeGazetteerModel}
+ * file version. Any change to a source file or a
+ * parameter thus leads to a new key and the model is rebuilt, while stale models are never opened.
+ */
+public class ModelCache {
+	
+	protected static final Logger logger = Logger.getLogger(ModelCache.class);
+	
+	/**
+	 * Get the location of the compiled model for the given sources and parameters in the cache folder. The file may
+	 * not exist yet. Sources given as URLs are downloaded, but archives are hashed without extracting them.
+	 *
+	 * @param aSourceLocations          The source locations, as given to {@link TreeGazetteerModel}.
+	 * @param bMultiClass               If true, the model is a {@link MultiClassTreeGazetteerModel}.
+	 * @param bUseLowercase             If true, use lower cased skip-grams.
+	 * @param sLanguage                 The language to be used as locale for lower casing.
+	 * @param dMinLength                The minimum skip-gram length.
+	 * @param bAllSkips                 If true, get all m-skip-n-grams of length n > 2.
+	 * @param bSplitHyphen              If true, taxon tokens will be split at hyphens.
+	 * @param bAddAbbreviatedTaxa       If true, additionally add taxa with the first token abbreviated.
+	 * @param iMinWordCountForSkipGrams The lower bound token count for the skip-gram creation.
+	 * @param tokenBoundaryRegex        The token boundary pattern of the tree.
+	 * @param pFilterSet                The set of filtered skip-grams.
+	 * @param bQueryTimeSkips           If true, skip tokens at query time instead of creating skip-grams.
+	 * @return The location of the compiled model.
+	 * @throws IOException If a source could not be downloaded or read.
+	 */
+	public static Path getModelLocation(
+			String[] aSourceLocations,
+			boolean bMultiClass,
+			Boolean bUseLowercase,
+			String sLanguage,
+			double dMinLength,
+			boolean bAllSkips,
+			boolean bSplitHyphen,
+			boolean bAddAbbreviatedTaxa,
+			int iMinWordCountForSkipGrams,
+			String tokenBoundaryRegex,
+			Set<String> pFilterSet,
+			boolean bQueryTimeSkips
+	) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		
+		ByteArrayOutputStream parameters = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(parameters)) {
+			out.writeInt(MappedTreeGazetteerModel.VERSION);
+			out.writeInt(StringGazetteerModel.BUILD_VERSION);
+			out.writeBoolean(bMultiClass);
+			out.writeBoolean(bUseLowercase);
+			out.writeUTF(sLanguage);
+			out.writeDouble(dMinLength);
+			out.writeBoolean(bAllSkips);
+			out.writeBoolean(bSplitHyphen);
+			out.writeBoolean(bAddAbbreviatedTaxa);
+			out.writeInt(iMinWordCountForSkipGrams);
+			out.writeUTF(tokenBoundaryRegex);
+			String[] filter = pFilterSet.toArray(new String[0]);
+			Arrays.sort(filter);
+			out.writeInt(filter.length);
+			for (String entry : filter) {
+				out.writeUTF(entry);
+			}
+			out.writeBoolean(bQueryTimeSkips);
+			out.writeInt(aSourceLocations.length);
+		}
+		digest.update(parameters.toByteArray());
+		
+		// The order of the sources matters for multi-class models, the order of files within a folder does not
+		byte[] buffer = new byte[1 << 16];
+		for (String sourceLocation : aSourceLocations) {
+			ArrayList<File> files = new ArrayList<>();
+			File source = new File(StringGazetteerModel.downloadTaxaFiles(sourceLocation));
+			if (source.isDirectory()) {
+				File[] list = source.listFiles();
+				if (list != null) {
+					Arrays.sort(list);
+					files.addAll(Arrays.asList(list));
+				}
+			} else {
+				files.add(source);
+			}
+			digest.update(toBytes(files.size()));
+			for (File file : files) {
+				digest.update(file.getName().getBytes(StandardCharsets.UTF_8));
+				digest.update(toBytes(file.length()));
+				try (InputStream in = Files.newInputStream(file.toPath())) {
+					int read;
+					while ((read = in.read(buffer)) > 0) {
+						digest.update(buffer, 0, read);
+					}
+				}
+			}
+		}
+		
+		StringBuilder key = new StringBuilder();
+		for (byte b : digest.digest()) {
+			key.append(String.format("%02x", b));
+		}
+		Path modelLocation = StringGazetteerModel.getTaxaLocation().resolve("models").resolve(key + ".bgm");
+		logger.info(String.format("Model cache location: '%s'", modelLocation));
+		return modelLocation;
+	}
+	
+	private static byte[] toBytes(long value) {
+		byte[] bytes = new byte[8];
+		for (int i = 7; i >= 0; i--) {
+			bytes[i] = (byte) value;
+			value >>>= 8;
+		}
+		return bytes;
+	}
+}
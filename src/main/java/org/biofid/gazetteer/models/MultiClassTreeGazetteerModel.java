@@ -10,9 +10,13 @@ import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
 
 
-public class MultiClassTreeGazetteerModel extends TreeGazetteerModel {
+public class MultiClassTreeGazetteerModel extends TreeGazetteerModel implements IMultiClassGazetteerModel {
 	private HashMap<String, Integer> fileLocationSourceMapping;
-	private HashMap<String, Integer> taxonSourceMapping;
+	/**
+	 * The class ID of each taxon, indexed by taxon ID. Set by {@link #buildTaxaUriMap()} during the super constructor
+	 * call, so it must not have an initializer.
+	 */
+	private int[] classIds;
 	
 	/**
 	 * Create 1-skip-n-grams from each taxon in a file from a given list of files.
@@ -35,10 +39,31 @@ public class MultiClassTreeGazetteerModel extends TreeGazetteerModel {
 		super(aSourceLocations, bUseLowercase, sLanguage, dMinLength, bAllSkips, bSplitHyphen, bAddAbbreviatedTaxa, iMinWordCountForSkipGrams, tokenBoundaryRegex, pFilterSet);
 	}
 	
+	/**
+	 * Create 1-skip-n-grams from each taxon in a file from a given list of files.
+	 *
+	 * @param aSourceLocations          An array of UTF-8 file locations containing a list of one taxon and any number
+	 *                                  of URIs (comma or space separated) per line.
+	 * @param bUseLowercase             If true, use lower cased skip-grams.
+	 * @param sLanguage                 The language to be used as locale for lower casing.
+	 * @param dMinLength                The minimum skip-gram length. All skip-grams (and taxa) with a length lower than
+	 *                                  this will be omitted.
+	 * @param bAllSkips                 If true, get all m-skip-n-grams of length n > 2.
+	 * @param bSplitHyphen              If true, taxon tokens will be split at hyphens.
+	 * @param bAddAbbreviatedTaxa       If true, additionally add taxa with the first token abbreviated.
+	 * @param iMinWordCountForSkipGrams The lower bound token count for the skip-gram creation.
+	 * @param tokenBoundaryRegex
+	 * @param pFilterSet
+	 * @param bQueryTimeSkips           If true, skip tokens at query time instead of creating skip-grams.
+	 * @throws IOException
+	 */
+	public MultiClassTreeGazetteerModel(String[] aSourceLocations, Boolean bUseLowercase, String sLanguage, double dMinLength, boolean bAllSkips, boolean bSplitHyphen, boolean bAddAbbreviatedTaxa, int iMinWordCountForSkipGrams, String tokenBoundaryRegex, HashSet<String> pFilterSet, boolean bQueryTimeSkips) throws IOException {
+		super(aSourceLocations, bUseLowercase, sLanguage, dMinLength, bAllSkips, bSplitHyphen, bAddAbbreviatedTaxa, iMinWordCountForSkipGrams, tokenBoundaryRegex, pFilterSet, bQueryTimeSkips);
+	}
+	
 	@Override
 	protected ArrayList<String> getTaxaFiles(String[] aSourceLocations) throws IOException {
 		fileLocationSourceMapping = new HashMap<>(10, 1);
-		taxonSourceMapping = new HashMap<>();
 		ArrayList<String> fileLocations = new ArrayList<>();
 		for (int i = 0; i < aSourceLocations.length; i++) {
 			String sourcePath = aSourceLocations[i];
@@ -74,12 +99,13 @@ public class MultiClassTreeGazetteerModel extends TreeGazetteerModel {
 	protected LinkedHashMap<String, HashSet<URI>> buildTaxaUriMap() throws IOException {
 		final AtomicInteger duplicateKeys = new AtomicInteger(0);
 		final LinkedHashMap<String, HashSet<URI>> lTaxonUriMap = new LinkedHashMap<>();
+		final HashMap<String, Integer> taxonSourceMapping = new HashMap<>();
 		
 		logger.info(String.format("Loading entries from %d files", sourceLocations.size()));
+		List<LinkedHashMap<String, HashSet<URI>>> taxaMaps = loadTaxaMaps();
 		for (int i = 0; i < sourceLocations.size(); i++) {
 			String sourceLocation = sourceLocations.get(i);
-			logger.info(String.format("[%d/%d] Loading file %s", i + 1, sourceLocations.size(), sourceLocation));
-			TreeGazetteerModel.loadTaxaMap(sourceLocation, useLowercase, language).forEach((taxon, uri) ->
+			taxaMaps.get(i).forEach((taxon, uri) ->
 					{
 						lTaxonUriMap.merge(taxon, uri, (uUri, vUri) -> {
 							duplicateKeys.incrementAndGet();
@@ -94,10 +120,23 @@ public class MultiClassTreeGazetteerModel extends TreeGazetteerModel {
 		if (duplicateKeys.get() > 0)
 			logger.warn(String.format("Merged %d duplicate entries!", duplicateKeys.get()));
 		
+		// Taxon IDs follow the order of the taxa in the map, taxa from extracted archives have no class
+		classIds = lTaxonUriMap.keySet().stream()
+				.map(taxonSourceMapping::get)
+				.mapToInt(classId -> classId == null ? -1 : classId)
+				.toArray();
+		
 		return lTaxonUriMap;
 	}
 	
+	@Override
 	public Integer getClassIdFromTaxon(String taxon) {
-		return this.taxonSourceMapping.get(taxon);
+		int taxonId = getTaxonIdFromTaxon(taxon);
+		return taxonId < 0 || classIds[taxonId] < 0 ? null : classIds[taxonId];
+	}
+	
+	@Override
+	public int getClassId(int taxonId) {
+		return classIds[taxonId];
 	}
 }
@@ -3,17 +3,14 @@ package org.biofid.gazetteer.models;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
-import com.google.common.collect.Streams;
 import org.apache.commons.collections4.SetUtils;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang3.ArrayUtils;
-import org.apache.commons.math3.util.Combinations;
-import org.apache.commons.math3.util.Pair;
 import org.apache.log4j.Logger;
 import org.apache.uima.util.UriUtils;
 import org.biofid.gazetteer.tree.StringTreeNode;
 import org.texttechnologylab.utilities.helper.FileUtils;
 
+import javax.annotation.Nullable;
 import java.io.*;
 import java.net.MalformedURLException;
 import java.net.URI;
@@ -33,8 +30,32 @@ import java.util.zip.ZipFile;
 
 public class StringGazetteerModel implements IGazetteerModel {
 	
+	protected static final Pattern wordBoundary = Pattern.compile("[\\s\n]+");
+	protected static final Pattern wordBoundaryWithHyphen = Pattern.compile("[\\s\n\\-]+");
+	/**
+	 * The upper bound token count for the skip-gram creation.
+	 */
+	protected static final int maxWordCountForSkipGrams = 5;
+	/**
+	 * The version of the rules that turn taxa into skip-grams and resolve skip-grams of several taxa. Increment it
+	 * whenever the same sources and parameters lead to a different model, so stale compiled models are not opened.
+	 */
+	public static final int BUILD_VERSION = 2;
 	public static final Pattern nonTokenCharacterClass = Pattern.compile("[^\\p{Alpha}\\- ]+", Pattern.UNICODE_CHARACTER_CLASS);
 	
+	/**
+	 * Receives skip-grams together with the words they were joined from.
+	 */
+	@FunctionalInterface
+	protected interface SkipGramConsumer {
+		/**
+		 * @param words    The words the skip-gram was joined from with single spaces, or null if the skip-gram was not
+		 *                 joined from words.
+		 * @param skipGram The skip-gram.
+		 */
+		void accept(@Nullable String[] words, String skipGram);
+	}
+	
 	protected static final Logger logger = Logger.getLogger(StringGazetteerModel.class);
 	protected static final Path tempPath = Paths.get("/tmp/biofid-gazetteer/");
 	protected static final Path cachePath = Paths.get(System.getenv("HOME"), ".cache/biofid-gazetteer/").toAbsolutePath();
@@ -47,6 +68,8 @@ public class StringGazetteerModel implements IGazetteerModel {
 	protected final boolean addAbbreviatedTaxa;
 	protected final HashSet<String> filterSet;
 	protected final int minWordCountForSkipGrams;
+	protected final boolean queryTimeSkips;
+	protected final String tokenBoundaryRegex;
 	
 	Map<String, String> skipGramTaxonLookup;
 	Set<String> sortedSkipGramSet;
@@ -81,6 +104,42 @@ public class StringGazetteerModel implements IGazetteerModel {
 			String tokenBoundaryRegex,
 			HashSet<String> pFilterSet
 	) throws IOException {
+		this(aSourceLocations, bUseLowercase, sLanguage, dMinLength, bAllSkips, bSplitHyphen, bAddAbbreviatedTaxa, iMinWordCountForSkipGrams, tokenBoundaryRegex, pFilterSet, false);
+	}
+	
+	/**
+	 * Create 1-skip-n-grams from each taxon in a file from a given list of files.
+	 *
+	 * @param aSourceLocations          An array of UTF-8 file locations containing a list of one taxon and any number
+	 *                                  of URIs (comma or space separated) per line.
+	 * @param bUseLowercase             If true, use lower cased skip-grams.
+	 * @param sLanguage                 The language to be used as locale for lower casing.
+	 * @param dMinLength                The minimum skip-gram length. All skip-grams (and taxa) with a length lower than
+	 *                                  this will be omitted.
+	 * @param bAllSkips                 If true, get all m-skip-n-grams of length n > 2.
+	 * @param bSplitHyphen              If true, taxon tokens will be split at hyphens.
+	 * @param bAddAbbreviatedTaxa       If true, additionally add taxa with the first token abbreviated.
+	 * @param iMinWordCountForSkipGrams The lower bound token count for the skip-gram creation.
+	 * @param tokenBoundaryRegex
+	 * @param pFilterSet
+	 * @param bQueryTimeSkips           If true, do not create skip-grams but only the entries required to skip tokens
+	 *                                  at query time, see {@link #getQuerySkipEntriesFromTaxon}.
+	 * @throws IOException
+	 */
+	public StringGazetteerModel(
+			String[] aSourceLocations,
+			Boolean bUseLowercase,
+			String sLanguage,
+			double dMinLength,
+			boolean bAllSkips,
+			boolean bSplitHyphen,
+			boolean bAddAbbreviatedTaxa,
+			int iMinWordCountForSkipGrams,
+			String tokenBoundaryRegex,
+			HashSet<String> pFilterSet,
+			boolean bQueryTimeSkips
+	) throws IOException {
+		queryTimeSkips = bQueryTimeSkips;
 		sourceLocations = getTaxaFiles(aSourceLocations);
 		useLowercase = bUseLowercase;
 		language = sLanguage;
@@ -90,12 +149,20 @@ public class StringGazetteerModel implements IGazetteerModel {
 		addAbbreviatedTaxa = bAddAbbreviatedTaxa;
 		minWordCountForSkipGrams = iMinWordCountForSkipGrams;
 		filterSet = pFilterSet;
-		
-		long startTime = System.currentTimeMillis();
+		this.tokenBoundaryRegex = tokenBoundaryRegex;
 		
 		// Map: Taxon -> {URI}
 		taxonUriMap = buildTaxaUriMap();
 		
+		buildSkipGrams();
+	}
+	
+	/**
+	 * Create the skip-grams of all taxa in the {@link #taxonUriMap}. Called once by the constructor.
+	 */
+	protected void buildSkipGrams() {
+		long startTime = System.currentTimeMillis();
+		
 		// Map: {Skip-Grams} -> Taxon
 		skipGramTaxonLookup = buildSkipGramTaxonLookup();
 		
@@ -112,10 +179,9 @@ public class StringGazetteerModel implements IGazetteerModel {
 		final LinkedHashMap<String, HashSet<URI>> lTaxonUriMap = new LinkedHashMap<>();
 		
 		logger.info(String.format("Loading entries from %d files..", sourceLocations.size()));
-		for (int i = 0; i < sourceLocations.size(); i++) {
-			String sourceLocation = sourceLocations.get(i);
-			logger.info(String.format("[%d/%d] Loading file %s", i + 1, sourceLocations.size(), sourceLocation));
-			TreeGazetteerModel.loadTaxaMap(sourceLocation, useLowercase, language).forEach((taxon, uri) ->
+		List<LinkedHashMap<String, HashSet<URI>>> taxaMaps = loadTaxaMaps();
+		for (LinkedHashMap<String, HashSet<URI>> taxaMap : taxaMaps) {
+			taxaMap.forEach((taxon, uri) ->
 					lTaxonUriMap.merge(taxon, uri, (uUri, vUri) -> {
 						duplicateKeys.incrementAndGet();
 						return new HashSet<>(SetUtils.union(uUri, vUri));
@@ -130,20 +196,19 @@ public class StringGazetteerModel implements IGazetteerModel {
 	}
 	
 	protected LinkedHashMap<String, String> buildSkipGramTaxonLookup() {
-		AtomicInteger duplicateKeys = new AtomicInteger(0);
-		final LinkedHashMap<String, String> lSkipGramTaxonLookup = taxonUriMap.keySet().stream()
-				.flatMap(s -> getSkipGramsFromTaxon(s, this.addAbbreviatedTaxa, this.minWordCountForSkipGrams, this.getAllSkips, this.splitHyphen)
-						.stream().map(val -> new Pair<>(s, val)))
-				.collect(Collectors.toMap(
-						Pair::getSecond,    // the skip-gram
-						Pair::getFirst,     // the corresponding taxon
-						(u, v) -> {
-							// Drop duplicate skip-grams to ensure bijective skip-gram <-> taxon mapping.
-							duplicateKeys.incrementAndGet();
-							return null;
-						},
-						LinkedHashMap::new));
-		logger.info(String.format("Ignoring %d duplicate skip-grams!", duplicateKeys.get()));
+		final LinkedHashMap<String, String> lSkipGramTaxonLookup = new LinkedHashMap<>();
+		// Drop duplicate skip-grams to ensure bijective skip-gram <-> taxon mapping. They are remembered, so a third
+		// taxon with the same skip-gram does not add it again.
+		final HashSet<String> duplicateKeys = new HashSet<>();
+		for (String taxon : taxonUriMap.keySet()) {
+			for (String skipGram : getEntriesFromTaxon(taxon)) {
+				if (!duplicateKeys.contains(skipGram) && lSkipGramTaxonLookup.putIfAbsent(skipGram, taxon) != null) {
+					lSkipGramTaxonLookup.remove(skipGram);
+					duplicateKeys.add(skipGram);
+				}
+			}
+		}
+		logger.info(String.format("Ignoring %d duplicate skip-grams!", duplicateKeys.size()));
 		
 		// Ensure actual taxa are contained in lSkipGramTaxonLookup
 		taxonUriMap.keySet().forEach(tax -> lSkipGramTaxonLookup.put(tax, tax));
@@ -151,6 +216,55 @@ public class StringGazetteerModel implements IGazetteerModel {
 		return lSkipGramTaxonLookup;
 	}
 	
+	/**
+	 * Get the skip-grams of the given taxon, or only its entries for query time skips if {@link #queryTimeSkips} is
+	 * set.
+	 *
+	 * @param taxon The taxon.
+	 * @return A set of skip-grams, which may contain the taxon itself.
+	 */
+	protected Set<String> getEntriesFromTaxon(String taxon) {
+		return queryTimeSkips
+				? getQuerySkipEntriesFromTaxon(taxon, this.addAbbreviatedTaxa, this.minWordCountForSkipGrams, this.getAllSkips, this.splitHyphen)
+				: getSkipGramsFromTaxon(taxon, this.addAbbreviatedTaxa, this.minWordCountForSkipGrams, this.getAllSkips, this.splitHyphen);
+	}
+	
+	/**
+	 * Pass each entry of {@link #getEntriesFromTaxon(String)} and the taxon itself to the given consumer, each distinct
+	 * entry only once. Skip-grams are passed together with their words, so they need not be split again.
+	 *
+	 * @param taxon    The taxon.
+	 * @param consumer The consumer of the entries.
+	 */
+	protected void forEachEntryOfTaxon(String taxon, SkipGramConsumer consumer) {
+		HashSet<String> entries = new HashSet<>();
+		SkipGramConsumer distinctConsumer = (words, entry) -> {
+			if (entries.add(entry)) {
+				consumer.accept(words, entry);
+			}
+		};
+		if (queryTimeSkips) {
+			for (String entry : getQuerySkipEntriesFromTaxon(taxon, this.addAbbreviatedTaxa, this.minWordCountForSkipGrams, this.getAllSkips, this.splitHyphen)) {
+				distinctConsumer.accept(null, entry);
+			}
+		} else {
+			forEachSkipGramOfTaxon(taxon, this.addAbbreviatedTaxa, this.minWordCountForSkipGrams, this.getAllSkips, this.splitHyphen, distinctConsumer);
+		}
+		distinctConsumer.accept(null, taxon);
+	}
+	
+	/**
+	 * Check if the given skip-gram is long enough and not filtered.
+	 *
+	 * @param skipGram The skip-gram.
+	 * @return True, if the skip-gram is to be inserted into the tree.
+	 */
+	protected boolean isIncluded(String skipGram) {
+		return !Strings.isNullOrEmpty(skipGram)
+				&& skipGram.length() >= this.minLength
+				&& !filterSet.contains(skipGram.toLowerCase());
+	}
+	
 	protected LinkedHashSet<String> buildSortedSkipGramSet() {
 		return skipGramTaxonLookup.keySet().stream()
 				.filter(s -> !Strings.isNullOrEmpty(s))
@@ -166,7 +280,7 @@ public class StringGazetteerModel implements IGazetteerModel {
 	 * @return taxonUriMap.get(skipGramTaxonLookup.get ( skipGram))
 	 */
 	public Set<URI> getUriFromSkipGram(String skipGram) {
-		return taxonUriMap.get(skipGramTaxonLookup.get(skipGram));
+		return taxonUriMap.get(getSkipGramTaxonLookup().get(skipGram));
 	}
 	
 	protected ArrayList<String> getTaxaFiles(String[] aSourceLocations) throws IOException {
@@ -197,25 +311,80 @@ public class StringGazetteerModel implements IGazetteerModel {
 	}
 	
 	/**
-	 * Load taxa from UTF-8 file, one taxon per line.
+	 * Load all {@link #sourceLocations} concurrently with {@link #loadTaxaMap(String, Boolean, String)}, one task per
+	 * file.
+	 *
+	 * @return The taxa maps, in the order of {@link #sourceLocations}.
+	 * @throws IOException if a file is not found or an error occurs.
+	 */
+	protected List<LinkedHashMap<String, HashSet<URI>>> loadTaxaMaps() throws IOException {
+		try {
+			return IntStream.range(0, sourceLocations.size())
+					.parallel()
+					.mapToObj(i -> {
+						String sourceLocation = sourceLocations.get(i);
+						logger.info(String.format("[%d/%d] Loading file %s", i + 1, sourceLocations.size(), sourceLocation));
+						try {
+							return loadTaxaMap(sourceLocation, useLowercase, language);
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+					})
+					.collect(Collectors.toList());
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+	
+	/**
+	 * Load taxa from UTF-8 file, one taxon per line. Each line holds a taxon, a tab and any number of URIs, separated
+	 * by commas or spaces. All characters of the taxon matching {@link #nonTokenCharacterClass} are removed.
 	 *
 	 * @return ArrayList of taxa.
 	 * @throws IOException if file is not found or an error occurs.
 	 */
 	protected static LinkedHashMap<String, HashSet<URI>> loadTaxaMap(String sourceLocation, Boolean pUseLowercase, String language) throws IOException {
-		try (BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(Files.newInputStream(Paths.get(sourceLocation)), StandardCharsets.UTF_8))) {
-			return bufferedReader.lines()
-					.filter(s -> !Strings.isNullOrEmpty(s))
-					.collect(Collectors.toMap(
-							s -> {
-								String taxon = nonTokenCharacterClass.matcher(s.split("\t", 2)[0]).replaceAll("").trim();
-								return pUseLowercase ? taxon.toLowerCase(Locale.forLanguageTag(language)) : taxon;
-							},
-							s -> Arrays.stream(s.split("\t", 2)[1].split("[ ,]")).map(UriUtils::create).collect(Collectors.toCollection(HashSet::new)),
-							(u, v) -> new HashSet<>(SetUtils.union(u, v)),
-							LinkedHashMap::new)
-					);
+		Locale locale = Locale.forLanguageTag(language);
+		LinkedHashMap<String, HashSet<URI>> taxaMap = new LinkedHashMap<>();
+		StringBuilder taxonBuilder = new StringBuilder();
+		try (BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(Files.newInputStream(Paths.get(sourceLocation)), StandardCharsets.UTF_8), 1 << 20)) {
+			String line;
+			while ((line = bufferedReader.readLine()) != null) {
+				if (line.isEmpty()) {
+					continue;
+				}
+				int tab = line.indexOf('\t');
+				if (tab < 0) {
+					tab = line.length();
+				}
+				
+				// Keep letters, hyphens and spaces, same as removing nonTokenCharacterClass
+				taxonBuilder.setLength(0);
+				for (int i = 0; i < tab; ) {
+					int codePoint = line.codePointAt(i);
+					if (codePoint == ' ' || codePoint == '-' || Character.isAlphabetic(codePoint)) {
+						taxonBuilder.appendCodePoint(codePoint);
+					}
+					i += Character.charCount(codePoint);
+				}
+				String taxon = taxonBuilder.toString().trim();
+				if (pUseLowercase) {
+					taxon = taxon.toLowerCase(locale);
+				}
+				
+				HashSet<URI> uris = taxaMap.computeIfAbsent(taxon, k -> new HashSet<>());
+				int start = tab + 1;
+				for (int i = start; i <= line.length(); i++) {
+					if (i == line.length() || line.charAt(i) == ' ' || line.charAt(i) == ',') {
+						if (i > start) {
+							uris.add(UriUtils.create(line.substring(start, i)));
+						}
+						start = i + 1;
+					}
+				}
+			}
 		}
+		return taxaMap;
 	}
 	
 	/**
@@ -225,7 +394,7 @@ public class StringGazetteerModel implements IGazetteerModel {
 	 * @return
 	 * @throws IOException
 	 */
-	protected String downloadTaxaFiles(String sourceLocation) throws IOException {
+	protected static String downloadTaxaFiles(String sourceLocation) throws IOException {
 		try {
 			URL url = new URL(sourceLocation);
 			String taxaLocation = getTaxaLocation().toString();
@@ -289,6 +458,48 @@ public class StringGazetteerModel implements IGazetteerModel {
 		return gazetteerFolder;
 	}
 	
+	/**
+	 * Describe the parameters this model was built with, see
+	 * {@link #getBuildParameters(boolean, Boolean, String, double, boolean, boolean, boolean, int, String, Set, boolean)}.
+	 *
+	 * @return The build parameters as a single line.
+	 */
+	public String getBuildParameters() {
+		return getBuildParameters(this instanceof IMultiClassGazetteerModel, useLowercase, language, minLength, getAllSkips,
+				splitHyphen, addAbbreviatedTaxa, minWordCountForSkipGrams, tokenBoundaryRegex, filterSet, queryTimeSkips);
+	}
+	
+	/**
+	 * Describe the parameters that change the built model, except for the sources, together with the
+	 * {@link #BUILD_VERSION}. Compiled models store this
+	 * description, so an engine can check that a model was built with its own parameters, see
+	 * {@link MappedTreeGazetteerModel#getBuildParameters()}. The filtered skip-grams are described by their number and
+	 * a hash.
+	 *
+	 * @return The build parameters as a single line.
+	 */
+	public static String getBuildParameters(
+			boolean bMultiClass,
+			Boolean bUseLowercase,
+			String sLanguage,
+			double dMinLength,
+			boolean bAllSkips,
+			boolean bSplitHyphen,
+			boolean bAddAbbreviatedTaxa,
+			int iMinWordCountForSkipGrams,
+			String tokenBoundaryRegex,
+			Set<String> pFilterSet,
+			boolean bQueryTimeSkips
+	) {
+		String[] filter = pFilterSet.toArray(new String[0]);
+		Arrays.sort(filter);
+		return String.format("build=%d, multiClass=%b, lowercase=%b, language=%s, minLength=%s, allSkips=%b, splitHyphen=%b, "
+						+ "abbreviatedTaxa=%b, minWordCount=%d, tokenBoundaryRegex=%s, filter=%d words #%08x, querySkips=%b",
+				BUILD_VERSION, bMultiClass, bUseLowercase, sLanguage, dMinLength, bAllSkips, bSplitHyphen,
+				bAddAbbreviatedTaxa, iMinWordCountForSkipGrams, tokenBoundaryRegex, filter.length, Arrays.hashCode(filter), bQueryTimeSkips
+		);
+	}
+	
 	/**
 	 * Calls {@link #getSkipGramsFromTaxonAsStream getSkipGramsFromTaxonAsStream(String)} and collects the result in a
 	 * Set.
@@ -301,70 +512,168 @@ public class StringGazetteerModel implements IGazetteerModel {
 	 * @return a List of Strings.
 	 */
 	public static Set<String> getSkipGramsFromTaxon(String pString, boolean addAbbreviatedTaxa, int minWordCountForSkipGrams, boolean getAllSkips, boolean splitHyphen) {
-		HashSet<String> basicSkipGrams = getSkipGramsFromTaxonAsStream(pString, minWordCountForSkipGrams, getAllSkips, splitHyphen, 5);
+		HashSet<String> basicSkipGrams = new HashSet<>();
+		forEachSkipGramOfTaxon(pString, addAbbreviatedTaxa, minWordCountForSkipGrams, getAllSkips, splitHyphen, (words, skipGram) -> basicSkipGrams.add(skipGram));
+		return basicSkipGrams;
+	}
+	
+	/**
+	 * Like {@link #getSkipGramsFromTaxon}, but pass each skip-gram with its words to the given consumer instead of
+	 * collecting them. A skip-gram may be passed more than once.
+	 */
+	protected static void forEachSkipGramOfTaxon(String pString, boolean addAbbreviatedTaxa, int minWordCountForSkipGrams, boolean getAllSkips, boolean splitHyphen, SkipGramConsumer consumer) {
+		forEachSkipGram(pString, minWordCountForSkipGrams, getAllSkips, splitHyphen, maxWordCountForSkipGrams, consumer);
 		
 		if (addAbbreviatedTaxa) {
 			ArrayList<String> words = getWords(pString, splitHyphen);
 			if (words.size() > 1) {
 				words.set(0, pString.charAt(0) + ".");
 				String abbreviatedString = String.join(" ", words);
-				basicSkipGrams.add(abbreviatedString);
+				consumer.accept(words.toArray(new String[0]), abbreviatedString);
 				if (words.size() > 2) {
-					basicSkipGrams.addAll(getSkipGramsFromTaxonAsStream(abbreviatedString, minWordCountForSkipGrams, getAllSkips, splitHyphen, 5));
+					forEachSkipGram(abbreviatedString, minWordCountForSkipGrams, getAllSkips, splitHyphen, maxWordCountForSkipGrams, consumer);
 				}
 			}
 		}
-		return basicSkipGrams;
 	}
 	
 	/**
-	 * Get a List of 1-skip-n-grams for the given string. The string itself is always the first element of the list. The
-	 * string is split by whitespaces and all n over n-1 combinations are computed and added to the list. If there is
-	 * only a single word in the given string, a singleton list with that word is returned.
+	 * Get a List of 1-skip-n-grams for the given string. The string is split by whitespaces and all n over n-1
+	 * combinations are computed and added to the list. If the number of words is out of bounds, a singleton list with
+	 * the string is returned.
+	 * <p>
+	 * The words of each skip-gram are chosen by the bits of a mask over the words array, so the combinations are
+	 * enumerated without any boxing or intermediate collections.
 	 *
 	 * @param pString                  the target String.
 	 * @param minWordCountForSkipGrams
 	 * @param getAllSkips
 	 * @param splitHyphen
 	 * @param maxWordCountForSkipGrams
-	 * @return a Stream of Strings.
+	 * @return a Set of Strings.
 	 */
 	protected static HashSet<String> getSkipGramsFromTaxonAsStream(String pString, int minWordCountForSkipGrams, boolean getAllSkips, boolean splitHyphen, int maxWordCountForSkipGrams) {
+		HashSet<String> skipGrams = new HashSet<>();
+		forEachSkipGram(pString, minWordCountForSkipGrams, getAllSkips, splitHyphen, maxWordCountForSkipGrams, (words, skipGram) -> skipGrams.add(skipGram));
+		return skipGrams;
+	}
+	
+	/**
+	 * Like {@link #getSkipGramsFromTaxonAsStream}, but pass each skip-gram with the words chosen by its mask to the
+	 * given consumer instead of collecting them. If the number of words is out of bounds, only the string itself is
+	 * passed, without words.
+	 */
+	protected static void forEachSkipGram(String pString, int minWordCountForSkipGrams, boolean getAllSkips, boolean splitHyphen, int maxWordCountForSkipGrams, SkipGramConsumer consumer) {
 		ArrayList<String> words = getWords(pString, splitHyphen);
-		if (words.size() < minWordCountForSkipGrams | words.size() > maxWordCountForSkipGrams) {
-			return Sets.newHashSet(pString);
-		} else {
-			IntStream combinationRange;
-			if (getAllSkips && words.size() > 3) {
-				combinationRange = IntStream.range(2, words.size());
-			} else {
-				combinationRange = IntStream.of(words.size() - 1);
+		int wordCount = words.size();
+		if (wordCount < minWordCountForSkipGrams | wordCount > maxWordCountForSkipGrams) {
+			consumer.accept(null, pString);
+			return;
+		}
+		
+		int minCombinationSize = getAllSkips && wordCount > 3 ? 2 : wordCount - 1;
+		int maxCombinationSize = wordCount - 1;
+		StringBuilder skipGram = new StringBuilder(pString.length());
+		for (int mask = 1; mask < 1 << wordCount; mask++) {
+			int combinationSize = Integer.bitCount(mask);
+			if (combinationSize < minCombinationSize || combinationSize > maxCombinationSize) {
+				continue;
 			}
-			
-			Stream<Integer[]> combinationsArraysStream = combinationRange
-					.boxed()
-					.map(i -> new Combinations(words.size(), i).iterator())
-					.flatMap(Streams::stream)
-					.map(ArrayUtils::toObject);
-			
-			return combinationsArraysStream
-					.parallel()
-					.map(combination -> {
-						ArrayList<String> strings = new ArrayList<>();
-						for (int index : combination) {
-							strings.add(words.get(index));
-						}
-						return String.join(" ", strings);
-					}).collect(Collectors.toCollection(HashSet::new));
+			String[] skipGramWords = new String[combinationSize];
+			int skipGramWordCount = 0;
+			skipGram.setLength(0);
+			for (int i = 0; i < wordCount; i++) {
+				if ((mask & (1 << i)) != 0) {
+					if (skipGram.length() > 0) {
+						skipGram.append(' ');
+					}
+					skipGram.append(words.get(i));
+					skipGramWords[skipGramWordCount++] = words.get(i);
+				}
+			}
+			consumer.accept(skipGramWords, skipGram.toString());
 		}
 	}
 	
+	/**
+	 * Get the entries of a taxon for skipping tokens at query time. Like {@link #getSkipGramsFromTaxon}, but instead of
+	 * all skip-grams, only the suffixes of the taxon's words are returned, which start after the leading words that
+	 * may be skipped. All other skips are resolved by {@link org.biofid.gazetteer.tree.SkipMatcher}, using
+	 * {@link #getAllowedQuerySkips}.
+	 *
+	 * @param pString                  the target String.
+	 * @param addAbbreviatedTaxa
+	 * @param minWordCountForSkipGrams
+	 * @param getAllSkips
+	 * @param splitHyphen
+	 * @return a Set of Strings.
+	 */
+	public static Set<String> getQuerySkipEntriesFromTaxon(String pString, boolean addAbbreviatedTaxa, int minWordCountForSkipGrams, boolean getAllSkips, boolean splitHyphen) {
+		HashSet<String> entries = getQuerySkipEntries(pString, minWordCountForSkipGrams, getAllSkips, splitHyphen);
+		
+		if (addAbbreviatedTaxa) {
+			ArrayList<String> words = getWords(pString, splitHyphen);
+			if (words.size() > 1) {
+				words.set(0, pString.charAt(0) + ".");
+				String abbreviatedString = String.join(" ", words);
+				entries.add(abbreviatedString);
+				if (words.size() > 2) {
+					entries.addAll(getQuerySkipEntries(abbreviatedString, minWordCountForSkipGrams, getAllSkips, splitHyphen));
+				}
+			}
+		}
+		return entries;
+	}
+	
+	protected static HashSet<String> getQuerySkipEntries(String pString, int minWordCountForSkipGrams, boolean getAllSkips, boolean splitHyphen) {
+		ArrayList<String> words = getWords(pString, splitHyphen);
+		int wordCount = words.size();
+		if (wordCount < minWordCountForSkipGrams | wordCount > maxWordCountForSkipGrams) {
+			return Sets.newHashSet(pString);
+		}
+		
+		// The words themselves allow skipping within hyphenated words, the suffixes skipping leading words
+		HashSet<String> entries = new HashSet<>();
+		for (int leadingSkips = 0; leadingSkips <= getMaxSkips(wordCount, getAllSkips); leadingSkips++) {
+			entries.add(String.join(" ", words.subList(leadingSkips, wordCount)));
+		}
+		return entries;
+	}
+	
+	/**
+	 * Get the number of tokens, that may be skipped at query time on the path to the given entry.
+	 *
+	 * @param entry                    An entry returned by {@link #getQuerySkipEntriesFromTaxon}.
+	 * @param taxon                    The taxon of the entry.
+	 * @param minWordCountForSkipGrams
+	 * @param getAllSkips
+	 * @param splitHyphen
+	 * @param tokenBoundaryRegex       The pattern the entry was split into tree tokens with.
+	 * @return The number of tokens that may be skipped.
+	 */
+	public static int getAllowedQuerySkips(String entry, String taxon, int minWordCountForSkipGrams, boolean getAllSkips, boolean splitHyphen, Pattern tokenBoundaryRegex) {
+		int wordCount = getWords(taxon, splitHyphen).size();
+		if (wordCount < minWordCountForSkipGrams | wordCount > maxWordCountForSkipGrams) {
+			return 0;
+		}
+		int entryWordCount = getWords(entry, splitHyphen).size();
+		if (tokenBoundaryRegex.split(entry.trim()).length != entryWordCount) {
+			// Tokens of the tree do not correspond to words
+			return 0;
+		}
+		return Math.max(0, getMaxSkips(wordCount, getAllSkips) - (wordCount - entryWordCount));
+	}
+	
+	private static int getMaxSkips(int wordCount, boolean getAllSkips) {
+		return getAllSkips && wordCount > 3 ? wordCount - 2 : 1;
+	}
+	
 	protected static ArrayList<String> getWords(String pString, boolean splitHyphen) {
 		ArrayList<String> words;
 		if (splitHyphen) {
-			words = Lists.newArrayList(pString.split("[\\s\n\\-]+"));
+			words = Lists.newArrayList(wordBoundaryWithHyphen.split(pString));
 		} else {
-			words = Lists.newArrayList(pString.split("[\\s\n]+"));
+			words = Lists.newArrayList(wordBoundary.split(pString));
 		}
 		return words;
 	}
@@ -385,7 +694,7 @@ public class StringGazetteerModel implements IGazetteerModel {
 	 * @return A stream of strings by calling: this.skipGramSet.stream().
 	 */
 	public Stream<String> stream() {
-		return this.sortedSkipGramSet.stream();
+		return getSortedSkipGramSet().stream();
 	}
 	
 	@Override
@@ -403,4 +712,10 @@ public class StringGazetteerModel implements IGazetteerModel {
 		return taxonUriMap;
 	}
 	
+	@Override
+	public List<String> getUrisFromTaxon(String taxon) {
+		HashSet<URI> uriSet = getTaxonUriMap().get(taxon);
+		return uriSet == null ? null : uriSet.stream().map(URI::toString).collect(Collectors.toList());
+	}
+
 }
@@ -1,15 +1,44 @@
 package org.biofid.gazetteer.models;
 
-import org.biofid.gazetteer.tree.ITreeNode;
+import org.biofid.gazetteer.tree.FrozenTreeNode;
+import org.biofid.gazetteer.tree.IFrozenTreeNode;
 import org.biofid.gazetteer.tree.StringTreeNode;
+import org.biofid.gazetteer.tree.TokenVocabulary;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.HashSet;
-
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
 
+/**
+ * A gazetteer model holding its skip-grams in a {@link FrozenTreeNode}.
+ * <p>
+ * Unlike {@link StringGazetteerModel}, the skip-grams are streamed from each taxon straight into the tree, together
+ * with the ID of their taxon as payload. Neither a skip-gram to taxon map nor a sorted copy of all skip-grams is ever
+ * built, {@link #getSkipGramTaxonLookup()} and {@link #getSortedSkipGramSet()} are read-only views of the tree. Once
+ * the tree is built, the URIs of the taxa are moved into a {@link UriTable} indexed by taxon ID and
+ * {@link #getTaxonUriMap()} becomes a read-only view of it as well.
+ */
 public class TreeGazetteerModel extends StringGazetteerModel implements ITreeGazetteerModel {
 	
-	private final StringTreeNode tree;
+	/**
+	 * The payload of skip-grams created from more than one taxon.
+	 */
+	private static final int AMBIGUOUS = -2;
+	
+	// All are set by buildSkipGrams() during the super constructor call, so they must not have an initializer
+	private FrozenTreeNode tree;
+	private TokenVocabulary taxa;
+	private UriTable uris;
+	
+	private final Map<String, String> skipGramTaxonView = new SkipGramTaxonLookup();
+	private final Set<String> skipGramView = new SkipGramSet();
 	
 	/**
 	 * Create 1-skip-n-grams from each taxon in a file from a given list of files.
@@ -40,17 +69,308 @@ public class TreeGazetteerModel extends StringGazetteerModel implements ITreeGaz
 			String tokenBoundaryRegex,
 			HashSet<String> pFilterSet
 	) throws IOException {
-		super(aSourceLocations, bUseLowercase, sLanguage, dMinLength, bAllSkips, bSplitHyphen, bAddAbbreviatedTaxa, iMinWordCountForSkipGrams, tokenBoundaryRegex, pFilterSet);
+		this(aSourceLocations, bUseLowercase, sLanguage, dMinLength, bAllSkips, bSplitHyphen, bAddAbbreviatedTaxa, iMinWordCountForSkipGrams, tokenBoundaryRegex, pFilterSet, false);
+	}
+	
+	/**
+	 * Create 1-skip-n-grams from each taxon in a file from a given list of files.
+	 *
+	 * @param aSourceLocations          An array of UTF-8 file locations containing a list of one taxon and any number
+	 *                                  of URIs (comma or space separated) per line.
+	 * @param bUseLowercase             If true, use lower cased skip-grams.
+	 * @param sLanguage                 The language to be used as locale for lower casing.
+	 * @param dMinLength                The minimum skip-gram length. All skip-grams (and taxa) with a length lower than
+	 *                                  this will be omitted.
+	 * @param bAllSkips                 If true, get all m-skip-n-grams of length n > 2.
+	 * @param bSplitHyphen              If true, taxon tokens will be split at hyphens.
+	 * @param bAddAbbreviatedTaxa       If true, additionally add taxa with the first token abbreviated.
+	 * @param iMinWordCountForSkipGrams The lower bound token count for the skip-gram creation.
+	 * @param tokenBoundaryRegex
+	 * @param pFilterSet
+	 * @param bQueryTimeSkips           If true, skip tokens at query time instead of creating skip-grams.
+	 * @throws IOException
+	 */
+	public TreeGazetteerModel(
+			String[] aSourceLocations,
+			Boolean bUseLowercase,
+			String sLanguage,
+			double dMinLength,
+			boolean bAllSkips,
+			boolean bSplitHyphen,
+			boolean bAddAbbreviatedTaxa,
+			int iMinWordCountForSkipGrams,
+			String tokenBoundaryRegex,
+			HashSet<String> pFilterSet,
+			boolean bQueryTimeSkips
+	) throws IOException {
+		super(aSourceLocations, bUseLowercase, sLanguage, dMinLength, bAllSkips, bSplitHyphen, bAddAbbreviatedTaxa, iMinWordCountForSkipGrams, tokenBoundaryRegex, pFilterSet, bQueryTimeSkips);
+	}
+	
+	/**
+	 * Stream the skip-grams of all taxa into a {@link StringTreeNode} and freeze it. Each skip-gram gets the ID of its
+	 * taxon as payload. Skip-grams of more than one taxon are dropped, unless they are a taxon themselves.
+	 */
+	@Override
+	protected void buildSkipGrams() {
 		long startTime = System.currentTimeMillis();
-		tree = buildTree(bUseLowercase, tokenBoundaryRegex);
+		taxa = new TokenVocabulary(taxonUriMap.keySet().toArray(new String[0]));
+		AtomicInteger ambiguousSkipGrams = new AtomicInteger(0);
+		Pattern tokenBoundaryPattern = Pattern.compile(tokenBoundaryRegex, Pattern.UNICODE_CHARACTER_CLASS);
+		// Taxa that are not their tokens joined by single spaces, so entries with another string may share their node
+		BitSet irregularTaxa = new BitSet(taxa.size());
+		for (int taxonId = 0; taxonId < taxa.size(); taxonId++) {
+			String taxon = taxa.getToken(taxonId);
+			if (!String.join(" ", StringTreeNode.split(taxon, tokenBoundaryPattern)).equals(taxon)) {
+				irregularTaxa.set(taxonId);
+			}
+		}
+		
+		logger.info("Building tree..");
+		StringTreeNode stringTree = new StringTreeNode(tokenBoundaryRegex, useLowercase);
+		IntStream.range(0, taxa.size())
+				.parallel()
+				.forEach(taxonId -> {
+					String taxon = taxa.getToken(taxonId);
+					forEachEntryOfTaxon(taxon, (words, skipGram) -> {
+						if (isIncluded(skipGram)) {
+							boolean isTaxon = taxon.equals(skipGram);
+							stringTree.insert(words, skipGram, taxonId, (present, id) -> {
+								// Taxa are always mapped to themselves. Of two taxa on the same path, the one with the
+								// larger ID is kept, like in ExternalModelCompiler, so the result does not depend on
+								// the order of insertion.
+								if (present > -1 && (taxa.getToken(present).equals(skipGram)
+										|| (irregularTaxa.get(present) || isTaxon && irregularTaxa.get(id))
+										&& Arrays.equals(StringTreeNode.split(taxa.getToken(present), tokenBoundaryPattern), StringTreeNode.split(words, skipGram, tokenBoundaryPattern)))) {
+									return isTaxon ? Math.max(present, id) : present;
+								} else if (isTaxon || present == id) {
+									return id;
+								}
+								if (present != AMBIGUOUS) {
+									ambiguousSkipGrams.incrementAndGet();
+								}
+								return AMBIGUOUS;
+							});
+						}
+					});
+				});
+		stringTree.prune();
+		logger.info(String.format("Ignoring %d duplicate skip-grams!", ambiguousSkipGrams.get()));
 		
-		logger.info(String.format("Finished building tree with %d nodes from %d skip-grams in %dms.",
-				tree.size(), sortedSkipGramSet.size(), System.currentTimeMillis() - startTime
+		tree = freezeTree(stringTree);
+		logger.info(String.format("Finished building tree with %d nodes from %d skip-grams of %d taxa in %dms.",
+				tree.size(), tree.nodesWithValue(), taxa.size(), System.currentTimeMillis() - startTime
 		));
+		
+		ByteArrayOutputStream uriBytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(uriBytes)) {
+			UriTable.write(out, taxa.size(), taxonId -> getUrisFromTaxon(taxa.getToken(taxonId)));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		uris = new UriTable(ByteBuffer.wrap(uriBytes.toByteArray()));
+		taxonUriMap = new TaxonUriMap();
+	}
+	
+	/**
+	 * Convert the fully built tree into its immutable, array-backed form. The given tree is dropped afterwards.
+	 *
+	 * @param stringTree The tree built by {@link #buildSkipGrams()}.
+	 * @return A {@link FrozenTreeNode} with the same structure and values.
+	 */
+	protected FrozenTreeNode freezeTree(StringTreeNode stringTree) {
+		logger.info("Freezing tree..");
+		return new FrozenTreeNode(stringTree);
 	}
 	
 	@Override
-	public ITreeNode getTree() {
+	public IFrozenTreeNode getTree() {
 		return this.tree;
 	}
+	
+	/**
+	 * Get a read-only view mapping each skip-gram in the tree and each taxon to its taxon.
+	 *
+	 * @return A read-only view of the tree.
+	 */
+	@Override
+	public Map<String, String> getSkipGramTaxonLookup() {
+		return skipGramTaxonView;
+	}
+	
+	/**
+	 * Get all skip-grams in the tree. Unlike {@link StringGazetteerModel#getSortedSkipGramSet()}, the skip-grams are
+	 * returned in the order of the tree.
+	 *
+	 * @return A read-only view of all skip-grams in the tree.
+	 */
+	@Override
+	public Set<String> getSortedSkipGramSet() {
+		return skipGramView;
+	}
+	
+	@Override
+	public int getTaxonId(int valueIndex) {
+		return tree.getPayload(valueIndex);
+	}
+	
+	@Override
+	public TokenVocabulary getTaxonVocabulary() {
+		return taxa;
+	}
+	
+	@Override
+	public String getTaxon(int taxonId) {
+		return taxa.getToken(taxonId);
+	}
+	
+	@Override
+	public List<String> getUris(int taxonId) {
+		return uris.getUris(taxonId);
+	}
+	
+	@Override
+	public List<String> getUrisFromTaxon(String taxon) {
+		if (uris == null) {
+			// The URIs are not moved into the table yet
+			return super.getUrisFromTaxon(taxon);
+		}
+		int taxonId = taxa.getId(taxon);
+		return taxonId < 0 ? null : uris.getUris(taxonId);
+	}
+	
+	/**
+	 * @param taxon A taxon.
+	 * @return The ID of the taxon or -1, if it is unknown.
+	 */
+	protected int getTaxonIdFromTaxon(String taxon) {
+		return taxa.getId(taxon);
+	}
+	
+	private String getTaxonFromValue(int valueIndex) {
+		int taxonId = tree.getPayload(valueIndex);
+		return taxonId < 0 ? null : taxa.getToken(taxonId);
+	}
+	
+	private HashSet<URI> getUriSet(int taxonId) {
+		HashSet<URI> uriSet = new HashSet<>();
+		for (String uri : uris.getUris(taxonId)) {
+			uriSet.add(URI.create(uri));
+		}
+		return uriSet;
+	}
+	
+	private class SkipGramTaxonLookup extends AbstractMap<String, String> {
+		@Override
+		public String get(Object key) {
+			if (!(key instanceof String)) {
+				return null;
+			}
+			int valueIndex = tree.getValueIndex((String) key);
+			if (valueIndex < 0) {
+				// Taxa that are too short or filtered are not part of the tree
+				return taxa.getId((String) key) < 0 ? null : (String) key;
+			}
+			return getTaxonFromValue(valueIndex);
+		}
+		
+		@Override
+		public boolean containsKey(Object key) {
+			return get(key) != null;
+		}
+		
+		@Override
+		public Set<Entry<String, String>> entrySet() {
+			return new AbstractSet<Entry<String, String>>() {
+				@Override
+				public Iterator<Entry<String, String>> iterator() {
+					return IntStream.range(0, tree.nodesWithValue())
+							.mapToObj(i -> (Entry<String, String>) new SimpleImmutableEntry<>(tree.getValue(i), getTaxonFromValue(i)))
+							.iterator();
+				}
+				
+				@Override
+				public int size() {
+					return tree.nodesWithValue();
+				}
+			};
+		}
+	}
+	
+	private class TaxonUriMap extends AbstractMap<String, HashSet<URI>> {
+		@Override
+		public HashSet<URI> get(Object key) {
+			if (!(key instanceof String)) {
+				return null;
+			}
+			int taxonId = taxa.getId((String) key);
+			return taxonId < 0 ? null : getUriSet(taxonId);
+		}
+		
+		@Override
+		public boolean containsKey(Object key) {
+			return key instanceof String && taxa.getId((String) key) > -1;
+		}
+		
+		@Override
+		public int size() {
+			return taxa.size();
+		}
+		
+		/**
+		 * @return A read-only view of the taxa, which does not decode their URIs.
+		 */
+		@Override
+		public Set<String> keySet() {
+			return new AbstractSet<String>() {
+				@Override
+				public Iterator<String> iterator() {
+					return IntStream.range(0, taxa.size()).mapToObj(taxa::getToken).iterator();
+				}
+				
+				@Override
+				public boolean contains(Object o) {
+					return containsKey(o);
+				}
+				
+				@Override
+				public int size() {
+					return taxa.size();
+				}
+			};
+		}
+		
+		@Override
+		public Set<Entry<String, HashSet<URI>>> entrySet() {
+			return new AbstractSet<Entry<String, HashSet<URI>>>() {
+				@Override
+				public Iterator<Entry<String, HashSet<URI>>> iterator() {
+					return IntStream.range(0, taxa.size())
+							.mapToObj(i -> (Entry<String, HashSet<URI>>) new SimpleImmutableEntry<>(taxa.getToken(i), getUriSet(i)))
+							.iterator();
+				}
+				
+				@Override
+				public int size() {
+					return taxa.size();
+				}
+			};
+		}
+	}
+	
+	private class SkipGramSet extends AbstractSet<String> {
+		@Override
+		public Iterator<String> iterator() {
+			return IntStream.range(0, tree.nodesWithValue()).mapToObj(tree::getValue).iterator();
+		}
+		
+		@Override
+		public boolean contains(Object o) {
+			return o instanceof String && tree.getValueIndex((String) o) > -1;
+		}
+		
+		@Override
+		public int size() {
+			return tree.nodesWithValue();
+		}
+	}
 }
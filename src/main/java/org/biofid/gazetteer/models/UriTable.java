@@ -0,0 +1,125 @@
+package org.biofid.gazetteer.models;
+
+import org.biofid.gazetteer.tree.MappedStringTable;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.*;
+import java.util.function.IntFunction;
+
+/**
+ * A read-only table of the URIs of each taxon in a {@link ByteBuffer}, either a slice of a memory-mapped model file or
+ * a heap buffer.
+ * <p>
+ * Nearly all URIs of a taxa list share a few namespace prefixes, so each URI is split after its last {@code /} or
+ * {@code #}. The distinct prefixes are stored once, each URI only stores the ID of its prefix and the bytes of its
+ * suffix. URI strings are only rebuilt on access.
+ * <p>
+ * Layout: the number of taxa {@code n}, {@code n + 1} URI offsets, the prefixes as a {@link MappedStringTable}, the
+ * prefix ID of each URI and the suffixes as a {@link MappedStringTable}.
+ */
+public class UriTable {
+	
+	/**
+	 * The URIs of taxon {@code i} range from {@code taxonOffsets[i]} to {@code taxonOffsets[i + 1]} (exclusive).
+	 */
+	private final IntBuffer taxonOffsets;
+	private final String[] prefixes;
+	private final IntBuffer prefixIds;
+	private final MappedStringTable suffixes;
+	
+	/**
+	 * Read a URI table starting at the current position of the given buffer. The position of the buffer is advanced
+	 * to the end of the table.
+	 *
+	 * @param buffer The buffer to read from.
+	 */
+	public UriTable(ByteBuffer buffer) {
+		int taxonCount = buffer.getInt();
+		taxonOffsets = MappedStringTable.sliceInts(buffer, taxonCount + 1);
+		MappedStringTable prefixTable = new MappedStringTable(buffer);
+		prefixes = new String[prefixTable.size()];
+		for (int i = 0; i < prefixes.length; i++) {
+			prefixes[i] = prefixTable.get(i);
+		}
+		prefixIds = MappedStringTable.sliceInts(buffer, taxonOffsets.get(taxonCount));
+		suffixes = new MappedStringTable(buffer);
+	}
+	
+	/**
+	 * @return The number of taxa.
+	 */
+	public int size() {
+		return taxonOffsets.limit() - 1;
+	}
+	
+	/**
+	 * Get the URIs of a taxon. Each URI is rebuilt from its prefix and suffix on every access of the list.
+	 *
+	 * @param taxonId The taxon ID.
+	 * @return A read-only list of the URIs of the taxon.
+	 */
+	public List<String> getUris(int taxonId) {
+		int from = taxonOffsets.get(taxonId);
+		int to = taxonOffsets.get(taxonId + 1);
+		return new AbstractList<String>() {
+			@Override
+			public String get(int index) {
+				if (index < 0 || index >= to - from) {
+					throw new IndexOutOfBoundsException(String.format("Index %d out of range [0, %d)!", index, to - from));
+				}
+				return getUri(from + index);
+			}
+			
+			@Override
+			public int size() {
+				return to - from;
+			}
+		};
+	}
+	
+	private String getUri(int index) {
+		return prefixes[prefixIds.get(index)].concat(suffixes.get(index));
+	}
+	
+	/**
+	 * Write the URIs of the given taxa in the layout read by {@link #UriTable(ByteBuffer)}.
+	 *
+	 * @param out        The stream to write to.
+	 * @param taxonCount The number of taxa.
+	 * @param taxonUris  Returns the URIs of the taxon with the given ID.
+	 * @throws IOException If the stream could not be written.
+	 */
+	public static void write(DataOutputStream out, int taxonCount, IntFunction<? extends Collection<String>> taxonUris) throws IOException {
+		HashMap<String, Integer> prefixIds = new HashMap<>();
+		ArrayList<String> lPrefixes = new ArrayList<>();
+		ArrayList<String> lSuffixes = new ArrayList<>();
+		int[] lPrefixIds = new int[16];
+		
+		out.writeInt(taxonCount);
+		out.writeInt(0);
+		for (int taxonId = 0; taxonId < taxonCount; taxonId++) {
+			for (String uri : taxonUris.apply(taxonId)) {
+				int split = Math.max(uri.lastIndexOf('/'), uri.lastIndexOf('#')) + 1;
+				int prefixId = prefixIds.computeIfAbsent(uri.substring(0, split), prefix -> {
+					lPrefixes.add(prefix);
+					return lPrefixes.size() - 1;
+				});
+				if (lSuffixes.size() == lPrefixIds.length) {
+					lPrefixIds = Arrays.copyOf(lPrefixIds, lPrefixIds.length * 2);
+				}
+				lPrefixIds[lSuffixes.size()] = prefixId;
+				lSuffixes.add(uri.substring(split));
+			}
+			out.writeInt(lSuffixes.size());
+		}
+		
+		MappedStringTable.write(out, lPrefixes.toArray(new String[0]));
+		for (int i = 0; i < lSuffixes.size(); i++) {
+			out.writeInt(lPrefixIds[i]);
+		}
+		MappedStringTable.write(out, lSuffixes.toArray(new String[0]));
+	}
+}
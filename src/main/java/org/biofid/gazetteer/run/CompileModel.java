@@ -0,0 +1,126 @@
+package org.biofid.gazetteer.run;
+
+import com.google.common.base.Charsets;
+import org.apache.commons.cli.*;
+import org.apache.commons.io.FileUtils;
+import org.biofid.gazetteer.models.ExternalModelCompiler;
+import org.biofid.gazetteer.models.ITreeGazetteerModel;
+import org.biofid.gazetteer.models.MappedTreeGazetteerModel;
+import org.biofid.gazetteer.models.ModelCache;
+import org.biofid.gazetteer.models.MultiClassTreeGazetteerModel;
+import org.biofid.gazetteer.models.TreeGazetteerModel;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.stream.Collectors;
+
+/**
+ * Compile a gazetteer model ahead of deployment. The model is written to the given output location, which can be
+ * passed to the engines as {@link org.biofid.gazetteer.BaseTreeGazetteer#PARAM_MODEL_LOCATION}, or to the
+ * {@link ModelCache} if no output location is given. The engines must be configured with the same parameters as the
+ * model, otherwise they refuse to open it.
+ */
+public class CompileModel {
+	public static void main(String[] args) {
+		
+		Option taxaOption = new Option("t", "taxa", true, "Taxa list path.");
+		taxaOption.setArgs(Option.UNLIMITED_VALUES);
+		taxaOption.setRequired(true);
+		
+		Option outputOption = new Option("o", "output", true, "Optional, output path. Default: the model cache folder.");
+		
+		Option minLen = new Option("m", "minlength", true, "Taxa minimum length. Default: 5.");
+		
+		Option minWordCount = new Option("w", "minWordCount", true, "Minimum word count to create skips. Default: 3.");
+		
+		Option languageOption = new Option(null, "language", true, "Model language. Default: de.");
+		
+		Option filterOption = new Option("f", "filter", true, "Optional, a file of words to be filtered out.");
+		
+		Option heapBudgetOption = new Option(null, "heapBudget", true, "Optional, compile out of core, spilling skip-grams to disk beyond this many megabytes of heap.");
+		
+		Option boundaryOption = new Option(null, "tokenBoundaryRegex", true, "Token boundary pattern. Default: \\s+.");
+		
+		Options options = new Options();
+		options.addOption("h", "help", false, "Print this message.");
+		options.addOption(taxaOption);
+		options.addOption(outputOption);
+		options.addOption(minLen);
+		options.addOption(minWordCount);
+		options.addOption(languageOption);
+		options.addOption(filterOption);
+		options.addOption(boundaryOption);
+		options.addOption(heapBudgetOption);
+		options.addOption("l", "lowercase", false, "Optional, if true use lowercase.");
+		options.addOption("s", "allSkips", false, "Optional, if true get all m-skip-n-grams.");
+		options.addOption(null, "noSplitHyphen", false, "Optional, if true do not split taxa on hyphens.");
+		options.addOption(null, "noAbbreviatedTaxa", false, "Optional, if true do not add abbreviated taxa.");
+		options.addOption(null, "querySkips", false, "Optional, if true do not create skip-grams, but skip tokens at query time.");
+		options.addOption(null, "multiClass", false, "Optional, if true compile a multi-class model with one class per taxa list.");
+		
+		try {
+			CommandLineParser parser = new DefaultParser();
+			CommandLine cmd = parser.parse(options, args);
+			
+			if (cmd.hasOption("h")) {
+				printUsage(options);
+				return;
+			}
+			
+			String[] taxaLocations = cmd.getOptionValues("t");
+			boolean useLowerCase = cmd.hasOption("l");
+			boolean getAllSkips = cmd.hasOption("s");
+			boolean splitHyphen = !cmd.hasOption("noSplitHyphen");
+			boolean addAbbreviatedTaxa = !cmd.hasOption("noAbbreviatedTaxa");
+			boolean multiClass = cmd.hasOption("multiClass");
+			boolean queryTimeSkips = cmd.hasOption("querySkips");
+			int minLength = cmd.hasOption("m") ? Integer.parseInt(cmd.getOptionValue("m")) : 5;
+			int minWordCountForSkipGrams = cmd.hasOption("w") ? Integer.parseInt(cmd.getOptionValue("w")) : 3;
+			String language = cmd.getOptionValue("language", "de");
+			String tokenBoundaryRegex = cmd.getOptionValue("tokenBoundaryRegex", "\\s+");
+			HashSet<String> filterSet = new HashSet<>();
+			if (cmd.hasOption("f")) {
+				filterSet = FileUtils.readLines(new File(cmd.getOptionValue("f")), Charsets.UTF_8)
+						.stream()
+						.map(String::toLowerCase)
+						.collect(Collectors.toCollection(HashSet::new));
+			}
+			
+			String outputLocation = cmd.hasOption("o")
+					? cmd.getOptionValue("o")
+					: ModelCache.getModelLocation(taxaLocations, multiClass, useLowerCase, language, minLength, getAllSkips,
+					splitHyphen, addAbbreviatedTaxa, minWordCountForSkipGrams, tokenBoundaryRegex, filterSet, queryTimeSkips).toString();
+			
+			if (cmd.hasOption("heapBudget")) {
+				long heapBudget = Long.parseLong(cmd.getOptionValue("heapBudget")) * 1024L * 1024L;
+				new ExternalModelCompiler(taxaLocations, multiClass, useLowerCase, language, minLength, getAllSkips,
+						splitHyphen, addAbbreviatedTaxa, minWordCountForSkipGrams, tokenBoundaryRegex, filterSet, queryTimeSkips, heapBudget)
+						.compile(outputLocation);
+			} else {
+				ITreeGazetteerModel model;
+				if (multiClass) {
+					model = new MultiClassTreeGazetteerModel(taxaLocations, useLowerCase, language, minLength, getAllSkips,
+							splitHyphen, addAbbreviatedTaxa, minWordCountForSkipGrams, tokenBoundaryRegex, filterSet, queryTimeSkips);
+				} else {
+					model = new TreeGazetteerModel(taxaLocations, useLowerCase, language, minLength, getAllSkips,
+							splitHyphen, addAbbreviatedTaxa, minWordCountForSkipGrams, tokenBoundaryRegex, filterSet, queryTimeSkips);
+				}
+				MappedTreeGazetteerModel.write(model, outputLocation);
+			}
+			
+			System.out.printf("\nCompiled model to '%s'.\n", outputLocation);
+		} catch (ParseException | IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private static void printUsage(Options options) {
+		HelpFormatter formatter = new HelpFormatter();
+		formatter.printHelp("java -cp $CP org.biofid.gazetteer.run.CompileModel",
+				"Compile a gazetteer model for deployment.",
+				options,
+				"",
+				true);
+	}
+}
@@ -0,0 +1,338 @@
+package org.biofid.gazetteer.run;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A corpus split into shards in a directory on a shared filesystem, so that several processes on several hosts can tag
+ * it together and resume after failures.
+ * <p>
+ * The first process enumerates the XMI files of the input tree once into {@code shard-N.txt} files of relative
+ * document paths. A process claims a shard by atomically creating its {@code shard-N.lock} file, appends each finished
+ * document to its {@code shard-N.progress} file and creates {@code shard-N.done} once all documents are finished.
+ * Documents already listed in the progress file are skipped when a shard is claimed again, so a re-run only processes
+ * what is missing.
+ * <p>
+ * The locks of the claimed shards are touched periodically. A lock that has not been touched for longer than the lock
+ * timeout belongs to a crashed process and is taken over by the next process looking for a shard. Each lock holds the
+ * name of its owner, so a process that stalled for longer than the timeout notices that it lost its lock and leaves
+ * the shard to the new owner.
+ */
+public class ShardManifest implements Closeable {
+	
+	private static final String MANIFEST = "manifest.txt";
+	private static final String MANIFEST_LOCK = "manifest.lock";
+	
+	private final Path directory;
+	private final int shardCount;
+	private final long lockTimeout;
+	/**
+	 * The name of this process and a random suffix, so two manifests in the same process or in processes with the same
+	 * name on different runs never own the same lock.
+	 */
+	private final String owner = ManagementFactory.getRuntimeMXBean().getName() + "/" + UUID.randomUUID();
+	private final Set<Shard> claimed = ConcurrentHashMap.newKeySet();
+	private final ScheduledExecutorService heartbeat;
+	private int nextShard = 0;
+	
+	/**
+	 * Open the manifest in the given directory. If it does not exist yet, enumerate the input tree, unless another
+	 * process already does, in which case wait for it to finish.
+	 *
+	 * @param directory   The directory of the manifest on a shared filesystem.
+	 * @param inputRoot   The root of the input tree.
+	 * @param shardSize   The number of documents per shard, if the manifest is created.
+	 * @param lockTimeout The time in milliseconds after which the lock of a shard is considered stale.
+	 * @throws IOException          If the manifest could not be read or created.
+	 * @throws InterruptedException If interrupted while waiting for another process to create the manifest.
+	 */
+	public ShardManifest(Path directory, Path inputRoot, int shardSize, long lockTimeout) throws IOException, InterruptedException {
+		this.directory = directory;
+		this.lockTimeout = lockTimeout;
+		Files.createDirectories(directory);
+		Path manifest = directory.resolve(MANIFEST);
+		if (!Files.exists(manifest)) {
+			try {
+				Files.createFile(directory.resolve(MANIFEST_LOCK));
+				enumerate(inputRoot, shardSize);
+			} catch (FileAlreadyExistsException e) {
+				System.out.printf("Waiting for another process to enumerate '%s'. If it has crashed, delete '%s'.\n",
+						inputRoot, directory.resolve(MANIFEST_LOCK));
+				while (!Files.exists(manifest)) {
+					Thread.sleep(1000);
+				}
+			}
+		}
+		shardCount = Integer.parseInt(new String(Files.readAllBytes(manifest), StandardCharsets.UTF_8).trim());
+		
+		heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "shard-heartbeat");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long interval = Math.max(1, lockTimeout / 4);
+		heartbeat.scheduleAtFixedRate(this::touchLocks, interval, interval, TimeUnit.MILLISECONDS);
+	}
+	
+	private void enumerate(Path inputRoot, int shardSize) throws IOException {
+		List<String> documents;
+		try (Stream<Path> files = Files.walk(inputRoot)) {
+			documents = files
+					.filter(file -> file.getFileName().toString().endsWith(".xmi") && Files.isRegularFile(file))
+					.map(file -> inputRoot.relativize(file).toString().replace(File.separatorChar, '/'))
+					.sorted()
+					.collect(Collectors.toList());
+		}
+		int count = (documents.size() + shardSize - 1) / shardSize;
+		for (int i = 0; i < count; i++) {
+			Files.write(getPath(i, ".txt"), documents.subList(i * shardSize, Math.min(documents.size(), (i + 1) * shardSize)), StandardCharsets.UTF_8);
+		}
+		// Written last, so other processes only start once all shards exist
+		Path temp = directory.resolve(MANIFEST + ".tmp");
+		Files.write(temp, String.valueOf(count).getBytes(StandardCharsets.UTF_8));
+		Files.move(temp, directory.resolve(MANIFEST), StandardCopyOption.ATOMIC_MOVE);
+		System.out.printf("Enumerated %d documents into %d shards.\n", documents.size(), count);
+	}
+	
+	private Path getPath(int shard, String extension) {
+		return directory.resolve(String.format("shard-%05d%s", shard, extension));
+	}
+	
+	/**
+	 * @return The number of shards.
+	 */
+	public int size() {
+		return shardCount;
+	}
+	
+	/**
+	 * Claim the next shard that is neither done nor locked by a live process. Each shard is only tried once per
+	 * manifest instance.
+	 *
+	 * @return The claimed shard or null, if there are no shards left.
+	 * @throws IOException If a shard could not be read.
+	 */
+	public synchronized Shard claimNext() throws IOException {
+		while (nextShard < shardCount) {
+			int id = nextShard++;
+			if (!Files.exists(getPath(id, ".done")) && tryLock(id)) {
+				Shard shard = new Shard(id);
+				claimed.add(shard);
+				return shard;
+			}
+		}
+		return null;
+	}
+	
+	private boolean tryLock(int id) throws IOException {
+		Path lock = getPath(id, ".lock");
+		if (createLock(lock)) {
+			return true;
+		}
+		try {
+			FileTime modified = Files.getLastModifiedTime(lock);
+			if (System.currentTimeMillis() - modified.toMillis() < lockTimeout) {
+				return false;
+			}
+			byte[] lockOwner = Files.readAllBytes(lock);
+			// Move the stale lock away atomically, so only one process takes it over
+			Path stale = directory.resolve(lock.getFileName() + "." + UUID.randomUUID());
+			Files.move(lock, stale, StandardCopyOption.ATOMIC_MOVE);
+			// Another process may have taken over the lock between the check and the move, in which case the moved
+			// lock is its new one and is put back
+			if (!Files.getLastModifiedTime(stale).equals(modified) || !Arrays.equals(Files.readAllBytes(stale), lockOwner)) {
+				restoreLock(stale, lock);
+				return false;
+			}
+			Files.delete(stale);
+		} catch (NoSuchFileException e) {
+			return false;
+		}
+		System.out.printf("Taking over the stale lock of shard %d.\n", id);
+		return createLock(lock);
+	}
+	
+	private boolean createLock(Path lock) throws IOException {
+		try {
+			Files.write(lock, owner.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			return true;
+		} catch (FileAlreadyExistsException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Put a lock that has been moved away back in place, unless a new lock has been created in the meantime. The lock
+	 * is linked instead of moved, since a move would replace the new lock.
+	 *
+	 * @param moved The lock that has been moved away, which is deleted.
+	 * @param lock  The path of the lock.
+	 */
+	private void restoreLock(Path moved, Path lock) throws IOException {
+		try {
+			try {
+				Files.createLink(lock, moved);
+			} catch (UnsupportedOperationException e) {
+				Files.write(lock, Files.readAllBytes(moved), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			}
+		} catch (FileAlreadyExistsException e) {
+			// The new lock takes precedence
+		}
+		Files.delete(moved);
+	}
+	
+	/**
+	 * @return True, if the given lock exists and is owned by this manifest.
+	 */
+	private boolean isOwner(Path lock) throws IOException {
+		try {
+			return owner.equals(new String(Files.readAllBytes(lock), StandardCharsets.UTF_8));
+		} catch (NoSuchFileException e) {
+			return false;
+		}
+	}
+	
+	private void touchLocks() {
+		FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+		for (Shard shard : claimed) {
+			try {
+				Path lock = getPath(shard.id, ".lock");
+				if (isOwner(lock)) {
+					Files.setLastModifiedTime(lock, now);
+				} else {
+					System.out.printf("Lost the lock of shard %d to another process.\n", shard.id);
+					claimed.remove(shard);
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Stop touching the locks and release all shards that are still claimed without marking them done.
+	 */
+	@Override
+	public void close() throws IOException {
+		heartbeat.shutdownNow();
+		for (Shard shard : claimed) {
+			shard.release(false);
+		}
+	}
+	
+	/**
+	 * A shard claimed by this process.
+	 */
+	public class Shard {
+		
+		private final int id;
+		private final List<String> documents;
+		private final BufferedWriter progress;
+		private boolean released = false;
+		
+		private Shard(int id) throws IOException {
+			this.id = id;
+			Path progressFile = getPath(id, ".progress");
+			Set<String> finished = new HashSet<>();
+			boolean newLine = false;
+			if (Files.exists(progressFile)) {
+				finished.addAll(Files.readAllLines(progressFile, StandardCharsets.UTF_8));
+				// The last line may have been cut off by a crash
+				byte[] bytes = Files.readAllBytes(progressFile);
+				newLine = bytes.length > 0 && bytes[bytes.length - 1] != '\n';
+			}
+			documents = Files.readAllLines(getPath(id, ".txt"), StandardCharsets.UTF_8)
+					.stream()
+					.filter(document -> !finished.contains(document))
+					.collect(Collectors.toList());
+			progress = Files.newBufferedWriter(progressFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+			if (newLine) {
+				progress.newLine();
+			}
+		}
+		
+		public int getId() {
+			return id;
+		}
+		
+		/**
+		 * @return The relative paths of the documents of this shard that are not finished yet.
+		 */
+		public List<String> getDocuments() {
+			return documents;
+		}
+		
+		/**
+		 * Record a document as finished.
+		 *
+		 * @param document The relative path of the document, see {@link #getDocuments()}.
+		 * @throws IOException If the progress file could not be written.
+		 */
+		public synchronized void finished(String document) throws IOException {
+			progress.write(document);
+			progress.newLine();
+			progress.flush();
+		}
+		
+		/**
+		 * @return False, if this shard has been released or its lock has been taken over by another process, which
+		 * then processes the remaining documents.
+		 */
+		public boolean isClaimed() {
+			return claimed.contains(this);
+		}
+		
+		/**
+		 * Release the lock of this shard. If the lock has been taken over by another process, it is left alone and the
+		 * shard is not marked done.
+		 *
+		 * @param done If true, mark the shard done, so it is never claimed again.
+		 * @throws IOException If the shard could not be marked done or its lock could not be deleted.
+		 */
+		public synchronized void release(boolean done) throws IOException {
+			if (released) {
+				return;
+			}
+			released = true;
+			claimed.remove(this);
+			progress.close();
+			Path lock = getPath(id, ".lock");
+			if (!isOwner(lock)) {
+				System.out.printf("Lost the lock of shard %d to another process, leaving the shard to it.\n", id);
+				return;
+			}
+			if (done) {
+				Files.write(getPath(id, ".done"), owner.getBytes(StandardCharsets.UTF_8));
+			}
+			// Move the lock away atomically and check it again, so a lock taken over in the meantime is not deleted
+			Path moved = directory.resolve(lock.getFileName() + "." + UUID.randomUUID());
+			try {
+				Files.move(lock, moved, StandardCopyOption.ATOMIC_MOVE);
+			} catch (NoSuchFileException e) {
+				return;
+			}
+			if (isOwner(moved)) {
+				Files.delete(moved);
+			} else {
+				restoreLock(moved, lock);
+			}
+		}
+	}
+}
@@ -1,19 +1,46 @@
 package org.biofid.gazetteer.run;
 
+import de.tudarmstadt.ukp.dkpro.core.api.metadata.type.DocumentMetaData;
 import org.apache.commons.cli.*;
+import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.uima.UIMAException;
+import org.apache.uima.analysis_engine.AnalysisEngine;
+import org.apache.uima.analysis_engine.AnalysisEngineDescription;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.impl.XmiCasDeserializer;
 import org.apache.uima.collection.CollectionReader;
-import org.apache.uima.fit.factory.AggregateBuilder;
 import org.apache.uima.fit.factory.AnalysisEngineFactory;
 import org.apache.uima.fit.factory.CollectionReaderFactory;
-import org.apache.uima.fit.pipeline.SimplePipeline;
+import org.apache.uima.fit.factory.UimaContextFactory;
+import org.apache.uima.fit.util.JCasUtil;
+import org.apache.uima.jcas.JCas;
+import org.apache.uima.resource.CasDefinition;
+import org.apache.uima.resource.metadata.ProcessingResourceMetaData;
+import org.apache.uima.util.CasPool;
 import org.biofid.gazetteer.SingleClassTreeGazetteer;
 import org.dkpro.core.io.xmi.XmiReader;
 import org.dkpro.core.io.xmi.XmiWriter;
+import org.texttechnologylab.annotation.type.Taxon;
+import org.xml.sax.SAXException;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
+ * Tag the taxa in a folder of XMI files. Documents are read on the main thread, tagged by several tagger threads
+ * sharing a single {@link SingleClassTreeGazetteer} and its model, and written by several writer threads, each with
+ * its own {@link XmiWriter}. The stages are connected by bounded queues. All documents in flight are held in a
+ * {@link CasPool}, so its size bounds the memory used.
+ * <p>
  * Created on 18.04.2019.
  */
 public class TagTaxa {
@@ -29,12 +56,33 @@ public class TagTaxa {
 		Option minLen = new Option("m", "minlength", true, "Taxa minimum length. Default: 5.");
 		minLen.setRequired(false);
 		
+		Option typeOption = new Option(null, "type", true, "Fully qualified name of the type to tag. Default: " + Taxon.class.getName() + ".");
+		
+		Option threadsOption = new Option("n", "threads", true, "Number of tagger threads. Default: the number of available processors.");
+		
+		Option writersOption = new Option(null, "writers", true, "Number of writer threads. Default: 1.");
+		
+		Option casPoolOption = new Option(null, "casPool", true, "Maximum number of documents in flight. Default: twice the number of tagger and writer threads.");
+		
+		Option manifestOption = new Option(null, "manifest", true, "Optional, a directory on a shared filesystem to coordinate several processes through. All XMI files in the input tree are split into shards, which the processes claim one by one. Re-runs only process the unfinished documents.");
+		
+		Option shardSizeOption = new Option(null, "shardSize", true, "Number of documents per shard, if the manifest is created. Default: 1000.");
+		
+		Option lockTimeoutOption = new Option(null, "lockTimeout", true, "Minutes after which the shard of a crashed process is taken over. Default: 10.");
+		
 		Options options = new Options();
 		options.addOption("h", "help", false, "Print this message.");
 		options.addOption(inputOption);
 		options.addOption(outputOption);
 		options.addOption(taxaOption);
 		options.addOption(minLen);
+		options.addOption(typeOption);
+		options.addOption(threadsOption);
+		options.addOption(writersOption);
+		options.addOption(casPoolOption);
+		options.addOption(manifestOption);
+		options.addOption(shardSizeOption);
+		options.addOption(lockTimeoutOption);
 		options.addOption("l", "lowercase", false, "Optional, if true use lowercase.");
 		options.addOption("s", "allSkips", false, "Optional, if true use lowercase.");
 		
@@ -53,36 +101,334 @@ public class TagTaxa {
 			Boolean useLowerCase = cmd.hasOption("l");
 			Boolean getAllSkips = cmd.hasOption("s");
 			Integer minLength = cmd.hasOption("m") ? Integer.valueOf(cmd.getOptionValue("m")) : 5;
+			String taggingTypeName = cmd.getOptionValue("type", Taxon.class.getName());
+			int taggerCount = cmd.hasOption("n") ? Integer.parseInt(cmd.getOptionValue("n")) : Runtime.getRuntime().availableProcessors();
+			int writerCount = cmd.hasOption("writers") ? Integer.parseInt(cmd.getOptionValue("writers")) : 1;
+			int casPoolSize = cmd.hasOption("casPool") ? Integer.parseInt(cmd.getOptionValue("casPool")) : 2 * (taggerCount + writerCount);
 			
-			CollectionReader collection = CollectionReaderFactory.createReader(
-					XmiReader.class,
-					XmiReader.PARAM_PATTERNS, "[+]*.xmi",
-					XmiReader.PARAM_SOURCE_LOCATION, inputLocation,
-					XmiReader.PARAM_LENIENT, true
-//						, XmiReader.PARAM_LOG_FREQ, -1
-			);
+			CollectionReader collection = null;
+			ShardManifest manifest = null;
+			DocumentSource source;
+			if (cmd.hasOption("manifest")) {
+				int shardSize = cmd.hasOption("shardSize") ? Integer.parseInt(cmd.getOptionValue("shardSize")) : 1000;
+				long lockTimeout = TimeUnit.MINUTES.toMillis(cmd.hasOption("lockTimeout") ? Long.parseLong(cmd.getOptionValue("lockTimeout")) : 10);
+				manifest = new ShardManifest(Paths.get(cmd.getOptionValue("manifest")), Paths.get(inputLocation), shardSize, lockTimeout);
+				source = new ManifestSource(manifest, Paths.get(inputLocation));
+			} else {
+				collection = CollectionReaderFactory.createReader(
+						XmiReader.class,
+						XmiReader.PARAM_PATTERNS, "[+]*.xmi",
+						XmiReader.PARAM_SOURCE_LOCATION, inputLocation,
+						XmiReader.PARAM_LENIENT, true
+//							, XmiReader.PARAM_LOG_FREQ, -1
+				);
+				source = new ReaderSource(collection);
+			}
 			
-			AggregateBuilder ab = new AggregateBuilder();
-			ab.add(AnalysisEngineFactory.createEngineDescription(
-					AnalysisEngineFactory.createEngineDescription(SingleClassTreeGazetteer.class,
-							SingleClassTreeGazetteer.PARAM_SOURCE_LOCATION, taxaLocations,
-							SingleClassTreeGazetteer.PARAM_USE_LOWERCASE, useLowerCase,
-							SingleClassTreeGazetteer.PARAM_MIN_LENGTH, minLength,
-							SingleClassTreeGazetteer.PARAM_GET_ALL_SKIPS, getAllSkips)
-			));
-			ab.add(AnalysisEngineFactory.createEngineDescription(XmiWriter.class,
-					XmiWriter.PARAM_TARGET_LOCATION, outputLocation,
-					XmiWriter.PARAM_OVERWRITE, true
-			));
+			Object[] gazetteerParameters = {
+					SingleClassTreeGazetteer.PARAM_SOURCE_LOCATION, taxaLocations,
+					SingleClassTreeGazetteer.PARAM_USE_LOWERCASE, useLowerCase,
+					SingleClassTreeGazetteer.PARAM_MIN_LENGTH, minLength,
+					SingleClassTreeGazetteer.PARAM_GET_ALL_SKIPS, getAllSkips,
+					SingleClassTreeGazetteer.PARAM_TAGGING_TYPE_NAME, taggingTypeName
+			};
+			AnalysisEngineDescription gazetteerDescription = AnalysisEngineFactory.createEngineDescription(
+					SingleClassTreeGazetteer.class, gazetteerParameters);
+			// A single instance holds the model and tags the documents of all tagger threads
+			SingleClassTreeGazetteer gazetteer = new SingleClassTreeGazetteer();
+			gazetteer.initialize(UimaContextFactory.createUimaContext(gazetteerParameters));
 			
-			SimplePipeline.runPipeline(collection, ab.createAggregate());
-
-			System.out.println("\nDone.");
-		} catch (ParseException | UIMAException | IOException e) {
+			AnalysisEngine[] writers = new AnalysisEngine[writerCount];
+			for (int i = 0; i < writerCount; i++) {
+				writers[i] = AnalysisEngineFactory.createEngine(XmiWriter.class,
+						XmiWriter.PARAM_TARGET_LOCATION, outputLocation,
+						XmiWriter.PARAM_OVERWRITE, true
+				);
+			}
+			
+			// All CASes of the pool share a single type system, so the tagging type is only resolved once
+			List<ProcessingResourceMetaData> metaData = new ArrayList<>();
+			if (collection != null) {
+				metaData.add(collection.getProcessingResourceMetaData());
+			}
+			metaData.add(gazetteerDescription.getAnalysisEngineMetaData());
+			metaData.add(writers[0].getAnalysisEngineMetaData());
+			CasPool casPool = new CasPool(casPoolSize, new CasDefinition(metaData, null), null);
+			
+			int documentCount;
+			try {
+				documentCount = runPipeline(source, gazetteer, writers, casPool, taggerCount);
+			} finally {
+				if (manifest != null) {
+					manifest.close();
+				}
+			}
+			
+			for (AnalysisEngine writer : writers) {
+				writer.collectionProcessComplete();
+				writer.destroy();
+			}
+			gazetteer.destroy();
+			if (collection != null) {
+				collection.destroy();
+			}
+			
+			System.out.printf("\nDone, tagged %d documents.\n", documentCount);
+		} catch (ParseException | UIMAException | IOException | InterruptedException e) {
 			e.printStackTrace();
 		}
 	}
 	
+	/**
+	 * Read all documents of the source on the current thread and tag and write them on the tagger and writer threads.
+	 *
+	 * @return The number of documents read.
+	 */
+	private static int runPipeline(DocumentSource source, SingleClassTreeGazetteer gazetteer, AnalysisEngine[] writers, CasPool casPool, int taggerCount)
+			throws UIMAException, IOException, InterruptedException {
+		BlockingQueue<Optional<CAS>> taggerQueue = new ArrayBlockingQueue<>(casPool.getSize());
+		BlockingQueue<Optional<CAS>> writerQueue = new ArrayBlockingQueue<>(casPool.getSize());
+		
+		List<Thread> taggers = startStage("tagger", taggerCount, taggerQueue, casPool, source, (worker, cas) -> {
+			gazetteer.process(cas.getJCas());
+			writerQueue.put(Optional.of(cas));
+		});
+		List<Thread> writerThreads = startStage("writer", writers.length, writerQueue, casPool, source, (worker, cas) -> {
+			writers[worker].process(cas);
+			source.finished(cas, true);
+			casPool.releaseCas(cas);
+		});
+		
+		int documentCount = 0;
+		try {
+			while (true) {
+				CAS cas = casPool.getCas(0);
+				boolean read;
+				try {
+					read = source.readNext(cas);
+				} catch (UIMAException | IOException e) {
+					casPool.releaseCas(cas);
+					throw e;
+				}
+				if (!read) {
+					casPool.releaseCas(cas);
+					break;
+				}
+				taggerQueue.put(Optional.of(cas));
+				documentCount++;
+			}
+		} finally {
+			finishStage(taggerQueue, taggers);
+			finishStage(writerQueue, writerThreads);
+		}
+		return documentCount;
+	}
+	
+	/**
+	 * Start the threads of a pipeline stage. Each thread takes CASes from the queue until it takes an empty element.
+	 * If a CAS fails, the error is printed, the source is notified and the CAS is returned to the pool.
+	 *
+	 * @param name    The name of the stage.
+	 * @param threads The number of threads.
+	 * @param queue   The queue to take the CASes from.
+	 * @param casPool The pool of the CASes.
+	 * @param source  The source of the CASes.
+	 * @param task    The task to run for each CAS.
+	 * @return The started threads.
+	 */
+	private static List<Thread> startStage(String name, int threads, BlockingQueue<Optional<CAS>> queue, CasPool casPool, DocumentSource source, StageTask task) {
+		ArrayList<Thread> stage = new ArrayList<>();
+		for (int i = 0; i < threads; i++) {
+			final int worker = i;
+			Thread thread = new Thread(() -> {
+				try {
+					for (Optional<CAS> cas = queue.take(); cas.isPresent(); cas = queue.take()) {
+						try {
+							task.process(worker, cas.get());
+						} catch (Exception e) {
+							System.err.printf("%s failed on a document:\n", Thread.currentThread().getName());
+							e.printStackTrace();
+							try {
+								source.finished(cas.get(), false);
+							} catch (IOException ioException) {
+								ioException.printStackTrace();
+							}
+							casPool.releaseCas(cas.get());
+						}
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}, name + "-" + i);
+			thread.start();
+			stage.add(thread);
+		}
+		return stage;
+	}
+	
+	/**
+	 * Signal the threads of a stage to stop, once the queue is drained, and wait for them.
+	 */
+	private static void finishStage(BlockingQueue<Optional<CAS>> queue, List<Thread> stage) throws InterruptedException {
+		for (int i = 0; i < stage.size(); i++) {
+			queue.put(Optional.empty());
+		}
+		for (Thread thread : stage) {
+			thread.join();
+		}
+	}
+	
+	private interface StageTask {
+		void process(int worker, CAS cas) throws Exception;
+	}
+	
+	/**
+	 * The documents to tag.
+	 */
+	private interface DocumentSource {
+		
+		/**
+		 * Read the next document into the given CAS.
+		 *
+		 * @return False, if there are no documents left.
+		 */
+		boolean readNext(CAS cas) throws UIMAException, IOException;
+		
+		/**
+		 * Called once for each document read, after it has been written or has failed.
+		 */
+		void finished(CAS cas, boolean written) throws IOException;
+	}
+	
+	private static class ReaderSource implements DocumentSource {
+		
+		private final CollectionReader collection;
+		
+		ReaderSource(CollectionReader collection) {
+			this.collection = collection;
+		}
+		
+		@Override
+		public boolean readNext(CAS cas) throws UIMAException, IOException {
+			if (!collection.hasNext()) {
+				return false;
+			}
+			collection.getNext(cas);
+			return true;
+		}
+		
+		@Override
+		public void finished(CAS cas, boolean written) {
+		}
+	}
+	
+	/**
+	 * Reads the documents of the shards claimed from a {@link ShardManifest}, one shard after the other. A shard is
+	 * marked done once all its documents have been written. If a document fails, the shard is only released, so a
+	 * re-run processes the failed documents again. If another process takes over the lock of a shard, its remaining
+	 * documents are left to that process.
+	 */
+	private static class ManifestSource implements DocumentSource {
+		
+		private final ShardManifest manifest;
+		private final Path inputRoot;
+		/**
+		 * The shard and relative path of each document in flight, by its CAS.
+		 */
+		private final Map<CAS, ImmutablePair<ShardRun, String>> documents = Collections.synchronizedMap(new IdentityHashMap<>());
+		private ShardRun current;
+		private Iterator<String> remaining = Collections.emptyIterator();
+		
+		ManifestSource(ShardManifest manifest, Path inputRoot) {
+			this.manifest = manifest;
+			this.inputRoot = inputRoot;
+		}
+		
+		@Override
+		public boolean readNext(CAS cas) throws UIMAException, IOException {
+			while (true) {
+				if (!remaining.hasNext()) {
+					if (current != null) {
+						current.done();
+						current = null;
+					}
+					ShardManifest.Shard shard = manifest.claimNext();
+					if (shard == null) {
+						return false;
+					}
+					System.out.printf("Claimed shard %d of %d with %d unfinished documents.\n", shard.getId(), manifest.size(), shard.getDocuments().size());
+					current = new ShardRun(shard);
+					remaining = shard.getDocuments().iterator();
+					continue;
+				}
+				
+				if (!current.shard.isClaimed()) {
+					System.out.printf("Skipping the remaining documents of shard %d.\n", current.shard.getId());
+					remaining = Collections.emptyIterator();
+					continue;
+				}
+				
+				String document = remaining.next();
+				Path file = inputRoot.resolve(document);
+				try (InputStream inputStream = new BufferedInputStream(Files.newInputStream(file))) {
+					XmiCasDeserializer.deserialize(inputStream, cas, true);
+				} catch (IOException | SAXException e) {
+					System.err.printf("Could not read '%s':\n", file);
+					e.printStackTrace();
+					current.failed = true;
+					cas.reset();
+					continue;
+				}
+				JCas jCas = cas.getJCas();
+				// Like XmiReader, keep the metadata of the document, if there is any
+				if (!JCasUtil.exists(jCas, DocumentMetaData.class)) {
+					DocumentMetaData metaData = DocumentMetaData.create(jCas);
+					metaData.setDocumentId(document);
+					metaData.setDocumentBaseUri(inputRoot.toUri().toString());
+					metaData.setDocumentUri(file.toUri().toString());
+				}
+				current.pending.incrementAndGet();
+				documents.put(cas, ImmutablePair.of(current, document));
+				return true;
+			}
+		}
+		
+		@Override
+		public void finished(CAS cas, boolean written) throws IOException {
+			ImmutablePair<ShardRun, String> document = documents.remove(cas);
+			if (document == null) {
+				return;
+			}
+			if (written) {
+				document.left.shard.finished(document.right);
+			} else {
+				document.left.failed = true;
+			}
+			document.left.done();
+		}
+	}
+	
+	/**
+	 * The documents of a shard in flight. The reader holds one share until it has read all documents of the shard,
+	 * whoever finishes the last share releases the shard.
+	 */
+	private static class ShardRun {
+		
+		final ShardManifest.Shard shard;
+		final AtomicInteger pending = new AtomicInteger(1);
+		volatile boolean failed = false;
+		
+		ShardRun(ShardManifest.Shard shard) {
+			this.shard = shard;
+		}
+		
+		void done() throws IOException {
+			if (pending.decrementAndGet() == 0) {
+				shard.release(!failed);
+			}
+		}
+	}
+	
 	private static void printUsage(Options options) {
 		HelpFormatter formatter = new HelpFormatter();
 		formatter.printHelp("java -cp $CP org.hucompute.textimager.biofid.TagTaxa",
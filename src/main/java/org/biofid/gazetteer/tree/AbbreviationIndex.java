@@ -0,0 +1,243 @@
+package org.biofid.gazetteer.tree;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.LongStream;
+
+/**
+ * Matches abbreviated taxa like {@code P. abies} against an {@link ArrayTreeNode} holding only the full taxa.
+ * <p>
+ * An abbreviation is a single letter followed by a period. It matches any child of the root whose token starts with
+ * this letter, so the abbreviated variants of the taxa do not have to be stored in the tree. If the abbreviation has
+ * been resolved to a full genus name, e.g. one mentioned earlier in the same document, this genus is tried first.
+ * Otherwise, only the genera with this initial that hold the token following the abbreviation are tried. If genera of
+ * different taxa match the same, largest number of tokens, the abbreviation is ambiguous and does not match, like an
+ * abbreviated skip-gram of more than one taxon.
+ */
+public class AbbreviationIndex {
+	
+	/**
+	 * The taxon of a match of the genera of more than one taxon.
+	 */
+	private static final int AMBIGUOUS = -2;
+	
+	private final ArrayTreeNode tree;
+	private final SkipMatcher skipMatcher;
+	private final IntUnaryOperator taxonIds;
+	/**
+	 * The distinct initials of the children of the root in ascending order.
+	 */
+	private final int[] initials;
+	/**
+	 * The children of the root with the initial {@code initials[i]} range from {@code offsets[i]} to
+	 * {@code offsets[i + 1]} (exclusive) in {@link #children}.
+	 */
+	private final int[] offsets;
+	private final int[] children;
+	/**
+	 * The tokens that may follow an abbreviation, each packed with the index of a genus in {@link #children} that holds
+	 * it. The entries of the initial {@code initials[i]} range from {@code candidateOffsets[i]} to
+	 * {@code candidateOffsets[i + 1]} (exclusive) and are sorted by token.
+	 */
+	private final long[] candidates;
+	private final int[] candidateOffsets;
+	
+	/**
+	 * Create an index over the children of the root of the given tree.
+	 *
+	 * @param tree        The tree to match against.
+	 * @param skipMatcher If not null, match with skips.
+	 * @param taxonIds    The ID of the taxon of each value, see {@link ArrayTreeNode#getValue(int)}.
+	 */
+	public AbbreviationIndex(ArrayTreeNode tree, @Nullable SkipMatcher skipMatcher, IntUnaryOperator taxonIds) {
+		this.tree = tree;
+		this.skipMatcher = skipMatcher;
+		this.taxonIds = taxonIds;
+		ITokenVocabulary vocabulary = tree.getVocabulary();
+		int start = tree.childStart(0);
+		int fanOut = tree.childStart(1) - start;
+		
+		// Sort the children of the root by the initial of their token
+		long[] sorted = new long[fanOut];
+		for (int i = 0; i < fanOut; i++) {
+			sorted[i] = ((long) vocabulary.getToken(tree.nodeKey(start + i)).codePointAt(0) << 32) | (start + i);
+		}
+		Arrays.sort(sorted);
+		
+		children = new int[fanOut];
+		int[] lInitials = new int[fanOut];
+		int[] lOffsets = new int[fanOut + 1];
+		int count = 0;
+		for (int i = 0; i < fanOut; i++) {
+			int initial = (int) (sorted[i] >>> 32);
+			if (count == 0 || lInitials[count - 1] != initial) {
+				lInitials[count] = initial;
+				lOffsets[count] = i;
+				count++;
+			}
+			children[i] = (int) sorted[i];
+		}
+		lOffsets[count] = fanOut;
+		initials = Arrays.copyOf(lInitials, count);
+		offsets = Arrays.copyOf(lOffsets, count + 1);
+		
+		// Index the tokens that may be matched right after each genus, directly or after skipping tokens
+		LongStream.Builder lCandidates = LongStream.builder();
+		int[] lCandidateCounts = new int[count];
+		for (int i = 0; i < count; i++) {
+			for (int c = offsets[i]; c < offsets[i + 1]; c++) {
+				lCandidateCounts[i] += addCandidates(children[c], c, 0, lCandidates);
+			}
+		}
+		long[] sortedCandidates = lCandidates.build().toArray();
+		candidateOffsets = new int[count + 1];
+		int size = 0;
+		for (int i = 0, from = 0; i < count; from += lCandidateCounts[i++]) {
+			candidateOffsets[i] = size;
+			Arrays.sort(sortedCandidates, from, from + lCandidateCounts[i]);
+			size += distinct(sortedCandidates, from, from + lCandidateCounts[i], size);
+		}
+		candidateOffsets[count] = size;
+		candidates = Arrays.copyOf(sortedCandidates, size);
+	}
+	
+	/**
+	 * Add the key of each child of a node below a genus to the candidates, followed by those reachable by skipping the
+	 * child, as allowed by the {@link #skipMatcher}.
+	 *
+	 * @return The number of candidates added.
+	 */
+	private int addCandidates(int node, int genusIndex, int skips, LongStream.Builder candidates) {
+		int count = 0;
+		for (int child = tree.childStart(node); child < tree.childStart(node + 1); child++) {
+			if (skipMatcher == null || skips <= skipMatcher.getSubtreeSkips(child)) {
+				candidates.add(((long) tree.nodeKey(child) << 32) | genusIndex);
+				count++;
+			}
+		}
+		if (skipMatcher != null && skips < skipMatcher.getSubtreeSkips(node)) {
+			for (int child = tree.childStart(node); child < tree.childStart(node + 1); child++) {
+				if (skips < skipMatcher.getSubtreeSkips(child)) {
+					count += addCandidates(child, genusIndex, skips + 1, candidates);
+				}
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * Copy the distinct entries of a sorted range of an array to the given position, which is not after the range.
+	 *
+	 * @return The number of distinct entries.
+	 */
+	private static int distinct(long[] array, int from, int to, int position) {
+		int count = 0;
+		for (int i = from; i < to; i++) {
+			if (count == 0 || array[position + count - 1] != array[i]) {
+				array[position + count++] = array[i];
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * Get the initial of the given token, if it is an abbreviation.
+	 *
+	 * @param token The token.
+	 * @return The code point of the initial or -1, if the token is not a single letter followed by a period.
+	 */
+	public static int getInitial(String token) {
+		if (token.isEmpty()) {
+			return -1;
+		}
+		int initial = token.codePointAt(0);
+		int length = Character.charCount(initial);
+		if (token.length() != length + 1 || token.charAt(length) != '.' || !Character.isLetter(initial)) {
+			return -1;
+		}
+		return initial;
+	}
+	
+	/**
+	 * Find the longest match for an abbreviation at {@code from - 1}, followed by the tokens starting at {@code from}.
+	 *
+	 * @param initial The initial of the abbreviation, see {@link #getInitial(String)}.
+	 * @param genus   The token ID of the genus the abbreviation has been resolved to, or {@link ITokenVocabulary#UNKNOWN}.
+	 *                If this genus leads to a match, it is returned, even if another genus would match more tokens.
+	 * @param query   An array of token IDs.
+	 * @param from    The index of the first token after the abbreviation (inclusive).
+	 * @param to      The last index in query to match (exclusive).
+	 * @param matches A buffer from {@link SkipMatcher#createMatchBuffer()}, if matching with skips.
+	 * @return The same as {@link IFrozenTreeNode#traversePacked(int[], int, int)}, relative to the abbreviation at
+	 * {@code from - 1}. The index is -1 if there is no match of at least one token after the abbreviation.
+	 */
+	public long match(int initial, int genus, @Nonnull int[] query, int from, int to, @Nullable int[] matches) {
+		if (genus > -1) {
+			int child = tree.getChild(0, genus);
+			if (child > -1) {
+				long result = matchFrom(child, initial, query, from, to, matches);
+				if (IFrozenTreeNode.matchedIndex(result) > -1) {
+					return result;
+				}
+			}
+		}
+		
+		long best = IFrozenTreeNode.pack(-1, -1);
+		int i = Arrays.binarySearch(initials, initial);
+		if (i < 0 || from >= to || query[from] < 0) {
+			return best;
+		}
+		long key = (long) query[from] << 32;
+		int c = Arrays.binarySearch(candidates, candidateOffsets[i], candidateOffsets[i + 1], key);
+		int bestTaxon = -1;
+		for (c = c < 0 ? -c - 1 : c; c < candidateOffsets[i + 1] && (candidates[c] & 0xFFFFFFFF00000000L) == key; c++) {
+			long result = matchFrom(children[(int) candidates[c]], initial, query, from, to, matches);
+			int index = IFrozenTreeNode.matchedIndex(result);
+			if (index < 0) {
+				continue;
+			}
+			int taxonId = taxonIds.applyAsInt(IFrozenTreeNode.matchedValue(result));
+			if (index > IFrozenTreeNode.matchedIndex(best)) {
+				best = result;
+				bestTaxon = taxonId < 0 ? AMBIGUOUS : taxonId;
+			} else if (index == IFrozenTreeNode.matchedIndex(best) && taxonId != bestTaxon) {
+				bestTaxon = AMBIGUOUS;
+			}
+		}
+		return bestTaxon == AMBIGUOUS ? IFrozenTreeNode.pack(-1, -1) : best;
+	}
+	
+	private long matchFrom(int child, int initial, int[] query, int from, int to, int[] matches) {
+		long result;
+		if (skipMatcher != null) {
+			result = skipMatcher.match(child, Character.charCount(initial) + 1, query, from, to, matches);
+		} else {
+			result = tree.traversePacked(child, query, from, to);
+		}
+		int valueIndex = IFrozenTreeNode.matchedValue(result);
+		int matchedIndex = IFrozenTreeNode.matchedIndex(result);
+		// The value of the genus alone does not match the abbreviation
+		if (valueIndex < 0 || matchedIndex < 0 || valueIndex == tree.valueIndex(child)) {
+			return IFrozenTreeNode.pack(-1, -1);
+		}
+		return IFrozenTreeNode.pack(valueIndex, matchedIndex + 1);
+	}
+	
+	/**
+	 * @param initial The code point of an initial.
+	 * @return The index of the initial in the sorted distinct initials of the children of the root, between 0 and
+	 * {@link #size()} (exclusive), or -1 if no child of the root starts with it.
+	 */
+	public int indexOf(int initial) {
+		return Math.max(-1, Arrays.binarySearch(initials, initial));
+	}
+	
+	/**
+	 * @return The number of distinct initials of the children of the root.
+	 */
+	public int size() {
+		return initials.length;
+	}
+}
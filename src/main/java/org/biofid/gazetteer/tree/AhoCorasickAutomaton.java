@@ -0,0 +1,140 @@
+package org.biofid.gazetteer.tree;
+
+import javax.annotation.Nonnull;
+import java.util.Arrays;
+
+/**
+ * An Aho-Corasick automaton over the token IDs of an {@link ArrayTreeNode}.
+ * <p>
+ * The tree itself is used as the goto function, the automaton only adds a failure link and a dictionary suffix link
+ * for each node. Thus, all occurrences of all values in a range of tokens are found in a single pass, regardless of
+ * the depth of the tree.
+ */
+public class AhoCorasickAutomaton {
+	
+	/**
+	 * Receives the matches found by {@link #findAll(int[], int, int, boolean, MatchHandler)}.
+	 */
+	public interface MatchHandler {
+		/**
+		 * @param start      The index of the first token of the match.
+		 * @param end        The index of the last token of the match (inclusive).
+		 * @param valueIndex The index of the matched value, see {@link ArrayTreeNode#getValue(int)}.
+		 */
+		void match(int start, int end, int valueIndex);
+	}
+	
+	private final ArrayTreeNode tree;
+	/**
+	 * The node of the longest proper suffix of each node that is also a node in the tree.
+	 */
+	private final int[] fail;
+	/**
+	 * The node of the longest proper suffix of each node that has a value or -1, if there is no such node.
+	 */
+	private final int[] output;
+	private final int[] nodeDepth;
+	
+	/**
+	 * Create an automaton for the given tree. The tree is not copied.
+	 *
+	 * @param tree The tree to match against.
+	 */
+	public AhoCorasickAutomaton(ArrayTreeNode tree) {
+		this.tree = tree;
+		int nodeCount = tree.size();
+		fail = new int[nodeCount];
+		output = new int[nodeCount];
+		nodeDepth = new int[nodeCount];
+		output[0] = -1;
+		
+		// Nodes are numbered in breadth-first order, so the links of each parent are set before its children
+		for (int node = 0; node < nodeCount; node++) {
+			for (int child = tree.childStart(node); child < tree.childStart(node + 1); child++) {
+				nodeDepth[child] = nodeDepth[node] + 1;
+				if (node == 0) {
+					fail[child] = 0;
+				} else {
+					int key = tree.nodeKey(child);
+					int state = fail[node];
+					int next;
+					while ((next = tree.getChild(state, key)) < 0 && state != 0) {
+						state = fail[state];
+					}
+					fail[child] = Math.max(next, 0);
+				}
+				output[child] = tree.valueIndex(fail[child]) > -1 ? fail[child] : output[fail[child]];
+			}
+		}
+	}
+	
+	/**
+	 * @return The tree this automaton matches against.
+	 */
+	public ArrayTreeNode getTree() {
+		return tree;
+	}
+	
+	/**
+	 * Find matches in the given range of token IDs. {@link ITokenVocabulary#UNKNOWN Unknown} tokens never match.
+	 * <p>
+	 * If {@code overlapping} is true, every occurrence of every value is reported, ordered by end index. Otherwise,
+	 * the matches are selected leftmost-longest: starting at the beginning of the range, the longest match starting at
+	 * the leftmost possible position is reported and the search continues after its end.
+	 *
+	 * @param query       The token IDs.
+	 * @param from        The first index of the range (inclusive).
+	 * @param to          The last index of the range (exclusive).
+	 * @param overlapping If true, report all matches, otherwise only non-overlapping leftmost-longest matches.
+	 * @param handler     The handler to report matches to.
+	 */
+	public void findAll(@Nonnull int[] query, int from, int to, boolean overlapping, MatchHandler handler) {
+		if (overlapping) {
+			scan(query, from, to, handler);
+			return;
+		}
+		
+		// Keep the longest match for each start index, then select matches from left to right
+		int[] longestEnd = new int[Math.max(0, to - from)];
+		int[] longestValue = new int[longestEnd.length];
+		Arrays.fill(longestEnd, -1);
+		scan(query, from, to, (start, end, valueIndex) -> {
+			if (end > longestEnd[start - from]) {
+				longestEnd[start - from] = end;
+				longestValue[start - from] = valueIndex;
+			}
+		});
+		int offset = from;
+		while (offset < to) {
+			int end = longestEnd[offset - from];
+			if (end > -1) {
+				handler.match(offset, end, longestValue[offset - from]);
+				offset = end + 1;
+			} else {
+				offset++;
+			}
+		}
+	}
+	
+	private void scan(int[] query, int from, int to, MatchHandler handler) {
+		int state = 0;
+		for (int i = from; i < to; i++) {
+			int key = query[i];
+			if (key == ITokenVocabulary.UNKNOWN) {
+				state = 0;
+				continue;
+			}
+			int next;
+			while ((next = tree.getChild(state, key)) < 0 && state != 0) {
+				state = fail[state];
+			}
+			state = Math.max(next, 0);
+			
+			int node = tree.valueIndex(state) > -1 ? state : output[state];
+			while (node > 0) {
+				handler.match(i - nodeDepth[node] + 1, i, tree.valueIndex(node));
+				node = output[node];
+			}
+		}
+	}
+}
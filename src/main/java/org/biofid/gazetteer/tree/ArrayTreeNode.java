@@ -0,0 +1,202 @@
+package org.biofid.gazetteer.tree;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Base class for immutable token trees stored in flat arrays.
+ * <p>
+ * All nodes are numbered in breadth-first order, so the children of each node occupy a contiguous, key-sorted range
+ * of node indices and the root is node 0. Keys are token IDs from the tree's {@link ITokenVocabulary}. Subclasses
+ * only provide access to the underlying storage, all traversals are implemented iteratively on top of it.
+ */
+public abstract class ArrayTreeNode implements IFrozenTreeNode {
+	
+	private PerfectHashChildIndex childIndex;
+	
+	/**
+	 * Get the index of the first child of the given node. The children of node {@code i} range from
+	 * {@code childStart(i)} to {@code childStart(i + 1)} (exclusive), so {@code childStart(size())} must be valid.
+	 */
+	protected abstract int childStart(int node);
+	
+	/**
+	 * Get the key of the edge leading to the given node. Undefined for the root.
+	 */
+	protected abstract int nodeKey(int node);
+	
+	/**
+	 * Get the index of the value of the given node or -1, if the node has no value.
+	 */
+	protected abstract int valueIndex(int node);
+	
+	/**
+	 * Get a value by its index. Indices range from 0 to {@link #nodesWithValue()} (exclusive).
+	 *
+	 * @param index The index of the value.
+	 * @return The value.
+	 */
+	@Override
+	public abstract String getValue(int index);
+	
+	/**
+	 * Get the index of the given value.
+	 *
+	 * @param value The value to look up.
+	 * @return The index of the value or -1, if no node in this tree has this value.
+	 */
+	public abstract int getValueIndex(String value);
+	
+	/**
+	 * Find the child of the given node for the given key.
+	 *
+	 * @return The index of the child node or -1, if there is no such child.
+	 */
+	protected int getChild(int node, int key) {
+		if (key == ITokenVocabulary.UNKNOWN) {
+			return -1;
+		}
+		int start = childStart(node);
+		int end = childStart(node + 1);
+		if (childIndex != null) {
+			int child = childIndex.getChild(node, start, end, key);
+			if (child != PerfectHashChildIndex.NOT_INDEXED) {
+				return child;
+			}
+		}
+		return searchChild(start, end, key);
+	}
+	
+	/**
+	 * Binary search for the child with the given key in the given range of children.
+	 *
+	 * @return The index of the child node or -1, if there is no such child.
+	 */
+	protected int searchChild(int start, int end, int key) {
+		int low = start;
+		int high = end - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int midKey = nodeKey(mid);
+			if (midKey < key) {
+				low = mid + 1;
+			} else if (midKey > key) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Build a {@link PerfectHashChildIndex} for all nodes with at least {@code minFanOut} children and use it for all
+	 * further child lookups. Traversal results do not change.
+	 *
+	 * @param minFanOut The minimum number of children of a node to build a hash function for it.
+	 * @return The index.
+	 */
+	public PerfectHashChildIndex buildChildIndex(int minFanOut) {
+		childIndex = new PerfectHashChildIndex(this, minFanOut);
+		return childIndex;
+	}
+	
+	@Override
+	public boolean hasValue() {
+		return valueIndex(0) > -1;
+	}
+	
+	@Override
+	public boolean isLeaf() {
+		return childStart(0) == childStart(1);
+	}
+	
+	@Override
+	public void insert(String value) {
+		throw new UnsupportedOperationException(String.format("%s is immutable, insert into a StringTreeNode instead!", getClass().getSimpleName()));
+	}
+	
+	@Override
+	public int leafs() {
+		int leafs = 0;
+		for (int i = 0; i < size(); i++) {
+			if (childStart(i) == childStart(i + 1)) {
+				leafs++;
+			}
+		}
+		return leafs;
+	}
+	
+	@Override
+	public ImmutablePair<String, Integer> traverse(@Nonnull List<String> subString) {
+		return traverse(getVocabulary().encode(subString), 0, subString.size());
+	}
+	
+	@Override
+	public long traversePacked(@Nonnull int[] query, int from, int to) {
+		return traversePacked(0, query, from, to);
+	}
+	
+	/**
+	 * Like {@link #traversePacked(int[], int, int)}, but start at the given node instead of the root.
+	 *
+	 * @param node  The node to start at.
+	 * @param query An array of token IDs.
+	 * @param from  The first index in query to match (inclusive).
+	 * @param to    The last index in query to match (exclusive).
+	 * @return The packed value index and index of the last matched token, relative to {@code from}.
+	 */
+	public long traversePacked(int node, @Nonnull int[] query, int from, int to) {
+		int lastIndex = -1;
+		int lastValue = -1;
+		for (int i = from; i < to; i++) {
+			// save value if this node has one
+			if (valueIndex(node) > -1) {
+				lastValue = valueIndex(node);
+			}
+			
+			int child = getChild(node, query[i]);
+			if (child < 0) {
+				break;
+			}
+			node = child;
+			lastIndex = i - from;
+		}
+		
+		if (valueIndex(node) > -1) {
+			lastValue = valueIndex(node);
+		}
+		return IFrozenTreeNode.pack(lastValue, lastIndex);
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("{\"%s\": {%s}}", getClass().getSimpleName(), toString(0));
+	}
+	
+	private String toString(int node) {
+		String sNode = "";
+		boolean isLeaf = childStart(node) == childStart(node + 1);
+		if (valueIndex(node) > -1) {
+			sNode = String.format("\"isLeaf\":\"%b\", \"value\":\"%s\"", isLeaf, getValue(valueIndex(node)));
+		}
+		String sChildren = "";
+		if (!isLeaf) {
+			ArrayList<String> strings = new ArrayList<>();
+			for (int child = childStart(node); child < childStart(node + 1); child++) {
+				strings.add(String.format("\"%s\": {%s}", getVocabulary().getToken(nodeKey(child)), toString(child)));
+			}
+			sChildren = String.join(",\n", strings);
+		}
+		return sNode + (StringUtils.isNotBlank(sNode) && StringUtils.isNotBlank(sChildren) ? ", " : "") + sChildren;
+	}
+	
+	@Override
+	public String getValue() {
+		return hasValue() ? getValue(valueIndex(0)) : null;
+	}
+}
@@ -0,0 +1,293 @@
+package org.biofid.gazetteer.tree;
+
+import javax.annotation.Nonnull;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+/**
+ * An acyclic finite-state transducer over characters, which maps the values of an {@link IFrozenTreeNode} to their
+ * value indices and matches them directly in a document text.
+ * <p>
+ * The transducer is stored like a {@link FrozenTreeNode}: all states are numbered in breadth-first order, so the
+ * transitions of each state lead to a contiguous, label-sorted range of states. Whitespace between the tokens of a
+ * skip-gram is stored as a single {@link #SEPARATOR} transition, which matches any run of whitespace in the text.
+ * <p>
+ * Matches only start after and end before a boundary character, given as a regular expression character class. Thus,
+ * no tokenization is required, but a skip-gram is never matched in the middle of a word.
+ */
+public class CharacterTransducer {
+	
+	private static final char SEPARATOR = ' ';
+	
+	/**
+	 * Receives the matches found by {@link #findAll(CharSequence, int, int, MatchHandler)}.
+	 */
+	public interface MatchHandler {
+		/**
+		 * @param begin The character offset of the beginning of the match.
+		 * @param end   The character offset of the end of the match (exclusive).
+		 * @param valueIndex The index of the matched value, see {@link IFrozenTreeNode#getValue(int)}.
+		 */
+		void match(int begin, int end, int valueIndex);
+	}
+	
+	/**
+	 * The transitions of state {@code i} lead to the states {@code [childOffsets[i], childOffsets[i + 1])}.
+	 */
+	private final int[] childOffsets;
+	/**
+	 * The label of the transition leading to each state, undefined for the initial state 0.
+	 */
+	private final char[] labels;
+	/**
+	 * The index of the value of the tree for each final state or -1, if the state is not final.
+	 */
+	private final int[] valueIndex;
+	private final boolean useLowercase;
+	/**
+	 * One bit for each {@code char}, set if the character matches the boundary character class.
+	 */
+	private final long[] boundaries = new long[1 << 10];
+	
+	/**
+	 * Build a transducer from the values of the given tree.
+	 *
+	 * @param tree                   The tree whose values to match. If a value differs from another one only in its
+	 *                               whitespace, only the one with the lower index is kept.
+	 * @param useLowercase           If true, the text is converted to lower case with {@link String#toLowerCase()} while
+	 *                               matching, like the values of the tree.
+	 * @param boundaryCharacterClass A regular expression matching a single character at which matches may begin or end,
+	 *                               e.g. {@code [\s\p{P}]}.
+	 */
+	public CharacterTransducer(@Nonnull IFrozenTreeNode tree, boolean useLowercase, @Nonnull String boundaryCharacterClass) {
+		this.useLowercase = useLowercase;
+		Pattern boundaryPattern = Pattern.compile(boundaryCharacterClass);
+		for (int c = Character.MIN_VALUE; c <= Character.MAX_VALUE; c++) {
+			// A separator always ends a token, even if the pattern does not match it, e.g. \u00A0 and [\s\p{P}]
+			if (isSeparator((char) c) || boundaryPattern.matcher(String.valueOf((char) c)).matches()) {
+				boundaries[c >>> 6] |= 1L << c;
+			}
+		}
+		
+		// Sort the normalized keys, so the keys below each state form a contiguous range
+		int valueCount = tree.nodesWithValue();
+		String[] entryKeys = new String[valueCount];
+		Integer[] entries = new Integer[valueCount];
+		int entryCount = 0;
+		for (int index = 0; index < valueCount; index++) {
+			String key = normalize(tree.getValue(index));
+			if (!key.isEmpty()) {
+				entryKeys[index] = key;
+				entries[entryCount++] = index;
+			}
+		}
+		// The sort is stable, so of two equal keys the one with the lower value index comes first
+		Arrays.sort(entries, 0, entryCount, (a, b) -> entryKeys[a].compareTo(entryKeys[b]));
+		String[] keys = new String[entryCount];
+		int[] values = new int[entryCount];
+		int keyCount = 0;
+		int stateCount = 1;
+		for (int i = 0; i < entryCount; i++) {
+			String key = entryKeys[entries[i]];
+			if (keyCount > 0 && keys[keyCount - 1].equals(key)) {
+				continue;
+			}
+			stateCount += key.length() - (keyCount > 0 ? commonPrefixLength(keys[keyCount - 1], key) : 0);
+			keys[keyCount] = key;
+			values[keyCount] = entries[i];
+			keyCount++;
+		}
+		
+		childOffsets = new int[stateCount + 1];
+		labels = new char[stateCount];
+		valueIndex = new int[stateCount];
+		// The keys of state i are keys[rangeBegin[i]..rangeEnd[i]), all sharing a prefix of length stateDepth[i]
+		int[] rangeBegin = new int[stateCount];
+		int[] rangeEnd = new int[stateCount];
+		int[] stateDepth = new int[stateCount];
+		rangeEnd[0] = keyCount;
+		int nextState = 1;
+		for (int state = 0; state < stateCount; state++) {
+			int begin = rangeBegin[state];
+			int end = rangeEnd[state];
+			int depth = stateDepth[state];
+			if (begin < end && keys[begin].length() == depth) {
+				valueIndex[state] = values[begin++];
+			} else {
+				valueIndex[state] = -1;
+			}
+			
+			childOffsets[state] = nextState;
+			while (begin < end) {
+				char label = keys[begin].charAt(depth);
+				int groupEnd = begin + 1;
+				while (groupEnd < end && keys[groupEnd].charAt(depth) == label) {
+					groupEnd++;
+				}
+				labels[nextState] = label;
+				rangeBegin[nextState] = begin;
+				rangeEnd[nextState] = groupEnd;
+				stateDepth[nextState] = depth + 1;
+				nextState++;
+				begin = groupEnd;
+			}
+		}
+		childOffsets[stateCount] = stateCount;
+	}
+	
+	/**
+	 * Replace each run of {@link #isSeparator(char) separators} in the value with a single {@link #SEPARATOR} and
+	 * remove them at its beginning and end, so the keys use the same whitespace as the matching.
+	 */
+	private static String normalize(String value) {
+		StringBuilder key = new StringBuilder(value.length());
+		boolean separated = false;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (isSeparator(c)) {
+				separated = key.length() > 0;
+			} else {
+				if (separated) {
+					key.append(SEPARATOR);
+					separated = false;
+				}
+				key.append(c);
+			}
+		}
+		return key.toString();
+	}
+	
+	private static int commonPrefixLength(String a, String b) {
+		int length = Math.min(a.length(), b.length());
+		int i = 0;
+		while (i < length && a.charAt(i) == b.charAt(i)) {
+			i++;
+		}
+		return i;
+	}
+	
+	/**
+	 * Find all non-overlapping matches in the given range of the text. Starting at the beginning of the range, the
+	 * longest match at each word start is reported and the search continues after its end.
+	 * <p>
+	 * If the text is converted to lower case, this is done for the whole range at once, as for the tokens of the
+	 * token-based matching. Characters whose lower case has a different length, like {@code \u0130}, are mapped back to
+	 * their offsets in the original text.
+	 *
+	 * @param text    The text to search.
+	 * @param from    The character offset of the beginning of the range (inclusive).
+	 * @param to      The character offset of the end of the range (exclusive).
+	 * @param handler The handler to report matches to.
+	 */
+	public void findAll(@Nonnull CharSequence text, int from, int to, MatchHandler handler) {
+		if (!useLowercase) {
+			findAll(text, from, to, from, null, handler);
+			return;
+		}
+		String lowerCase = text.subSequence(from, to).toString().toLowerCase();
+		int[] sourceOffsets = lowerCase.length() == to - from ? null : getSourceOffsets(text, from, to, lowerCase.length());
+		findAll(lowerCase, 0, lowerCase.length(), from, sourceOffsets, handler);
+	}
+	
+	/**
+	 * Map each character offset of the lower case of the given range to the offset of its source character.
+	 */
+	private static int[] getSourceOffsets(CharSequence text, int from, int to, int length) {
+		int[] sourceOffsets = new int[length + 1];
+		int offset = 0;
+		int source = from;
+		while (source < to) {
+			int next = source + Character.charCount(Character.codePointAt(text, source));
+			int lowerCaseLength = text.subSequence(source, next).toString().toLowerCase().length();
+			for (int i = 0; i < lowerCaseLength && offset < length; i++) {
+				sourceOffsets[offset++] = source;
+			}
+			source = next;
+		}
+		while (offset <= length) {
+			sourceOffsets[offset++] = to;
+		}
+		return sourceOffsets;
+	}
+	
+	/**
+	 * @param shift         The offset of the beginning of the text in the original text, if there are no source offsets.
+	 * @param sourceOffsets The offsets of each character of the text in the original text or null.
+	 */
+	private void findAll(CharSequence text, int from, int to, int shift, int[] sourceOffsets, MatchHandler handler) {
+		int offset = from;
+		while (offset < to) {
+			if (isSeparator(text.charAt(offset)) || (offset > from && !isBoundary(text.charAt(offset - 1)))) {
+				offset++;
+				continue;
+			}
+			
+			int state = 0;
+			int position = offset;
+			int matchEnd = -1;
+			int matchValue = -1;
+			while (position < to) {
+				char c = text.charAt(position);
+				if (isSeparator(c)) {
+					state = getChild(state, SEPARATOR);
+					while (++position < to && isSeparator(text.charAt(position))) {
+						// A run of whitespace is a single separator
+					}
+				} else {
+					state = getChild(state, c);
+					position++;
+				}
+				if (state < 0) {
+					break;
+				}
+				if (valueIndex[state] > -1 && (position == to || isBoundary(text.charAt(position)))) {
+					matchEnd = position;
+					matchValue = valueIndex[state];
+				}
+			}
+			
+			if (matchEnd > -1) {
+				if (sourceOffsets == null) {
+					handler.match(shift + offset, shift + matchEnd, matchValue);
+				} else {
+					handler.match(sourceOffsets[offset], sourceOffsets[matchEnd], matchValue);
+				}
+				offset = matchEnd;
+			} else {
+				offset++;
+			}
+		}
+	}
+	
+	private int getChild(int state, char label) {
+		int low = childOffsets[state];
+		int high = childOffsets[state + 1] - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			char midLabel = labels[mid];
+			if (midLabel < label) {
+				low = mid + 1;
+			} else if (midLabel > label) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+	
+	private boolean isBoundary(char c) {
+		return (boundaries[c >>> 6] & (1L << c)) != 0;
+	}
+	
+	private static boolean isSeparator(char c) {
+		return Character.isWhitespace(c) || Character.isSpaceChar(c);
+	}
+	
+	/**
+	 * @return The number of states.
+	 */
+	public int size() {
+		return valueIndex.length;
+	}
+}
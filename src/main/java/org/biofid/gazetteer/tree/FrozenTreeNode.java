@@ -0,0 +1,181 @@
+package org.biofid.gazetteer.tree;
+
+import org.apache.commons.lang3.tuple.ImmutablePair;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * An immutable, array-backed token tree created from a fully built {@link StringTreeNode}.
+ * <p>
+ * As the root has no incoming edge, the key of node {@code i} is stored at {@code childKeys[i - 1]}. Keys are token
+ * IDs from the tree's {@link TokenVocabulary}, so {@link #traverse(int[], int, int)} runs iteratively over primitive
+ * arrays with a binary search per token instead of a hash lookup in a per-node map.
+ */
+public class FrozenTreeNode extends ArrayTreeNode {
+	
+	/**
+	 * The keys of the children of node {@code i} are stored in the range {@code [childOffsets[i], childOffsets[i + 1])}
+	 * of {@link #childKeys}.
+	 */
+	private final int[] childOffsets;
+	private final int[] childKeys;
+	/**
+	 * The index into {@link #values} for each node or -1, if the node has no value.
+	 */
+	private final int[] valueIndex;
+	/**
+	 * The values are unique, so a vocabulary allows finding the index of a given value.
+	 */
+	private final TokenVocabulary values;
+	/**
+	 * The {@link StringTreeNode#getPayload() payload} of each value.
+	 */
+	private final int[] payloads;
+	private final int depth;
+	private final TokenVocabulary vocabulary;
+	
+	/**
+	 * Freeze the given tree. The tree is not modified and may be discarded afterwards.
+	 *
+	 * @param root The root of a fully built {@link StringTreeNode} tree.
+	 */
+	public FrozenTreeNode(StringTreeNode root) {
+		int nodeCount = root.size();
+		childOffsets = new int[nodeCount + 1];
+		childKeys = new int[nodeCount - 1];
+		valueIndex = new int[nodeCount];
+		
+		// Keys re-occur under many different parents, IDs are assigned in order of their first occurrence
+		HashMap<String, Integer> tokenIds = new HashMap<>();
+		ArrayList<String> lTokens = new ArrayList<>();
+		ArrayList<String> lValues = new ArrayList<>();
+		int[] lPayloads = new int[nodeCount];
+		int[] nodeDepth = new int[nodeCount];
+		int maxDepth = 0;
+		
+		ArrayDeque<StringTreeNode> queue = new ArrayDeque<>();
+		queue.add(root);
+		int node = 0;
+		int nextNode = 1;
+		while (!queue.isEmpty()) {
+			StringTreeNode current = queue.poll();
+			if (current.hasValue()) {
+				valueIndex[node] = lValues.size();
+				lPayloads[lValues.size()] = current.getPayload();
+				lValues.add(current.getValue());
+			} else {
+				valueIndex[node] = -1;
+			}
+			maxDepth = Math.max(maxDepth, nodeDepth[node]);
+			
+			ArrayList<ImmutablePair<Integer, StringTreeNode>> children = new ArrayList<>(current.children.size());
+			for (Map.Entry<String, StringTreeNode> child : current.children.entrySet()) {
+				Integer id = tokenIds.computeIfAbsent(child.getKey(), k -> {
+					lTokens.add(k);
+					return lTokens.size() - 1;
+				});
+				children.add(ImmutablePair.of(id, child.getValue()));
+			}
+			children.sort(Comparator.comparingInt(ImmutablePair::getLeft));
+			childOffsets[node] = nextNode - 1;
+			for (ImmutablePair<Integer, StringTreeNode> child : children) {
+				childKeys[nextNode - 1] = child.left;
+				nodeDepth[nextNode] = nodeDepth[node] + 1;
+				queue.add(child.right);
+				nextNode++;
+			}
+			node++;
+		}
+		childOffsets[nodeCount] = nodeCount - 1;
+		
+		values = new TokenVocabulary(lValues.toArray(new String[0]));
+		payloads = Arrays.copyOf(lPayloads, lValues.size());
+		depth = maxDepth + 1;
+		vocabulary = new TokenVocabulary(lTokens.toArray(new String[0]));
+	}
+	
+	@Override
+	protected int childStart(int node) {
+		return childOffsets[node] + 1;
+	}
+	
+	@Override
+	protected int nodeKey(int node) {
+		return childKeys[node - 1];
+	}
+	
+	@Override
+	protected int valueIndex(int node) {
+		return valueIndex[node];
+	}
+	
+	@Override
+	protected int searchChild(int start, int end, int key) {
+		int index = Arrays.binarySearch(childKeys, start - 1, end - 1, key);
+		return index < 0 ? -1 : index + 1;
+	}
+	
+	@Override
+	public int size() {
+		return valueIndex.length;
+	}
+	
+	@Override
+	public int nodesWithValue() {
+		return values.size();
+	}
+	
+	@Override
+	public String getValue(int index) {
+		return values.getToken(index);
+	}
+	
+	@Override
+	public int getValueIndex(String value) {
+		return values.getId(value);
+	}
+	
+	/**
+	 * Get the payload the value with the given index was inserted with.
+	 *
+	 * @param index The index of the value.
+	 * @return The payload or {@link StringTreeNode#NO_PAYLOAD}.
+	 */
+	public int getPayload(int index) {
+		return payloads[index];
+	}
+	
+	@Override
+	public int depth() {
+		return depth;
+	}
+	
+	@Override
+	public ITokenVocabulary getVocabulary() {
+		return vocabulary;
+	}
+	
+	/**
+	 * Write this tree in the layout read by {@link MappedTreeNode}.
+	 *
+	 * @param out The stream to write to.
+	 * @throws IOException If the stream could not be written.
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(valueIndex.length);
+		out.writeInt(depth);
+		for (int childOffset : childOffsets) {
+			out.writeInt(childOffset);
+		}
+		for (int childKey : childKeys) {
+			out.writeInt(childKey);
+		}
+		for (int index : valueIndex) {
+			out.writeInt(index);
+		}
+		values.write(out);
+		vocabulary.write(out);
+	}
+}
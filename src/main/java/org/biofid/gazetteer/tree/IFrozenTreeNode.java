@@ -0,0 +1,65 @@
+package org.biofid.gazetteer.tree;
+
+import org.apache.commons.lang3.tuple.ImmutablePair;
+
+import javax.annotation.Nonnull;
+
+/**
+ * An immutable token tree, whose keys are token IDs from its {@link #getVocabulary() vocabulary} and whose values are
+ * numbered from 0 to {@link #nodesWithValue()} (exclusive).
+ */
+public interface IFrozenTreeNode extends ITreeNode {
+	
+	/**
+	 * Traverse the tree with a range of token IDs from this tree's {@link #getVocabulary() vocabulary}.
+	 *
+	 * @param query An array of token IDs.
+	 * @param from  The first index in query to match (inclusive).
+	 * @param to    The last index in query to match (exclusive).
+	 * @return The same as {@link #traverse(java.util.List)} for the range, the index is relative to {@code from}.
+	 */
+	default ImmutablePair<String, Integer> traverse(@Nonnull int[] query, int from, int to) {
+		long result = traversePacked(query, from, to);
+		int valueIndex = matchedValue(result);
+		return ImmutablePair.of(valueIndex > -1 ? getValue(valueIndex) : null, matchedIndex(result));
+	}
+	
+	/**
+	 * Traverse the tree like {@link #traverse(int[], int, int)}, but iteratively and without allocating any objects.
+	 *
+	 * @param query An array of token IDs.
+	 * @param from  The first index in query to match (inclusive).
+	 * @param to    The last index in query to match (exclusive).
+	 * @return The index of the value and the index relative to {@code from}, packed into a single long. Use
+	 * {@link #matchedValue(long)} and {@link #matchedIndex(long)} to unpack it.
+	 */
+	long traversePacked(@Nonnull int[] query, int from, int to);
+	
+	/**
+	 * Get a value by its index, as returned by {@link #traversePacked(int[], int, int)}.
+	 *
+	 * @param index The index of the value.
+	 * @return The value.
+	 */
+	String getValue(int index);
+	
+	ITokenVocabulary getVocabulary();
+	
+	static long pack(int valueIndex, int index) {
+		return ((long) valueIndex << 32) | (index & 0xFFFFFFFFL);
+	}
+	
+	/**
+	 * @return The index of the last value on the traversed path or -1, if there is none.
+	 */
+	static int matchedValue(long packed) {
+		return (int) (packed >> 32);
+	}
+	
+	/**
+	 * @return The index of the last matched token relative to {@code from} or -1, if no token matched.
+	 */
+	static int matchedIndex(long packed) {
+		return (int) packed;
+	}
+}
@@ -0,0 +1,38 @@
+package org.biofid.gazetteer.tree;
+
+import javax.annotation.Nonnull;
+import java.util.List;
+
+public interface ITokenVocabulary {
+	
+	/**
+	 * The ID for all tokens that are not in the vocabulary.
+	 */
+	int UNKNOWN = -1;
+	
+	/**
+	 * Get the ID of the given token.
+	 *
+	 * @param token The token to look up.
+	 * @return The ID of the token or {@link #UNKNOWN}, if the token is not part of the vocabulary.
+	 */
+	int getId(String token);
+	
+	/**
+	 * Convert a list of tokens to their IDs.
+	 *
+	 * @param pTokens The tokens to convert.
+	 * @return An array of the same length, containing the token IDs or {@link #UNKNOWN}.
+	 */
+	default int[] encode(@Nonnull List<String> pTokens) {
+		int[] ids = new int[pTokens.size()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = getId(pTokens.get(i));
+		}
+		return ids;
+	}
+	
+	String getToken(int id);
+	
+	int size();
+}
@@ -0,0 +1,127 @@
+package org.biofid.gazetteer.tree;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * A read-only table of UTF-8 encoded strings in a {@link ByteBuffer}, usually a slice of a memory-mapped model file.
+ * <p>
+ * Layout: the number of strings {@code n}, {@code n + 1} byte offsets and the concatenated string bytes, padded to a
+ * multiple of four bytes.
+ */
+public class MappedStringTable {
+	
+	private final int size;
+	private final IntBuffer offsets;
+	private final ByteBuffer bytes;
+	
+	/**
+	 * Read a string table starting at the current position of the given buffer. The position of the buffer is
+	 * advanced to the end of the table.
+	 *
+	 * @param buffer The buffer to read from.
+	 */
+	public MappedStringTable(ByteBuffer buffer) {
+		size = buffer.getInt();
+		offsets = sliceInts(buffer, size + 1);
+		bytes = sliceBytes(buffer, offsets.get(size));
+		buffer.position(buffer.position() + padding(offsets.get(size)));
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public String get(int index) {
+		int from = offsets.get(index);
+		byte[] value = new byte[offsets.get(index + 1) - from];
+		ByteBuffer duplicate = bytes.duplicate();
+		duplicate.position(from);
+		duplicate.get(value);
+		return new String(value, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Compare the string at the given index with the given string without decoding it into a new String.
+	 *
+	 * @param index The index of the string in this table.
+	 * @param other The string to compare to.
+	 * @return True, if both strings are equal.
+	 */
+	public boolean equals(int index, String other) {
+		int position = offsets.get(index);
+		int end = offsets.get(index + 1);
+		int i = 0;
+		while (position < end) {
+			int b = bytes.get(position++) & 0xFF;
+			int codePoint;
+			if (b < 0x80) {
+				codePoint = b;
+			} else if (b < 0xE0) {
+				codePoint = ((b & 0x1F) << 6) | (bytes.get(position++) & 0x3F);
+			} else if (b < 0xF0) {
+				codePoint = ((b & 0x0F) << 12) | ((bytes.get(position++) & 0x3F) << 6) | (bytes.get(position++) & 0x3F);
+			} else {
+				codePoint = ((b & 0x07) << 18) | ((bytes.get(position++) & 0x3F) << 12)
+						| ((bytes.get(position++) & 0x3F) << 6) | (bytes.get(position++) & 0x3F);
+			}
+			if (i >= other.length() || other.codePointAt(i) != codePoint) {
+				return false;
+			}
+			i += Character.charCount(codePoint);
+		}
+		return i == other.length();
+	}
+	
+	/**
+	 * Write the given strings in the layout read by {@link #MappedStringTable(ByteBuffer)}.
+	 *
+	 * @param out     The stream to write to.
+	 * @param strings The strings to write.
+	 * @throws IOException If the stream could not be written.
+	 */
+	public static void write(DataOutputStream out, String[] strings) throws IOException {
+		ArrayList<byte[]> encoded = new ArrayList<>(strings.length);
+		out.writeInt(strings.length);
+		int offset = 0;
+		out.writeInt(offset);
+		for (String string : strings) {
+			byte[] value = string.getBytes(StandardCharsets.UTF_8);
+			encoded.add(value);
+			offset += value.length;
+			out.writeInt(offset);
+		}
+		for (byte[] value : encoded) {
+			out.write(value);
+		}
+		out.write(new byte[padding(offset)]);
+	}
+	
+	/**
+	 * Read the given number of ints from the buffer as a new {@link IntBuffer} and advance its position.
+	 */
+	public static IntBuffer sliceInts(ByteBuffer buffer, int length) {
+		IntBuffer slice = buffer.slice().asIntBuffer();
+		slice.limit(length);
+		buffer.position(buffer.position() + length * Integer.BYTES);
+		return slice;
+	}
+	
+	/**
+	 * Read the given number of bytes from the buffer as a new {@link ByteBuffer} and advance its position.
+	 */
+	public static ByteBuffer sliceBytes(ByteBuffer buffer, int length) {
+		ByteBuffer slice = buffer.slice();
+		slice.limit(length);
+		buffer.position(buffer.position() + length);
+		return slice;
+	}
+	
+	static int padding(int length) {
+		return (4 - (length & 3)) & 3;
+	}
+}
@@ -0,0 +1,52 @@
+package org.biofid.gazetteer.tree;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * A read-only {@link ITokenVocabulary} in a {@link ByteBuffer}, as written by
+ * {@link TokenVocabulary#write(java.io.DataOutputStream)}. The open addressing table and all tokens stay in the
+ * buffer, tokens are only decoded by {@link #getToken(int)}.
+ */
+public class MappedTokenVocabulary implements ITokenVocabulary {
+	
+	private final MappedStringTable tokens;
+	private final IntBuffer table;
+	private final int mask;
+	
+	/**
+	 * Read a vocabulary starting at the current position of the given buffer. The position of the buffer is advanced
+	 * to the end of the vocabulary.
+	 *
+	 * @param buffer The buffer to read from.
+	 */
+	public MappedTokenVocabulary(ByteBuffer buffer) {
+		tokens = new MappedStringTable(buffer);
+		int capacity = buffer.getInt();
+		table = MappedStringTable.sliceInts(buffer, capacity);
+		mask = capacity - 1;
+	}
+	
+	@Override
+	public int getId(String token) {
+		int slot = TokenVocabulary.hash(token) & mask;
+		int entry;
+		while ((entry = table.get(slot)) != 0) {
+			if (tokens.equals(entry - 1, token)) {
+				return entry - 1;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return UNKNOWN;
+	}
+	
+	@Override
+	public String getToken(int id) {
+		return tokens.get(id);
+	}
+	
+	@Override
+	public int size() {
+		return tokens.size();
+	}
+}
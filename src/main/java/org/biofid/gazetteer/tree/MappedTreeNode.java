@@ -0,0 +1,84 @@
+package org.biofid.gazetteer.tree;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * A read-only token tree in a {@link ByteBuffer}, as written by
+ * {@link FrozenTreeNode#write(java.io.DataOutputStream)}.
+ * <p>
+ * The layout is the same as in {@link FrozenTreeNode}, but all arrays, values and the vocabulary stay in the buffer.
+ * If the buffer is a {@link java.nio.MappedByteBuffer}, {@link #traverse(int[], int, int)} runs directly on the mapped
+ * file and all processes opening the same file share its pages.
+ */
+public class MappedTreeNode extends ArrayTreeNode {
+	
+	private final int nodeCount;
+	private final int depth;
+	private final IntBuffer childOffsets;
+	private final IntBuffer childKeys;
+	private final IntBuffer valueIndex;
+	private final MappedTokenVocabulary values;
+	private final MappedTokenVocabulary vocabulary;
+	
+	/**
+	 * Read a tree starting at the current position of the given buffer. The position of the buffer is advanced to
+	 * the end of the tree.
+	 *
+	 * @param buffer The buffer to read from.
+	 */
+	public MappedTreeNode(ByteBuffer buffer) {
+		nodeCount = buffer.getInt();
+		depth = buffer.getInt();
+		childOffsets = MappedStringTable.sliceInts(buffer, nodeCount + 1);
+		childKeys = MappedStringTable.sliceInts(buffer, nodeCount - 1);
+		valueIndex = MappedStringTable.sliceInts(buffer, nodeCount);
+		values = new MappedTokenVocabulary(buffer);
+		vocabulary = new MappedTokenVocabulary(buffer);
+	}
+	
+	@Override
+	protected int childStart(int node) {
+		return childOffsets.get(node) + 1;
+	}
+	
+	@Override
+	protected int nodeKey(int node) {
+		return childKeys.get(node - 1);
+	}
+	
+	@Override
+	protected int valueIndex(int node) {
+		return valueIndex.get(node);
+	}
+	
+	@Override
+	public int size() {
+		return nodeCount;
+	}
+	
+	@Override
+	public int nodesWithValue() {
+		return values.size();
+	}
+	
+	@Override
+	public String getValue(int index) {
+		return values.getToken(index);
+	}
+	
+	@Override
+	public int getValueIndex(String value) {
+		return values.getId(value);
+	}
+	
+	@Override
+	public int depth() {
+		return depth;
+	}
+	
+	@Override
+	public ITokenVocabulary getVocabulary() {
+		return vocabulary;
+	}
+}
@@ -0,0 +1,52 @@
+package org.biofid.gazetteer.tree;
+
+/**
+ * A bit set over the token IDs of a tree's {@link ITokenVocabulary vocabulary}, marking all tokens that lead from the
+ * root to a child.
+ * <p>
+ * Most tokens of a vocabulary only occur in later positions of a skip-gram, and most tokens of running text are not
+ * part of the vocabulary at all. Checking this set before traversing the tree rejects both with a single bit test. As
+ * token IDs are dense, the set is exact and needs one bit per token of the vocabulary.
+ */
+public class MatchStartFilter {
+	
+	private final long[] words;
+	private final int cardinality;
+	
+	/**
+	 * Create a filter for the given tree.
+	 *
+	 * @param root The root of a tree with a vocabulary.
+	 */
+	public MatchStartFilter(IFrozenTreeNode root) {
+		int vocabularySize = root.getVocabulary().size();
+		words = new long[(vocabularySize + 63) >>> 6];
+		int count = 0;
+		int[] query = new int[1];
+		for (int id = 0; id < vocabularySize; id++) {
+			query[0] = id;
+			if (IFrozenTreeNode.matchedIndex(root.traversePacked(query, 0, 1)) > -1) {
+				words[id >>> 6] |= 1L << id;
+				count++;
+			}
+		}
+		cardinality = count;
+	}
+	
+	/**
+	 * Check if a match may start with the given token.
+	 *
+	 * @param token A token ID or {@link ITokenVocabulary#UNKNOWN}.
+	 * @return True, if the root of the tree has a child for this token.
+	 */
+	public boolean mayStart(int token) {
+		return token >= 0 && (words[token >>> 6] & (1L << token)) != 0;
+	}
+	
+	/**
+	 * @return The number of tokens a match may start with.
+	 */
+	public int cardinality() {
+		return cardinality;
+	}
+}
@@ -0,0 +1,247 @@
+package org.biofid.gazetteer.tree;
+
+import java.util.Arrays;
+
+/**
+ * Minimal perfect hash functions over the children of all high fan-out nodes of an {@link ArrayTreeNode}.
+ * <p>
+ * For each node with at least {@link #getMinFanOut()} children, the keys of its {@code n} children are mapped to
+ * {@code n} slots with a hash-and-displace scheme: keys are hashed into buckets of about four keys each and each
+ * bucket gets a seed, so that all keys of all buckets end up in distinct slots. Each slot holds the index of its child,
+ * whose key is compared with the query key, so a lookup is one probe instead of a binary search over all children.
+ * <p>
+ * Trees frozen by {@link FrozenTreeNode} assign token IDs in breadth-first order, so the keys of the children of the
+ * root are exactly the IDs {@code 0} to {@code n - 1}. In this case, the root needs no hash function at all and the
+ * child for a key is found by its ID alone.
+ */
+public class PerfectHashChildIndex {
+	
+	/**
+	 * Returned by {@link #getChild(int, int, int, int)} for nodes without a hash function.
+	 */
+	public static final int NOT_INDEXED = -2;
+	
+	private static final int KEYS_PER_BUCKET = 4;
+	private static final int MAX_SEED = 1 << 24;
+	
+	private final ArrayTreeNode tree;
+	private final int minFanOut;
+	private final boolean denseRoot;
+	/**
+	 * Open addressing table holding {@code node + 1} for each node with a hash function, {@code 0} marks an empty slot.
+	 */
+	private final int[] nodeTable;
+	/**
+	 * The offset of the seeds and the slots of each node in {@link #nodeTable} into {@link #seeds} and {@link #slots}.
+	 */
+	private final int[] seedOffsets;
+	private final int[] slotOffsets;
+	private final int nodeMask;
+	private final int[] seeds;
+	/**
+	 * The index of the child in each slot, relative to the first child of its node.
+	 */
+	private final int[] slots;
+	
+	/**
+	 * Build hash functions for all nodes of the given tree with at least {@code minFanOut} children. The tree is not
+	 * modified and must be kept, as keys are verified against it.
+	 *
+	 * @param tree      The tree to index.
+	 * @param minFanOut The minimum number of children of a node to build a hash function for it.
+	 */
+	public PerfectHashChildIndex(ArrayTreeNode tree, int minFanOut) {
+		this.tree = tree;
+		this.minFanOut = Math.max(1, minFanOut);
+	
+		int rootStart = tree.childStart(0);
+		int rootFanOut = tree.childStart(1) - rootStart;
+		boolean dense = true;
+		for (int i = 0; i < rootFanOut && dense; i++) {
+			dense = tree.nodeKey(rootStart + i) == i;
+		}
+		denseRoot = dense;
+	
+		int nodeCount = 0;
+		int seedCount = 0;
+		int slotCount = 0;
+		for (int node = dense ? 1 : 0; node < tree.size(); node++) {
+			int fanOut = tree.childStart(node + 1) - tree.childStart(node);
+			if (fanOut >= this.minFanOut) {
+				nodeCount++;
+				seedCount += bucketCount(fanOut);
+				slotCount += fanOut;
+			}
+		}
+	
+		int capacity = Integer.highestOneBit(Math.max(2, nodeCount) * 2 - 1) << 1;
+		nodeTable = new int[capacity];
+		seedOffsets = new int[capacity];
+		slotOffsets = new int[capacity];
+		nodeMask = capacity - 1;
+		seeds = new int[seedCount];
+		slots = new int[slotCount];
+	
+		int seedOffset = 0;
+		int slotOffset = 0;
+		for (int node = dense ? 1 : 0; node < tree.size(); node++) {
+			int fanOut = tree.childStart(node + 1) - tree.childStart(node);
+			if (fanOut >= this.minFanOut) {
+				int entry = mix(node) & nodeMask;
+				while (nodeTable[entry] != 0) {
+					entry = (entry + 1) & nodeMask;
+				}
+				nodeTable[entry] = node + 1;
+				seedOffsets[entry] = seedOffset;
+				slotOffsets[entry] = slotOffset;
+				build(node, seedOffset, slotOffset);
+				seedOffset += bucketCount(fanOut);
+				slotOffset += fanOut;
+			}
+		}
+	}
+	
+	/**
+	 * Find the seed of every bucket of the given node, placing the buckets with the most keys first.
+	 */
+	private void build(int node, int seedOffset, int slotOffset) {
+		int start = tree.childStart(node);
+		int fanOut = tree.childStart(node + 1) - start;
+		int bucketCount = bucketCount(fanOut);
+	
+		// Sort the children by their bucket
+		int[] bucketStart = new int[bucketCount + 1];
+		int[] hashes = new int[fanOut];
+		int[] buckets = new int[fanOut];
+		for (int i = 0; i < fanOut; i++) {
+			hashes[i] = mix(tree.nodeKey(start + i));
+			buckets[i] = range(hashes[i], bucketCount);
+			bucketStart[buckets[i] + 1]++;
+		}
+		for (int bucket = 0; bucket < bucketCount; bucket++) {
+			bucketStart[bucket + 1] += bucketStart[bucket];
+		}
+		int[] members = new int[fanOut];
+		int[] fill = new int[bucketCount];
+		for (int i = 0; i < fanOut; i++) {
+			members[bucketStart[buckets[i]] + fill[buckets[i]]++] = i;
+		}
+		Integer[] order = new Integer[bucketCount];
+		for (int bucket = 0; bucket < bucketCount; bucket++) {
+			order[bucket] = bucket;
+		}
+		Arrays.sort(order, (a, b) -> Integer.compare(fill[b], fill[a]));
+	
+		boolean[] taken = new boolean[fanOut];
+		int[] placed = new int[KEYS_PER_BUCKET * 4];
+		for (int bucket : order) {
+			int size = fill[bucket];
+			if (size == 0) {
+				break;
+			}
+			if (placed.length < size) {
+				placed = new int[size];
+			}
+			int seed = 0;
+			while (!tryPlace(hashes, members, bucketStart[bucket], size, seed, taken, placed)) {
+				if (++seed >= MAX_SEED) {
+					throw new IllegalStateException(String.format("Could not find a perfect hash function for node %d with %d children!", node, fanOut));
+				}
+			}
+			seeds[seedOffset + bucket] = seed;
+			for (int i = 0; i < size; i++) {
+				slots[slotOffset + placed[i]] = members[bucketStart[bucket] + i];
+			}
+		}
+	}
+	
+	private static boolean tryPlace(int[] hashes, int[] members, int from, int size, int seed, boolean[] taken, int[] placed) {
+		for (int i = 0; i < size; i++) {
+			int slot = range(mix(hashes[members[from + i]] ^ seed), taken.length);
+			if (taken[slot]) {
+				for (int j = 0; j < i; j++) {
+					taken[placed[j]] = false;
+				}
+				return false;
+			}
+			taken[slot] = true;
+			placed[i] = slot;
+		}
+		return true;
+	}
+	
+	/**
+	 * Find the child of the given node for the given key.
+	 *
+	 * @param node  The node.
+	 * @param start The index of the first child of the node.
+	 * @param end   The index after the last child of the node.
+	 * @param key   The key to look up, must not be {@link ITokenVocabulary#UNKNOWN}.
+	 * @return The index of the child node, -1 if there is no such child or {@link #NOT_INDEXED}, if this index has no
+	 * hash function for the node.
+	 */
+	public int getChild(int node, int start, int end, int key) {
+		int fanOut = end - start;
+		if (node == 0 && denseRoot) {
+			return key < fanOut ? start + key : -1;
+		}
+		if (fanOut < minFanOut) {
+			return NOT_INDEXED;
+		}
+		int entry = mix(node) & nodeMask;
+		int stored;
+		while ((stored = nodeTable[entry]) != node + 1) {
+			if (stored == 0) {
+				return NOT_INDEXED;
+			}
+			entry = (entry + 1) & nodeMask;
+		}
+		int hash = mix(key);
+		int seed = seeds[seedOffsets[entry] + range(hash, bucketCount(fanOut))];
+		int child = start + slots[slotOffsets[entry] + range(mix(hash ^ seed), fanOut)];
+		return tree.nodeKey(child) == key ? child : -1;
+	}
+	
+	/**
+	 * @return The minimum number of children of a node to have a hash function.
+	 */
+	public int getMinFanOut() {
+		return minFanOut;
+	}
+	
+	/**
+	 * @return The number of nodes with a hash function, not counting a dense root.
+	 */
+	public int size() {
+		int size = 0;
+		for (int entry : nodeTable) {
+			if (entry != 0) {
+				size++;
+			}
+		}
+		return size;
+	}
+	
+	private static int bucketCount(int fanOut) {
+		return (fanOut + KEYS_PER_BUCKET - 1) / KEYS_PER_BUCKET;
+	}
+	
+	/**
+	 * Map a hash uniformly to the range {@code [0, n)} without a division.
+	 */
+	private static int range(int hash, int n) {
+		return (int) (((hash & 0xFFFFFFFFL) * n) >>> 32);
+	}
+	
+	/**
+	 * The finalization mix of MurmurHash3.
+	 */
+	private static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+		return h;
+	}
+}
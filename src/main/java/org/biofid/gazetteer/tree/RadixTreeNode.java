@@ -0,0 +1,216 @@
+package org.biofid.gazetteer.tree;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A path-compressed view of an {@link ArrayTreeNode}.
+ * <p>
+ * Chains of nodes without a value and with a single child are collapsed into one edge, labelled with the sequence of
+ * their keys. As in {@link FrozenTreeNode}, all nodes are numbered in breadth-first order. The labels of all edges are
+ * stored back to back in a single array, so {@link #traverse(int[], int, int)} compares each run of tokens in a tight
+ * loop instead of searching the children of every node on the chain. Values and the vocabulary are shared with the
+ * original tree.
+ */
+public class RadixTreeNode implements IFrozenTreeNode {
+	
+	private final ArrayTreeNode tree;
+	/**
+	 * The children of node {@code i} are the nodes {@code [childOffsets[i], childOffsets[i + 1])}.
+	 */
+	private final int[] childOffsets;
+	/**
+	 * The labels of the edge leading to node {@code i} are stored in the range
+	 * {@code [edgeOffsets[i], edgeOffsets[i + 1])} of {@link #edgeLabels}. The root has an empty edge.
+	 */
+	private final int[] edgeOffsets;
+	private final int[] edgeLabels;
+	/**
+	 * The index of the value of each node in the original tree or -1, if the node has no value.
+	 */
+	private final int[] valueIndex;
+	
+	/**
+	 * Compress the given tree. The tree is not modified and must be kept, as values are read from it.
+	 *
+	 * @param tree The tree to compress.
+	 */
+	public RadixTreeNode(ArrayTreeNode tree) {
+		this.tree = tree;
+		int nodeCount = 1;
+		for (int node = 1; node < tree.size(); node++) {
+			if (tree.valueIndex(node) > -1 || tree.childStart(node + 1) - tree.childStart(node) != 1) {
+				nodeCount++;
+			}
+		}
+		childOffsets = new int[nodeCount + 1];
+		edgeOffsets = new int[nodeCount + 1];
+		edgeLabels = new int[Math.max(0, tree.size() - 1)];
+		valueIndex = new int[nodeCount];
+		
+		// The node in the original tree for each node, which are visited in breadth-first order
+		int[] originalNode = new int[nodeCount];
+		int nextNode = 1;
+		int labelCount = 0;
+		for (int node = 0; node < nodeCount; node++) {
+			int original = originalNode[node];
+			valueIndex[node] = tree.valueIndex(original);
+			childOffsets[node] = nextNode;
+			for (int child = tree.childStart(original); child < tree.childStart(original + 1); child++) {
+				edgeOffsets[nextNode] = labelCount;
+				int chain = child;
+				edgeLabels[labelCount++] = tree.nodeKey(chain);
+				while (tree.valueIndex(chain) < 0 && tree.childStart(chain + 1) - tree.childStart(chain) == 1) {
+					chain = tree.childStart(chain);
+					edgeLabels[labelCount++] = tree.nodeKey(chain);
+				}
+				originalNode[nextNode++] = chain;
+			}
+		}
+		childOffsets[nodeCount] = nodeCount;
+		edgeOffsets[nodeCount] = labelCount;
+	}
+	
+	/**
+	 * Find the child of the given node by the first label of its edge.
+	 *
+	 * @return The index of the child node or -1, if there is no such child.
+	 */
+	private int getChild(int node, int key) {
+		if (key == ITokenVocabulary.UNKNOWN) {
+			return -1;
+		}
+		int low = childOffsets[node];
+		int high = childOffsets[node + 1] - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int midKey = edgeLabels[edgeOffsets[mid]];
+			if (midKey < key) {
+				low = mid + 1;
+			} else if (midKey > key) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+	
+	@Override
+	public boolean hasValue() {
+		return valueIndex[0] > -1;
+	}
+	
+	@Override
+	public boolean isLeaf() {
+		return childOffsets[0] == childOffsets[1];
+	}
+	
+	@Override
+	public void insert(String value) {
+		throw new UnsupportedOperationException("RadixTreeNode is immutable, insert into a StringTreeNode instead!");
+	}
+	
+	@Override
+	public int size() {
+		return valueIndex.length;
+	}
+	
+	@Override
+	public int leafs() {
+		return tree.leafs();
+	}
+	
+	@Override
+	public int nodesWithValue() {
+		return tree.nodesWithValue();
+	}
+	
+	@Override
+	public ImmutablePair<String, Integer> traverse(@Nonnull List<String> subString) {
+		return traverse(getVocabulary().encode(subString), 0, subString.size());
+	}
+	
+	@Override
+	public long traversePacked(@Nonnull int[] query, int from, int to) {
+		int node = 0;
+		int i = from;
+		int lastValue = -1;
+		while (true) {
+			// save value if this node has one
+			if (valueIndex[node] > -1) {
+				lastValue = valueIndex[node];
+			}
+			if (i >= to) {
+				break;
+			}
+			
+			int child = getChild(node, query[i]);
+			if (child < 0) {
+				break;
+			}
+			int label = edgeOffsets[child];
+			int labelEnd = edgeOffsets[child + 1];
+			while (label < labelEnd && i < to && edgeLabels[label] == query[i]) {
+				label++;
+				i++;
+			}
+			if (label < labelEnd) {
+				// Stopped inside a collapsed chain, whose nodes have no value
+				break;
+			}
+			node = child;
+		}
+		return IFrozenTreeNode.pack(lastValue, i - from - 1);
+	}
+	
+	@Override
+	public String getValue(int index) {
+		return tree.getValue(index);
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("{\"RadixTree\": {%s}}", toString(0));
+	}
+	
+	private String toString(int node) {
+		String sNode = "";
+		boolean isLeaf = childOffsets[node] == childOffsets[node + 1];
+		if (valueIndex[node] > -1) {
+			sNode = String.format("\"isLeaf\":\"%b\", \"value\":\"%s\"", isLeaf, tree.getValue(valueIndex[node]));
+		}
+		String sChildren = "";
+		if (!isLeaf) {
+			ArrayList<String> strings = new ArrayList<>();
+			for (int child = childOffsets[node]; child < childOffsets[node + 1]; child++) {
+				ArrayList<String> keys = new ArrayList<>();
+				for (int label = edgeOffsets[child]; label < edgeOffsets[child + 1]; label++) {
+					keys.add(getVocabulary().getToken(edgeLabels[label]));
+				}
+				strings.add(String.format("\"%s\": {%s}", String.join(" ", keys), toString(child)));
+			}
+			sChildren = String.join(",\n", strings);
+		}
+		return sNode + (StringUtils.isNotBlank(sNode) && StringUtils.isNotBlank(sChildren) ? ", " : "") + sChildren;
+	}
+	
+	@Override
+	public String getValue() {
+		return hasValue() ? tree.getValue(valueIndex[0]) : null;
+	}
+	
+	@Override
+	public int depth() {
+		return tree.depth();
+	}
+	
+	@Override
+	public ITokenVocabulary getVocabulary() {
+		return tree.getVocabulary();
+	}
+}
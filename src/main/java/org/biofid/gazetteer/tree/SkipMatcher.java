@@ -0,0 +1,277 @@
+package org.biofid.gazetteer.tree;
+
+import javax.annotation.Nonnull;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Matches token ranges against an {@link ArrayTreeNode}, skipping tree tokens at query time.
+ * <p>
+ * Instead of storing every skip-gram of a taxon as a separate path, the tree only holds the taxon and the suffixes of
+ * its words that begin after skipped leading words. Any other token on the path may be skipped while traversing, up to
+ * the number of skips allowed for the value at the end of the path. Matches with skips must cover at least
+ * {@code minLength} characters, counting a single space between tokens, like the materialized skip-grams.
+ * <p>
+ * The same tokens may be reached through the values of several taxa. Like a materialized skip-gram of more than one
+ * taxon, such a match is dropped in favour of a shorter one, unless the tokens are a taxon themselves. Only ambiguity
+ * between stored entries, which the tree already dropped, cannot be seen.
+ */
+public class SkipMatcher {
+	
+	// The fields of a match in the array filled by search(), one match per number of consumed tokens
+	private static final int FIELDS = 4;
+	private static final int VALUE = 0;
+	private static final int SKIPS = 1;
+	private static final int TAXON = 2;
+	private static final int TAXON_VALUE = 3;
+	/**
+	 * The taxon of a match reached through the values of more than one taxon.
+	 */
+	private static final int AMBIGUOUS = -2;
+	
+	private final ArrayTreeNode tree;
+	/**
+	 * The number of tokens that may be skipped on the path to each value.
+	 */
+	private final byte[] allowedSkips;
+	/**
+	 * The largest number of allowed skips of any value in the subtree of each node, including the node itself.
+	 */
+	private final byte[] subtreeSkips;
+	/**
+	 * The nodes reachable from each node by skipping tokens, so a skip does not have to try every child. The entries of
+	 * node {@code i} range from {@code skipOffsets[i]} to {@code skipOffsets[i + 1]} (exclusive). First come the nodes
+	 * with a value reached by skipping only, then the nodes reached by skipping and consuming the next token, sorted
+	 * by the key of this token. {@link #skipKeys} holds this key or -1 and {@link #skipCounts} the number of skipped
+	 * tokens. Only targets that can be reached within the allowed skips are stored.
+	 */
+	private final int[] skipOffsets;
+	private final int[] skipKeys;
+	private final int[] skipTargets;
+	private final byte[] skipCounts;
+	private final IntUnaryOperator taxonIds;
+	private final BitSet taxonValues;
+	private final int minLength;
+	private final int depth;
+	/**
+	 * The length of each token in the vocabulary.
+	 */
+	private final int[] tokenLength;
+	
+	/**
+	 * Create a matcher for the given tree.
+	 *
+	 * @param tree         The tree to match against.
+	 * @param allowedSkips The number of tokens that may be skipped on the path to each value, indexed like
+	 *                     {@link ArrayTreeNode#getValue(int)}.
+	 * @param taxonIds     The ID of the taxon of each value.
+	 * @param taxonValues  The values that are the tokens of their taxon.
+	 * @param minLength    The minimum length of a match with skips.
+	 */
+	public SkipMatcher(ArrayTreeNode tree, byte[] allowedSkips, IntUnaryOperator taxonIds, BitSet taxonValues, int minLength) {
+		this.tree = tree;
+		this.allowedSkips = allowedSkips;
+		this.taxonIds = taxonIds;
+		this.taxonValues = taxonValues;
+		this.minLength = minLength;
+		depth = tree.depth();
+		// Children are stored after their parent, so each subtree is complete before its root is visited
+		subtreeSkips = new byte[tree.size()];
+		for (int node = subtreeSkips.length - 1; node >= 0; node--) {
+			int valueIndex = tree.valueIndex(node);
+			byte max = valueIndex > -1 ? allowedSkips[valueIndex] : 0;
+			for (int child = tree.childStart(node); child < tree.childStart(node + 1); child++) {
+				max = (byte) Math.max(max, subtreeSkips[child]);
+			}
+			subtreeSkips[node] = max;
+		}
+		
+		// Count the skip targets of each ancestor, then fill and sort them
+		int[] parent = new int[tree.size()];
+		for (int node = 0; node < parent.length; node++) {
+			for (int child = tree.childStart(node); child < tree.childStart(node + 1); child++) {
+				parent[child] = node;
+			}
+		}
+		skipOffsets = new int[tree.size() + 1];
+		forEachSkipTarget(parent, (node, target, key) -> skipOffsets[node + 1]++);
+		for (int node = 0; node < parent.length; node++) {
+			skipOffsets[node + 1] += skipOffsets[node];
+		}
+		long[] entries = new long[skipOffsets[parent.length]];
+		int[] next = Arrays.copyOf(skipOffsets, parent.length);
+		// The number of skips is recovered from the position of the target below the node
+		forEachSkipTarget(parent, (node, target, key) -> entries[next[node]++] = ((long) key << 32) | target);
+		skipKeys = new int[entries.length];
+		skipTargets = new int[entries.length];
+		skipCounts = new byte[entries.length];
+		for (int node = 0; node < parent.length; node++) {
+			Arrays.sort(entries, skipOffsets[node], skipOffsets[node + 1]);
+			for (int e = skipOffsets[node]; e < skipOffsets[node + 1]; e++) {
+				skipKeys[e] = (int) (entries[e] >> 32);
+				skipTargets[e] = (int) entries[e];
+				int skips = skipKeys[e] < 0 ? 0 : -1;
+				for (int ancestor = skipTargets[e]; ancestor != node; ancestor = parent[ancestor]) {
+					skips++;
+				}
+				skipCounts[e] = (byte) skips;
+			}
+		}
+		ITokenVocabulary vocabulary = tree.getVocabulary();
+		tokenLength = new int[vocabulary.size()];
+		for (int id = 0; id < tokenLength.length; id++) {
+			tokenLength[id] = vocabulary.getToken(id).length();
+		}
+	}
+	
+	private interface SkipTargetConsumer {
+		void accept(int node, int target, int key);
+	}
+	
+	/**
+	 * Pass each skip target to the consumer, see {@link #skipOffsets}. The root has no targets, since leading tokens are
+	 * never skipped.
+	 */
+	private void forEachSkipTarget(int[] parent, SkipTargetConsumer consumer) {
+		for (int target = 1; target < parent.length; target++) {
+			int valueIndex = tree.valueIndex(target);
+			int ancestor = target;
+			for (int skips = 1; skips <= subtreeSkips[target] && parent[ancestor] != 0; skips++) {
+				ancestor = parent[ancestor];
+				if (valueIndex > -1 && skips <= allowedSkips[valueIndex]) {
+					consumer.accept(ancestor, target, -1);
+				}
+				if (parent[ancestor] != 0) {
+					consumer.accept(parent[ancestor], target, tree.nodeKey(target));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return A new buffer for {@link #match(int[], int, int, int[])}, which may be reused for any number of matches,
+	 * but not by several threads at once.
+	 */
+	public int[] createMatchBuffer() {
+		return new int[(depth + 1) * FIELDS];
+	}
+	
+	/**
+	 * Find the longest match starting at {@code from} that is not ambiguous. Of the values of the same taxon, the one
+	 * reached with the fewest skips is returned.
+	 *
+	 * @param query   An array of token IDs.
+	 * @param from    The first index in query to match (inclusive).
+	 * @param to      The last index in query to match (exclusive).
+	 * @param matches A buffer from {@link #createMatchBuffer()}.
+	 * @return The same as {@link IFrozenTreeNode#traversePacked(int[], int, int)}, but the index is -1 if there is no match.
+	 */
+	public long match(@Nonnull int[] query, int from, int to, @Nonnull int[] matches) {
+		return match(0, -1, query, from, to, matches);
+	}
+	
+	/**
+	 * Like {@link #match(int[], int, int)}, but start at the given node instead of the root. At least one token of
+	 * query must be matched.
+	 *
+	 * @param node         The node to start at.
+	 * @param prefixLength The length of the text already matched on the path to node, -1 for the root.
+	 * @param query        An array of token IDs.
+	 * @param from         The first index in query to match (inclusive).
+	 * @param to           The last index in query to match (exclusive).
+	 * @param matches      A buffer from {@link #createMatchBuffer()}.
+	 * @return The same as {@link #match(int[], int, int, int[])}.
+	 */
+	public long match(int node, int prefixLength, @Nonnull int[] query, int from, int to, @Nonnull int[] matches) {
+		// For each number of consumed tokens: the value, its skips and its taxon, which is AMBIGUOUS if there are
+		// values of several taxa, or the value of the taxon made of these tokens, which takes precedence.
+		int maxConsumed = Math.min(to - from, depth);
+		Arrays.fill(matches, 0, (maxConsumed + 1) * FIELDS, -1);
+		search(node, from, 0, prefixLength, query, from, to, matches);
+		for (int consumed = maxConsumed; consumed > 0; consumed--) {
+			int offset = consumed * FIELDS;
+			if (matches[offset + TAXON_VALUE] > -1) {
+				return IFrozenTreeNode.pack(matches[offset + TAXON_VALUE], consumed - 1);
+			} else if (matches[offset + TAXON] > -1) {
+				return IFrozenTreeNode.pack(matches[offset + VALUE], consumed - 1);
+			}
+		}
+		return IFrozenTreeNode.pack(-1, -1);
+	}
+	
+	/**
+	 * @return The largest number of allowed skips of any value in the subtree of the given node.
+	 */
+	int getSubtreeSkips(int node) {
+		return subtreeSkips[node];
+	}
+	
+	private void search(int node, int i, int skips, int length, int[] query, int from, int to, int[] matches) {
+		int valueIndex = tree.valueIndex(node);
+		int consumed = i - from;
+		if (valueIndex > -1 && consumed > 0
+				&& (skips == 0 || (skips <= allowedSkips[valueIndex] && length >= minLength))) {
+			addMatch(matches, consumed * FIELDS, valueIndex, skips);
+		}
+		if (i < to) {
+			int child = tree.getChild(node, query[i]);
+			if (child > -1 && skips <= subtreeSkips[child]) {
+				search(child, i + 1, skips, length + tokenLength[query[i]] + 1, query, from, to, matches);
+			}
+		}
+		// Leading tokens are never skipped, the tree holds the suffixes instead,
+		// and a skip is only taken if some value below the skipped tokens allows it
+		if (skips < subtreeSkips[node]) {
+			int e = skipOffsets[node];
+			int end = skipOffsets[node + 1];
+			for (; e < end && skipKeys[e] < 0; e++) {
+				valueIndex = tree.valueIndex(skipTargets[e]);
+				if (consumed > 0 && skips + skipCounts[e] <= allowedSkips[valueIndex] && length >= minLength) {
+					addMatch(matches, consumed * FIELDS, valueIndex, skips + skipCounts[e]);
+				}
+			}
+			if (i < to && e < end) {
+				e = findSkipKey(e, end, query[i]);
+				for (; e < end && skipKeys[e] == query[i]; e++) {
+					if (skips + skipCounts[e] <= subtreeSkips[skipTargets[e]]) {
+						search(skipTargets[e], i + 1, skips + skipCounts[e], length + tokenLength[query[i]] + 1, query, from, to, matches);
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return The first index in the given range of {@link #skipKeys}, whose key is not less than the given key.
+	 */
+	private int findSkipKey(int low, int high, int key) {
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (skipKeys[mid] < key) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+	
+	private void addMatch(int[] matches, int offset, int valueIndex, int skips) {
+		if (skips == 0 && taxonValues.get(valueIndex)) {
+			matches[offset + TAXON_VALUE] = valueIndex;
+			return;
+		}
+		int taxonId = taxonIds.applyAsInt(valueIndex);
+		if (matches[offset + TAXON] == -1) {
+			matches[offset + VALUE] = valueIndex;
+			matches[offset + SKIPS] = skips;
+			matches[offset + TAXON] = taxonId < 0 ? AMBIGUOUS : taxonId;
+		} else if (matches[offset + TAXON] != taxonId) {
+			matches[offset + TAXON] = AMBIGUOUS;
+		} else if (skips < matches[offset + SKIPS]) {
+			matches[offset + VALUE] = valueIndex;
+			matches[offset + SKIPS] = skips;
+		}
+	}
+}
@@ -0,0 +1,287 @@
+package org.biofid.gazetteer.tree;
+
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Builds a tree bottom-up from values added in sorted order and writes it in the layout of
+ * {@link FrozenTreeNode#write(DataOutputStream)}, without holding more than a single path of the tree in memory.
+ * <p>
+ * If the keys of the values are added in ascending order and the token IDs of the vocabulary are in the same order as
+ * the tokens themselves, the nodes of each depth are completed in breadth-first order. Completed nodes are spilled to
+ * one file per depth, so concatenating the files yields the nodes in the order of a {@link FrozenTreeNode}.
+ */
+public class SortedTreeWriter implements Closeable {
+	
+	private final TokenVocabulary vocabulary;
+	private final Path directory;
+	/**
+	 * The completed nodes of each depth: key, number of children and whether the node has a value.
+	 */
+	private final ArrayList<DataOutputStream> nodeFiles = new ArrayList<>();
+	/**
+	 * The values of the completed nodes of each depth: value and payload.
+	 */
+	private final ArrayList<DataOutputStream> valueFiles = new ArrayList<>();
+	private final ArrayList<Path> files = new ArrayList<>();
+	private int[] levelNodes = new int[0];
+	private int[] levelValues = new int[0];
+	
+	// The open nodes on the path of the last added value, indexed by depth
+	private int[] keys = new int[8];
+	private int[] childCounts = new int[8];
+	private String[] values = new String[8];
+	private int[] payloads = new int[8];
+	private int openDepth = 0;
+	private int nodeCount = 1;
+	private int valueCount = 0;
+	private boolean finished = false;
+	
+	/**
+	 * Create a writer for an empty tree.
+	 *
+	 * @param vocabulary A vocabulary of all keys, with IDs in ascending order of their tokens.
+	 * @param directory  A directory to spill the nodes to. The files are deleted by {@link #close()}.
+	 */
+	public SortedTreeWriter(TokenVocabulary vocabulary, Path directory) {
+		this.vocabulary = vocabulary;
+		this.directory = directory;
+	}
+	
+	/**
+	 * Add a value under the given sequence of keys. The paths of all values must be unique and added in ascending
+	 * order, comparing their keys one by one. A path sorts before all paths it is a prefix of.
+	 *
+	 * @param path    The IDs of the keys on the path from the root to the node of the value, at least one.
+	 * @param value   The value.
+	 * @param payload The payload of the value.
+	 * @throws IOException If a node could not be spilled.
+	 */
+	public void add(@Nonnull int[] path, String value, int payload) throws IOException {
+		if (finished) {
+			throw new IllegalStateException("Can not add values after the tree has been written!");
+		}
+		int common = 0;
+		int limit = Math.min(path.length, openDepth);
+		while (common < limit && path[common] == keys[common + 1]) {
+			common++;
+		}
+		if (common == path.length || (common < openDepth && path[common] < keys[common + 1])) {
+			throw new IllegalArgumentException(String.format("Value '%s' is not added in ascending order!", value));
+		}
+		
+		for (int depth = openDepth; depth > common; depth--) {
+			complete(depth);
+		}
+		if (path.length >= keys.length) {
+			int length = Math.max(keys.length * 2, path.length + 1);
+			keys = Arrays.copyOf(keys, length);
+			childCounts = Arrays.copyOf(childCounts, length);
+			values = Arrays.copyOf(values, length);
+			payloads = Arrays.copyOf(payloads, length);
+		}
+		for (int depth = common + 1; depth <= path.length; depth++) {
+			childCounts[depth - 1]++;
+			keys[depth] = path[depth - 1];
+			childCounts[depth] = 0;
+			values[depth] = null;
+			nodeCount++;
+		}
+		values[path.length] = value;
+		payloads[path.length] = payload;
+		openDepth = path.length;
+	}
+	
+	private void complete(int depth) throws IOException {
+		while (nodeFiles.size() <= depth) {
+			int level = nodeFiles.size();
+			nodeFiles.add(createFile("nodes-" + level));
+			valueFiles.add(createFile("values-" + level));
+			levelNodes = Arrays.copyOf(levelNodes, level + 1);
+			levelValues = Arrays.copyOf(levelValues, level + 1);
+		}
+		DataOutputStream nodes = nodeFiles.get(depth);
+		nodes.writeInt(keys[depth]);
+		nodes.writeInt(childCounts[depth]);
+		nodes.writeBoolean(values[depth] != null);
+		levelNodes[depth]++;
+		if (values[depth] != null) {
+			DataOutputStream valueFile = valueFiles.get(depth);
+			valueFile.writeUTF(values[depth]);
+			valueFile.writeInt(payloads[depth]);
+			levelValues[depth]++;
+			valueCount++;
+			values[depth] = null;
+		}
+	}
+	
+	private DataOutputStream createFile(String name) throws IOException {
+		Path file = directory.resolve(name);
+		files.add(file);
+		return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)));
+	}
+	
+	/**
+	 * Complete all open nodes. No further values can be added afterwards.
+	 */
+	private void finish() throws IOException {
+		if (finished) {
+			return;
+		}
+		for (int depth = openDepth; depth >= 0; depth--) {
+			complete(depth);
+		}
+		for (int depth = 0; depth < nodeFiles.size(); depth++) {
+			nodeFiles.get(depth).close();
+			valueFiles.get(depth).close();
+		}
+		finished = true;
+	}
+	
+	/**
+	 * @return The number of nodes added so far, including the root.
+	 */
+	public int size() {
+		return nodeCount;
+	}
+	
+	/**
+	 * Write the tree in the layout of {@link FrozenTreeNode#write(DataOutputStream)}. The spilled nodes are read once
+	 * per section of the layout. No further values can be added afterwards.
+	 *
+	 * @param out The stream to write to.
+	 * @throws IOException If the stream could not be written or the spilled nodes could not be read.
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		finish();
+		out.writeInt(nodeCount);
+		out.writeInt(nodeFiles.size());
+		
+		int[] next = {1};
+		forEachNode((key, childCount, hasValue) -> {
+			out.writeInt(next[0] - 1);
+			next[0] += childCount;
+		});
+		out.writeInt(nodeCount - 1);
+		
+		boolean[] root = {true};
+		forEachNode((key, childCount, hasValue) -> {
+			if (!root[0]) {
+				out.writeInt(key);
+			}
+			root[0] = false;
+		});
+		
+		int[] index = {0};
+		forEachNode((key, childCount, hasValue) -> out.writeInt(hasValue ? index[0]++ : -1));
+		
+		writeValues(out);
+		vocabulary.write(out);
+	}
+	
+	/**
+	 * Write the values in the layout of {@link TokenVocabulary#write(DataOutputStream)}. The hash table is built in a
+	 * memory-mapped file instead of the heap.
+	 */
+	private void writeValues(DataOutputStream out) throws IOException {
+		out.writeInt(valueCount);
+		long[] offset = {0};
+		out.writeInt(0);
+		forEachValue((value, payload) -> {
+			offset[0] += value.getBytes(StandardCharsets.UTF_8).length;
+			if (offset[0] > Integer.MAX_VALUE) {
+				throw new IOException("The values of the tree exceed 2GB!");
+			}
+			out.writeInt((int) offset[0]);
+		});
+		forEachValue((value, payload) -> out.write(value.getBytes(StandardCharsets.UTF_8)));
+		out.write(new byte[MappedStringTable.padding((int) offset[0])]);
+		
+		int capacity = TokenVocabulary.capacity(valueCount);
+		int mask = capacity - 1;
+		Path tableFile = directory.resolve("values-table");
+		files.add(tableFile);
+		try (FileChannel channel = FileChannel.open(tableFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			IntBuffer table = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) capacity * Integer.BYTES).asIntBuffer();
+			int[] id = {0};
+			forEachValue((value, payload) -> {
+				int slot = TokenVocabulary.hash(value) & mask;
+				while (table.get(slot) != 0) {
+					slot = (slot + 1) & mask;
+				}
+				table.put(slot, ++id[0]);
+			});
+			out.writeInt(capacity);
+			for (int slot = 0; slot < capacity; slot++) {
+				out.writeInt(table.get(slot));
+			}
+		}
+	}
+	
+	/**
+	 * Write the payload of each value in the order of the value indices of the tree.
+	 *
+	 * @param out The stream to write to.
+	 * @throws IOException If the stream could not be written or the spilled values could not be read.
+	 */
+	public void writePayloads(DataOutputStream out) throws IOException {
+		finish();
+		forEachValue((value, payload) -> out.writeInt(payload));
+	}
+	
+	private void forEachNode(NodeConsumer consumer) throws IOException {
+		for (int depth = 0; depth < nodeFiles.size(); depth++) {
+			try (DataInputStream in = open("nodes-" + depth)) {
+				for (int i = 0; i < levelNodes[depth]; i++) {
+					consumer.accept(in.readInt(), in.readInt(), in.readBoolean());
+				}
+			}
+		}
+	}
+	
+	private void forEachValue(ValueConsumer consumer) throws IOException {
+		for (int depth = 0; depth < valueFiles.size(); depth++) {
+			try (DataInputStream in = open("values-" + depth)) {
+				for (int i = 0; i < levelValues[depth]; i++) {
+					consumer.accept(in.readUTF(), in.readInt());
+				}
+			}
+		}
+	}
+	
+	private DataInputStream open(String name) throws IOException {
+		return new DataInputStream(new BufferedInputStream(Files.newInputStream(directory.resolve(name))));
+	}
+	
+	/**
+	 * Delete all spilled files.
+	 */
+	@Override
+	public void close() throws IOException {
+		for (DataOutputStream file : nodeFiles) {
+			file.close();
+		}
+		for (DataOutputStream file : valueFiles) {
+			file.close();
+		}
+		for (Path file : files) {
+			Files.deleteIfExists(file);
+		}
+	}
+	
+	private interface NodeConsumer {
+		void accept(int key, int childCount, boolean hasValue) throws IOException;
+	}
+	
+	private interface ValueConsumer {
+		void accept(String value, int payload) throws IOException;
+	}
+}
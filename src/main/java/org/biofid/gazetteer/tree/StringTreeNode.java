@@ -9,6 +9,7 @@ import javax.annotation.Nullable;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.function.IntBinaryOperator;
 import java.util.regex.Pattern;
 
 /**
@@ -16,11 +17,21 @@ import java.util.regex.Pattern;
  */
 public class StringTreeNode implements ITreeNode {
 	
+	/**
+	 * The payload of nodes that were never inserted with a payload.
+	 */
+	public static final int NO_PAYLOAD = -1;
+	
 	public final StringTreeNode parent;
 	public final ConcurrentMap<String, StringTreeNode> children;
 	
 	private String value;
+	private int payload = NO_PAYLOAD;
 	private final Pattern tokenBoundaryRegex;
+	/**
+	 * True, if {@link #tokenBoundaryRegex} matches runs of white space, so keys can be split without the regex.
+	 */
+	private final boolean splitOnWhitespace;
 	private boolean toLowerCase;
 	
 	
@@ -30,6 +41,7 @@ public class StringTreeNode implements ITreeNode {
 	public StringTreeNode(String tokenBoundaryRegex, boolean toLowerCase) {
 		this.toLowerCase = toLowerCase;
 		this.tokenBoundaryRegex = Pattern.compile(tokenBoundaryRegex, Pattern.UNICODE_CHARACTER_CLASS);
+		this.splitOnWhitespace = tokenBoundaryRegex.equals("\\s+");
 		this.parent = null;
 		this.children = new ConcurrentHashMap<>(1, 1);
 		this.value = null;
@@ -45,6 +57,7 @@ public class StringTreeNode implements ITreeNode {
 		this.children = new ConcurrentHashMap<>(1, 1);
 		this.value = null;
 		this.tokenBoundaryRegex = tokenBoundaryRegex;
+		this.splitOnWhitespace = false;
 	}
 	
 	public boolean hasValue() {
@@ -58,24 +71,139 @@ public class StringTreeNode implements ITreeNode {
 	public void insert(String value) {
 		if (toLowerCase)
 			value = value.toLowerCase();
-		ArrayDeque<String> arrayDeque = new ArrayDeque<>();
-		Collections.addAll(arrayDeque, tokenBoundaryRegex.split(value.trim()));
-		this.insert(arrayDeque, value);
+		this.insert(split(value), value);
 	}
 	
-	private void insert(ArrayDeque<String> stringDeque, final String value) {
-		if (stringDeque.isEmpty()) {
-			this.value = value;
-			return;
+	/**
+	 * Insert a value together with an integer payload, e.g. the ID of the taxon the value was created from. If the
+	 * node of the value already has a payload, both are merged. A negative payload removes the value from the node, but
+	 * is kept for further merges, so a value can be dropped for good. Safe to call concurrently.
+	 *
+	 * @param value   The value, which is lower cased and split like in {@link #insert(String)}.
+	 * @param payload The payload, must not be negative.
+	 * @param merge   A function of the present payload and the given payload, returning the new payload of the node.
+	 */
+	public void insert(String value, int payload, IntBinaryOperator merge) {
+		insert(null, value, payload, merge);
+	}
+	
+	/**
+	 * Insert a value with a payload like {@link #insert(String, int, IntBinaryOperator)}, but under the words it was
+	 * joined from, if possible, instead of splitting it again.
+	 *
+	 * @param words   The words the value was joined from with single spaces or null, see
+	 *                {@link #split(String[], String, Pattern)}. Ignored, if lower casing changes the value.
+	 * @param value   The value.
+	 * @param payload The payload, must not be negative.
+	 * @param merge   A function of the present payload and the given payload, returning the new payload of the node.
+	 */
+	public void insert(@Nullable String[] words, String value, int payload, IntBinaryOperator merge) {
+		String nodeValue = toLowerCase ? value.toLowerCase() : value;
+		String[] keys = nodeValue.equals(value) ? split(words, value, tokenBoundaryRegex, splitOnWhitespace) : split(nodeValue);
+		StringTreeNode node = getOrCreate(keys);
+		synchronized (node) {
+			node.payload = node.payload == NO_PAYLOAD ? payload : merge.applyAsInt(node.payload, payload);
+			node.value = node.payload < 0 ? null : nodeValue;
 		}
-		
-		String key = stringDeque.pop();
-		synchronized (this.children) {
-			if (!this.children.containsKey(key)) {
-				this.children.put(key, new StringTreeNode(this, this.tokenBoundaryRegex));
+	}
+	
+	private String[] split(String value) {
+		return split(value, tokenBoundaryRegex, splitOnWhitespace);
+	}
+	
+	/**
+	 * Split a value into the keys of its path like {@link #insert(String)}, but without lower casing it.
+	 *
+	 * @param value              The value.
+	 * @param tokenBoundaryRegex The token boundary pattern of the tree.
+	 * @return The keys on the path from the root to the node of the value.
+	 */
+	public static String[] split(String value, Pattern tokenBoundaryRegex) {
+		return split(value, tokenBoundaryRegex, tokenBoundaryRegex.pattern().equals("\\s+"));
+	}
+	
+	/**
+	 * Get the keys of a value like {@link #split(String, Pattern)}. If the value was joined from the given words with
+	 * single spaces and the token boundary pattern is {@code \s+}, the words are the keys and the value is not split.
+	 *
+	 * @param words              The words the value was joined from, none of them may contain white space. If null or
+	 *                           if any word is empty, the value is split.
+	 * @param value              The value.
+	 * @param tokenBoundaryRegex The token boundary pattern of the tree.
+	 * @return The keys on the path from the root to the node of the value.
+	 */
+	public static String[] split(@Nullable String[] words, String value, Pattern tokenBoundaryRegex) {
+		return split(words, value, tokenBoundaryRegex, tokenBoundaryRegex.pattern().equals("\\s+"));
+	}
+	
+	private static String[] split(@Nullable String[] words, String value, Pattern tokenBoundaryRegex, boolean splitOnWhitespace) {
+		if (words == null || words.length == 0 || !splitOnWhitespace) {
+			return split(value, tokenBoundaryRegex, splitOnWhitespace);
+		}
+		for (String word : words) {
+			if (word.isEmpty()) {
+				return split(value, tokenBoundaryRegex, true);
+			}
+		}
+		return words;
+	}
+	
+	private static String[] split(String value, Pattern tokenBoundaryRegex, boolean splitOnWhitespace) {
+		String trimmed = value.trim();
+		return splitOnWhitespace ? splitWhitespace(trimmed) : tokenBoundaryRegex.split(trimmed);
+	}
+	
+	/**
+	 * Insert a value under the given sequence of keys. The keys are used as they are, they are neither split nor
+	 * lower cased.
+	 *
+	 * @param keys  The keys on the path from this node to the node of the value.
+	 * @param value The value.
+	 */
+	public void insert(String[] keys, final String value) {
+		getOrCreate(keys).value = value;
+	}
+	
+	private StringTreeNode getOrCreate(String[] keys) {
+		StringTreeNode node = this;
+		for (String key : keys) {
+			final StringTreeNode parent = node;
+			node = parent.children.computeIfAbsent(key, k -> new StringTreeNode(parent, parent.tokenBoundaryRegex));
+		}
+		return node;
+	}
+	
+	/**
+	 * Split the given string at runs of white space, same as {@link Pattern#split(CharSequence)} with {@code \s+} in
+	 * {@link Pattern#UNICODE_CHARACTER_CLASS} mode.
+	 */
+	private static String[] splitWhitespace(String string) {
+		if (string.isEmpty()) {
+			return new String[]{string};
+		}
+		ArrayList<String> keys = new ArrayList<>(4);
+		int start = 0;
+		for (int i = 0; i <= string.length(); i++) {
+			if (i == string.length() || isWhitespace(string.charAt(i))) {
+				if (i > start || (start == 0 && i < string.length())) {
+					keys.add(string.substring(start, i));
+				}
+				start = i + 1;
 			}
 		}
-		this.children.get(key).insert(stringDeque, value);
+		while (!keys.isEmpty() && keys.get(keys.size() - 1).isEmpty()) {
+			keys.remove(keys.size() - 1);
+		}
+		return keys.toArray(new String[0]);
+	}
+	
+	/**
+	 * The Unicode White_Space property for characters of the Basic Multilingual Plane.
+	 */
+	private static boolean isWhitespace(char c) {
+		return (c >= '\t' && c <= '\r') || c == ' ' || c == '\u0085' || c == '\u00A0' || c == '\u1680'
+				|| (c >= '\u2000' && c <= '\u200A') || c == '\u2028' || c == '\u2029' || c == '\u202F'
+				|| c == '\u205F' || c == '\u3000';
 	}
 	
 	public ImmutablePair<String, Integer> traverse(@Nonnull List<String> fullString) {
@@ -106,6 +234,17 @@ public class StringTreeNode implements ITreeNode {
 		}
 	}
 	
+	/**
+	 * Remove all subtrees without any value, e.g. after values have been removed by
+	 * {@link #insert(String, int, IntBinaryOperator)}.
+	 *
+	 * @return True, if this node or any of its descendants has a value.
+	 */
+	public boolean prune() {
+		this.children.values().removeIf(child -> !child.prune());
+		return this.hasValue() || !this.children.isEmpty();
+	}
+	
 	public int size() {
 		return 1 + this.children.values().stream().mapToInt(StringTreeNode::size).sum();
 	}
@@ -154,4 +293,11 @@ public class StringTreeNode implements ITreeNode {
 	public String getValue() {
 		return value;
 	}
+	
+	/**
+	 * @return The payload of this node or {@link #NO_PAYLOAD}.
+	 */
+	public int getPayload() {
+		return payload;
+	}
 }
@@ -0,0 +1,93 @@
+package org.biofid.gazetteer.tree;
+
+import javax.annotation.Nonnull;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * An immutable mapping of all tokens used as keys in a tree to dense integer IDs.
+ * <p>
+ * Lookups use an open addressing table over the token IDs, so there is no boxing. Tokens that are not part of the
+ * vocabulary are mapped to {@link #UNKNOWN}, which is never a valid key in any tree built with this vocabulary.
+ */
+public class TokenVocabulary implements ITokenVocabulary {
+	
+	private final String[] tokens;
+	/**
+	 * Open addressing table holding {@code id + 1} for each token, {@code 0} marks an empty slot.
+	 */
+	private final int[] table;
+	private final int mask;
+	
+	/**
+	 * Create a vocabulary from unique tokens. The ID of each token is its index in the given array.
+	 *
+	 * @param pTokens An array of unique tokens.
+	 */
+	public TokenVocabulary(@Nonnull String[] pTokens) {
+		tokens = pTokens;
+		int capacity = capacity(tokens.length);
+		table = new int[capacity];
+		mask = capacity - 1;
+		for (int id = 0; id < tokens.length; id++) {
+			int slot = hash(tokens[id]) & mask;
+			while (table[slot] != 0) {
+				if (tokens[table[slot] - 1].equals(tokens[id])) {
+					throw new IllegalArgumentException(String.format("Duplicate token '%s' in vocabulary!", tokens[id]));
+				}
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = id + 1;
+		}
+	}
+	
+	@Override
+	public int getId(String token) {
+		int slot = hash(token) & mask;
+		int entry;
+		while ((entry = table[slot]) != 0) {
+			if (tokens[entry - 1].equals(token)) {
+				return entry - 1;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return UNKNOWN;
+	}
+	
+	@Override
+	public String getToken(int id) {
+		return tokens[id];
+	}
+	
+	@Override
+	public int size() {
+		return tokens.length;
+	}
+	
+	/**
+	 * Write this vocabulary in the layout read by {@link MappedTokenVocabulary}.
+	 *
+	 * @param out The stream to write to.
+	 * @throws IOException If the stream could not be written.
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		MappedStringTable.write(out, tokens);
+		out.writeInt(table.length);
+		for (int entry : table) {
+			out.writeInt(entry);
+		}
+	}
+	
+	/**
+	 * @return The size of the hash table of a vocabulary with the given number of tokens, a power of two at least
+	 * twice as large.
+	 */
+	static int capacity(int size) {
+		return Integer.highestOneBit(Math.max(2, size) * 2 - 1) << 1;
+	}
+	
+	static int hash(String token) {
+		int h = token.hashCode();
+		return h ^ (h >>> 16);
+	}
+}
@@ -1,5 +1,7 @@
 package org.biofid.gazetteer;
 
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
+import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.time.StopWatch;
 import org.apache.uima.UIMAException;
 import org.apache.uima.analysis_engine.AnalysisEngine;
@@ -10,18 +12,39 @@ import org.apache.uima.fit.factory.JCasFactory;
 import org.apache.uima.fit.pipeline.SimplePipeline;
 import org.apache.uima.fit.util.JCasUtil;
 import org.apache.uima.jcas.JCas;
+import org.apache.uima.resource.ResourceInitializationException;
 import org.apache.uima.util.CasIOUtils;
+import org.biofid.gazetteer.models.ExternalModelCompiler;
+import org.biofid.gazetteer.models.MappedTreeGazetteerModel;
+import org.biofid.gazetteer.models.StringGazetteerModel;
+import org.biofid.gazetteer.models.TreeGazetteerModel;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.texttechnologylab.annotation.type.Taxon;
 import org.xml.sax.SAXException;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.fail;
 
 public class TestBIOfidGazetteer {
@@ -87,6 +110,246 @@ public class TestBIOfidGazetteer {
 			fail();
 		}
 	}
+	
+	/**
+	 * Looking up children by their perfect hash must find the same taxa as the binary search. A fan-out of 2 hashes
+	 * the inner nodes as well as the root.
+	 */
+	@Test
+	public void testStringGazetteerPerfectHash() throws UIMAException, IOException {
+		List<String> expected = tag(createEngine());
+		List<String> actual = tag(createEngine(SingleClassTreeGazetteer.PARAM_PERFECT_HASH_FAN_OUT, 2));
+		
+		assertFalse(expected.isEmpty());
+		assertEquals(expected, actual);
+	}
+	
+	/**
+	 * Skipping tokens at query time must find the same taxa as the materialized skip-grams.
+	 */
+	@Test
+	public void testStringGazetteerQuerySkips() throws UIMAException, IOException {
+		for (boolean getAllSkips : new boolean[]{false, true}) {
+			List<String> expected = tag(createEngine(SingleClassTreeGazetteer.PARAM_GET_ALL_SKIPS, getAllSkips));
+			List<String> actual = tag(createEngine(
+					SingleClassTreeGazetteer.PARAM_GET_ALL_SKIPS, getAllSkips,
+					SingleClassTreeGazetteer.PARAM_USE_QUERY_SKIPS, true
+			));
+			
+			assertFalse(expected.isEmpty());
+			assertEquals(expected, actual, String.format("getAllSkips=%b", getAllSkips));
+		}
+	}
+	
+	/**
+	 * Matching abbreviations at query time must find the same taxa as the abbreviated variants added to the model.
+	 */
+	@Test
+	public void testStringGazetteerQueryAbbreviations() throws UIMAException, IOException {
+		for (boolean getAllSkips : new boolean[]{false, true}) {
+			List<String> expected = tag(createEngine(SingleClassTreeGazetteer.PARAM_GET_ALL_SKIPS, getAllSkips));
+			List<String> actual = tag(createEngine(
+					SingleClassTreeGazetteer.PARAM_GET_ALL_SKIPS, getAllSkips,
+					SingleClassTreeGazetteer.PARAM_USE_QUERY_ABBREVIATIONS, true
+			));
+			
+			assertFalse(expected.isEmpty());
+			assertEquals(expected, actual, String.format("getAllSkips=%b", getAllSkips));
+		}
+	}
+	
+	/**
+	 * An abbreviation of two genera that share an epithet is ambiguous and is not tagged, unless it is resolved to a
+	 * genus mentioned before. The abbreviated variants added to the model are never resolved.
+	 */
+	@Test
+	public void testStringGazetteerAmbiguousAbbreviations(@TempDir Path temp) throws UIMAException, IOException {
+		Path source = temp.resolve("taxa.txt");
+		Files.write(source, Arrays.asList(
+				"Picea abies\thttp://example.org/picea-abies",
+				"Pinus abies\thttp://example.org/pinus-abies",
+				"Pinus sylvestris\thttp://example.org/pinus-sylvestris"
+		), StandardCharsets.UTF_8);
+		String text = "Wir sahen P. abies und P. sylvestris , später Pinus neben P. abies am Hang .";
+		List<String> expected = Arrays.asList(
+				"(23, 36): http://example.org/pinus-sylvestris",
+				"(59, 67): http://example.org/pinus-abies"
+		);
+		
+		for (boolean useQuerySkips : new boolean[]{false, true}) {
+			List<String> actual = tagText(createEngine(source,
+					SingleClassTreeGazetteer.PARAM_USE_QUERY_ABBREVIATIONS, true,
+					SingleClassTreeGazetteer.PARAM_USE_QUERY_SKIPS, useQuerySkips
+			), text);
+			assertEquals(expected, actual, String.format("useQuerySkips=%b", useQuerySkips));
+		}
+		assertEquals(expected.subList(0, 1), tagText(createEngine(source), text));
+	}
+	
+	/**
+	 * The Aho-Corasick automaton must select the same non-overlapping matches as the greedy traversal of the tree.
+	 */
+	@Test
+	public void testStringGazetteerAhoCorasick() throws UIMAException, IOException {
+		List<String> expected = tag(createEngine());
+		List<String> actual = tag(createEngine(SingleClassTreeGazetteer.PARAM_USE_AHO_CORASICK, true));
+		
+		assertFalse(expected.isEmpty());
+		assertEquals(expected, actual);
+	}
+	
+	/**
+	 * With overlapping matches, the skip-grams contained in a longer match are annotated as well.
+	 */
+	@Test
+	public void testStringGazetteerAhoCorasickOverlapping(@TempDir Path temp) throws UIMAException, IOException {
+		Path source = temp.resolve("taxa.txt");
+		Files.write(source, Arrays.asList(
+				"Quercus robur\thttp://example.org/quercus-robur",
+				"Quercus robur fastigiata\thttp://example.org/quercus-robur-fastigiata",
+				"Robur fastigiata\thttp://example.org/robur-fastigiata"
+		), StandardCharsets.UTF_8);
+		String text = "Am Hang steht eine Quercus robur fastigiata , die im Herbst blüht .";
+		
+		assertEquals(Collections.singletonList("(19, 43): http://example.org/quercus-robur-fastigiata"),
+				tagText(createEngine(source, SingleClassTreeGazetteer.PARAM_USE_AHO_CORASICK, true), text));
+		assertEquals(Arrays.asList(
+				"(19, 43): http://example.org/quercus-robur-fastigiata",
+				"(19, 32): http://example.org/quercus-robur",
+				"(27, 43): http://example.org/robur-fastigiata"
+		), tagText(createEngine(source,
+				SingleClassTreeGazetteer.PARAM_USE_AHO_CORASICK, true,
+				SingleClassTreeGazetteer.PARAM_OVERLAPPING_MATCHES, true
+		), text));
+	}
+	
+	/**
+	 * Character matching needs no tokens: taxa are matched next to punctuation and across any whitespace, but never
+	 * within a word.
+	 */
+	@Test
+	public void testStringGazetteerCharacterMatching(@TempDir Path temp) throws UIMAException, IOException {
+		Path source = temp.resolve("taxa.txt");
+		Files.write(source, Arrays.asList(
+				"Quercus robur\thttp://example.org/quercus-robur",
+				"Fagus sylvatica\thttp://example.org/fagus-sylvatica"
+		), StandardCharsets.UTF_8);
+		JCas jCas = JCasFactory.createText("Im Wald (Quercus robur) stehen\u00A0Fagus\u00A0sylvatica, aber keine Quercus roburia.", "de");
+		
+		SimplePipeline.runPipeline(jCas, createEngine(source, SingleClassTreeGazetteer.PARAM_USE_CHARACTER_MATCHING, true));
+		
+		assertEquals(Arrays.asList(
+				"(9, 22): http://example.org/quercus-robur",
+				"(31, 46): http://example.org/fagus-sylvatica"
+		), JCasUtil.select(jCas, Taxon.class).stream()
+				.map(taxon -> String.format("(%d, %d): %s", taxon.getBegin(), taxon.getEnd(), taxon.getValue()))
+				.collect(Collectors.toList()));
+	}
+	
+	/**
+	 * A model compiled out of core by {@link ExternalModelCompiler} must find the same taxa as a model built in memory
+	 * and written by {@link MappedTreeGazetteerModel#write}. A heap budget of 1MB makes the compiler spill and merge
+	 * many runs.
+	 */
+	@Test
+	public void testStringGazetteerBuildHeapBudget(@TempDir Path temp) throws UIMAException, IOException {
+		for (boolean useQuerySkips : new boolean[]{false, true}) {
+			List<String> expected = tag(createEngine(
+					SingleClassTreeGazetteer.PARAM_USE_QUERY_SKIPS, useQuerySkips,
+					SingleClassTreeGazetteer.PARAM_MODEL_LOCATION, temp.resolve("written-" + useQuerySkips + ".model").toString()
+			));
+			List<String> actual = tag(createEngine(
+					SingleClassTreeGazetteer.PARAM_USE_QUERY_SKIPS, useQuerySkips,
+					SingleClassTreeGazetteer.PARAM_MODEL_LOCATION, temp.resolve("compiled-" + useQuerySkips + ".model").toString(),
+					SingleClassTreeGazetteer.PARAM_BUILD_HEAP_BUDGET, 1
+			));
+			
+			assertFalse(expected.isEmpty());
+			assertEquals(expected, actual, String.format("useQuerySkips=%b", useQuerySkips));
+		}
+	}
+	
+	/**
+	 * A compiled model must not be opened by an engine with other parameters than those the model was built with.
+	 */
+	@Test
+	public void testModelLocationBuildParameters(@TempDir Path temp) throws UIMAException, IOException {
+		String modelLocation = temp.resolve("taxa.model").toString();
+		assertFalse(tag(createEngine(SingleClassTreeGazetteer.PARAM_MODEL_LOCATION, modelLocation)).isEmpty());
+		
+		assertThrows(ResourceInitializationException.class, () -> createEngine(
+				SingleClassTreeGazetteer.PARAM_MODEL_LOCATION, modelLocation,
+				SingleClassTreeGazetteer.PARAM_GET_ALL_SKIPS, true
+		));
+		assertThrows(ResourceInitializationException.class, () -> AnalysisEngineFactory.createEngine(
+				MultiClassTreeGazetteer.class,
+				MultiClassTreeGazetteer.PARAM_SOURCE_LOCATION, sourceLocation,
+				MultiClassTreeGazetteer.PARAM_CLASS_MAPPING, new String[]{Taxon.class.getName()},
+				MultiClassTreeGazetteer.PARAM_USE_LOWERCASE, true,
+				MultiClassTreeGazetteer.PARAM_MODEL_LOCATION, modelLocation
+		));
+	}
+	
+	/**
+	 * Tagging in parallel chunks must yield exactly the matches of a serial scan. Chunks of a single token put a seam
+	 * inside every match, chunks of 64 tokens leave most matches within a chunk.
+	 */
+	@Test
+	public void testStringGazetteerParallelChunks() throws UIMAException, IOException {
+		for (boolean useQueryMatching : new boolean[]{false, true}) {
+			List<String> expected = tag(createEngine(
+					SingleClassTreeGazetteer.PARAM_USE_QUERY_SKIPS, useQueryMatching,
+					SingleClassTreeGazetteer.PARAM_USE_QUERY_ABBREVIATIONS, useQueryMatching,
+					SingleClassTreeGazetteer.PARAM_PARALLEL_CHUNK_SIZE, 0
+			));
+			assertFalse(expected.isEmpty());
+			for (int chunkSize : new int[]{1, 64}) {
+				List<String> actual = tag(createEngine(
+						SingleClassTreeGazetteer.PARAM_USE_QUERY_SKIPS, useQueryMatching,
+						SingleClassTreeGazetteer.PARAM_USE_QUERY_ABBREVIATIONS, useQueryMatching,
+						SingleClassTreeGazetteer.PARAM_PARALLEL_CHUNK_SIZE, chunkSize,
+						SingleClassTreeGazetteer.PARAM_PARALLEL_MIN_TOKENS, 1
+				));
+				assertEquals(expected, actual, String.format("useQueryMatching=%b, chunkSize=%d", useQueryMatching, chunkSize));
+			}
+		}
+	}
+	
+	/**
+	 * The streamed build of {@link TreeGazetteerModel} must map the same skip-grams to the same taxa as the map-based
+	 * build of {@link StringGazetteerModel}. Skip-grams are compared by their tokens, since strings with the same
+	 * tokens end at the same node of the tree, where a taxon always takes precedence over the skip-grams of others.
+	 */
+	@Test
+	public void testStreamedModelEqualsMapBasedModel() throws IOException {
+		for (boolean getAllSkips : new boolean[]{false, true}) {
+			for (boolean queryTimeSkips : new boolean[]{false, true}) {
+				StringGazetteerModel mapBased = new StringGazetteerModel(new String[]{sourceLocation}, true, "de", 5, getAllSkips, true, true, 3, "\\s+", new HashSet<>(), queryTimeSkips);
+				Map<String, String> lookup = mapBased.getSkipGramTaxonLookup();
+				HashMap<String, String> expected = new HashMap<>();
+				mapBased.getSortedSkipGramSet().stream()
+						.filter(skipGram -> skipGram.equals(lookup.get(skipGram)))
+						.forEach(taxon -> expected.put(getTokens(taxon), taxon));
+				for (String skipGram : mapBased.getSortedSkipGramSet()) {
+					String tokens = getTokens(skipGram);
+					String present = expected.putIfAbsent(tokens, lookup.get(skipGram));
+					if (present != null && !getTokens(present).equals(tokens)) {
+						assertEquals(present, lookup.get(skipGram), String.format("Skip-grams with the tokens '%s' map to different taxa", tokens));
+					}
+				}
+				
+				TreeGazetteerModel streamed = new TreeGazetteerModel(new String[]{sourceLocation}, true, "de", 5, getAllSkips, true, true, 3, "\\s+", new HashSet<>(), queryTimeSkips);
+				HashMap<String, String> actual = new HashMap<>();
+				streamed.getSkipGramTaxonLookup().forEach((skipGram, taxon) -> actual.put(getTokens(skipGram), taxon));
+				
+				assertEquals(expected, actual, String.format("getAllSkips=%b, queryTimeSkips=%b", getAllSkips, queryTimeSkips));
+			}
+		}
+	}
+	
+	private static String getTokens(String skipGram) {
+		return String.join(" ", skipGram.trim().split("\\s+"));
+	}
 
 //	@Test
 //	public void testStringGazetteerV2() {
@@ -147,6 +410,70 @@ public class TestBIOfidGazetteer {
 //		}
 //	}
 	
+	/**
+	 * Create a {@link SingleClassTreeGazetteer} for the test taxa, which lower cases and does not use lemmata.
+	 *
+	 * @param parameters Additional parameters and their values.
+	 * @return A new engine.
+	 */
+	private AnalysisEngine createEngine(Object... parameters) throws ResourceInitializationException {
+		return createEngine(Paths.get(sourceLocation), parameters);
+	}
+	
+	/**
+	 * Like {@link #createEngine(Object...)}, but for the taxa in the given file.
+	 */
+	private AnalysisEngine createEngine(Path source, Object... parameters) throws ResourceInitializationException {
+		return AnalysisEngineFactory.createEngine(SingleClassTreeGazetteer.class, ArrayUtils.addAll(new Object[]{
+				SingleClassTreeGazetteer.PARAM_SOURCE_LOCATION, source.toString(),
+				SingleClassTreeGazetteer.PARAM_TAGGING_TYPE_NAME, Taxon.class.getName(),
+				SingleClassTreeGazetteer.PARAM_USE_LOWERCASE, true,
+				SingleClassTreeGazetteer.PARAM_USE_LEMMATA, false
+		}, parameters));
+	}
+	
+	/**
+	 * Tag the test documents with the given engine.
+	 *
+	 * @return The offsets and value of each taxon, in order of the documents and their annotation index.
+	 */
+	private List<String> tag(AnalysisEngine gazetterEngine) throws UIMAException, IOException {
+		ArrayList<String> taxa = new ArrayList<>();
+		for (String fname : Arrays.asList("src/test/resources/9031034.xmi", "src/test/resources/4058393.xmi")) {
+			JCas jCas = JCasFactory.createJCas();
+			CasIOUtils.load(Files.newInputStream(new File(fname).toPath()), null, jCas.getCas(), true);
+			jCas.removeAllIncludingSubtypes(Taxon.type);
+			
+			SimplePipeline.runPipeline(jCas, gazetterEngine);
+			
+			for (Taxon taxon : JCasUtil.select(jCas, Taxon.class)) {
+				taxa.add(String.format("%s@(%d, %d): %s", fname, taxon.getBegin(), taxon.getEnd(), taxon.getValue()));
+			}
+		}
+		return taxa;
+	}
+	
+	/**
+	 * Tag a text with the given engine, taking each run of non-whitespace characters as a token.
+	 *
+	 * @return The offsets and value of each taxon, in order of the annotation index.
+	 */
+	private List<String> tagText(AnalysisEngine gazetterEngine, String text) throws UIMAException {
+		JCas jCas = JCasFactory.createText(text, "de");
+		Matcher matcher = Pattern.compile("\\S+").matcher(text);
+		while (matcher.find()) {
+			new Token(jCas, matcher.start(), matcher.end()).addToIndexes();
+		}
+		
+		SimplePipeline.runPipeline(jCas, gazetterEngine);
+		
+		ArrayList<String> taxa = new ArrayList<>();
+		for (Taxon taxon : JCasUtil.select(jCas, Taxon.class)) {
+			taxa.add(String.format("(%d, %d): %s", taxon.getBegin(), taxon.getEnd(), taxon.getValue()));
+		}
+		return taxa;
+	}
+	
 	private void runTest(AnalysisEngine gazetterEngine) throws UIMAException {
 		for (String fname : Arrays.asList("src/test/resources/9031034.xmi", "src/test/resources/4058393.xmi")) {
 			try {
@@ -187,5 +514,5 @@ public class TestBIOfidGazetteer {
 //			e.printStackTrace();
 //		}
 	}
-	
+
 }
@@ -0,0 +1,177 @@
+package org.biofid.gazetteer.run;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Claims, progress and locks of a {@link ShardManifest} over five empty documents in shards of two.
+ */
+public class TestShardManifest {
+	
+	private static final long LOCK_TIMEOUT = 60_000;
+	
+	@TempDir
+	Path temp;
+	
+	private Path createInput() throws IOException {
+		Path input = temp.resolve("input");
+		Files.createDirectories(input.resolve("sub"));
+		for (String document : new String[]{"a.xmi", "b.xmi", "c.xmi", "sub/d.xmi", "sub/e.xmi"}) {
+			Files.createFile(input.resolve(document));
+		}
+		Files.createFile(input.resolve("notes.txt"));
+		return input;
+	}
+	
+	private ShardManifest open(Path input) throws IOException, InterruptedException {
+		return new ShardManifest(temp.resolve("manifest"), input, 2, LOCK_TIMEOUT);
+	}
+	
+	@Test
+	public void claimReleaseAndDone() throws IOException, InterruptedException {
+		Path input = createInput();
+		Path manifestDirectory = temp.resolve("manifest");
+		try (ShardManifest first = open(input); ShardManifest second = open(input)) {
+			assertEquals(3, first.size());
+			assertEquals(3, second.size());
+			
+			ShardManifest.Shard shard = first.claimNext();
+			assertEquals(0, shard.getId());
+			assertEquals(Arrays.asList("a.xmi", "b.xmi"), shard.getDocuments());
+			assertTrue(Files.exists(manifestDirectory.resolve("shard-00000.lock")));
+			
+			// The first shard is locked by a live process
+			ShardManifest.Shard other = second.claimNext();
+			assertEquals(1, other.getId());
+			assertEquals(Arrays.asList("c.xmi", "sub/d.xmi"), other.getDocuments());
+			
+			shard.release(true);
+			assertTrue(Files.exists(manifestDirectory.resolve("shard-00000.done")));
+			assertFalse(Files.exists(manifestDirectory.resolve("shard-00000.lock")));
+			
+			other.release(false);
+			assertFalse(Files.exists(manifestDirectory.resolve("shard-00001.done")));
+			assertFalse(Files.exists(manifestDirectory.resolve("shard-00001.lock")));
+		}
+		
+		try (ShardManifest manifest = open(input)) {
+			// Done shards are skipped, released shards are claimed again
+			assertEquals(1, manifest.claimNext().getId());
+			assertEquals(2, manifest.claimNext().getId());
+			assertNull(manifest.claimNext());
+		}
+	}
+	
+	@Test
+	public void resumeSkipsFinishedDocuments() throws IOException, InterruptedException {
+		Path input = createInput();
+		try (ShardManifest manifest = open(input)) {
+			ShardManifest.Shard shard = manifest.claimNext();
+			shard.finished("a.xmi");
+		}
+		
+		try (ShardManifest manifest = open(input)) {
+			ShardManifest.Shard shard = manifest.claimNext();
+			assertEquals(0, shard.getId());
+			assertEquals(Collections.singletonList("b.xmi"), shard.getDocuments());
+			shard.finished("b.xmi");
+			shard.release(true);
+		}
+		
+		assertEquals(Arrays.asList("a.xmi", "b.xmi"), readProgress(0));
+	}
+	
+	@Test
+	public void resumeAfterCutOffProgressLine() throws IOException, InterruptedException {
+		Path input = createInput();
+		try (ShardManifest manifest = open(input)) {
+			assertEquals(3, manifest.size());
+		}
+		// A crash while writing the second line
+		Files.write(temp.resolve("manifest/shard-00000.progress"), "a.xmi\nb.x".getBytes(StandardCharsets.UTF_8));
+		
+		try (ShardManifest manifest = open(input)) {
+			ShardManifest.Shard shard = manifest.claimNext();
+			assertEquals(Collections.singletonList("b.xmi"), shard.getDocuments());
+			shard.finished("b.xmi");
+		}
+		
+		assertEquals(Arrays.asList("a.xmi", "b.x", "b.xmi"), readProgress(0));
+	}
+	
+	@Test
+	public void takeOverStaleLock() throws IOException, InterruptedException {
+		Path input = createInput();
+		try (ShardManifest manifest = open(input)) {
+			assertEquals(3, manifest.size());
+		}
+		Path stale = temp.resolve("manifest/shard-00000.lock");
+		Files.write(stale, "crashed".getBytes(StandardCharsets.UTF_8));
+		Files.setLastModifiedTime(stale, FileTime.fromMillis(System.currentTimeMillis() - 2 * LOCK_TIMEOUT));
+		Path live = temp.resolve("manifest/shard-00001.lock");
+		Files.write(live, "running".getBytes(StandardCharsets.UTF_8));
+		
+		try (ShardManifest manifest = open(input)) {
+			ShardManifest.Shard shard = manifest.claimNext();
+			assertEquals(0, shard.getId());
+			assertNotEquals("crashed", new String(Files.readAllBytes(stale), StandardCharsets.UTF_8));
+			
+			// The lock of the second shard is fresh and is left alone
+			assertEquals(2, manifest.claimNext().getId());
+			assertEquals("running", new String(Files.readAllBytes(live), StandardCharsets.UTF_8));
+			assertNull(manifest.claimNext());
+		}
+		
+		assertFalse(Files.exists(stale));
+		assertTrue(Files.exists(live));
+		// The stale lock was moved away and deleted
+		try (Stream<Path> files = Files.list(temp.resolve("manifest"))) {
+			assertEquals(0, files.filter(file -> file.getFileName().toString().contains(".lock.")).count());
+		}
+	}
+	
+	@Test
+	public void lostLockIsLeftAlone() throws IOException, InterruptedException {
+		Path input = createInput();
+		Path lock = temp.resolve("manifest/shard-00000.lock");
+		try (ShardManifest manifest = new ShardManifest(temp.resolve("manifest"), input, 2, 200)) {
+			ShardManifest.Shard shard = manifest.claimNext();
+			assertTrue(shard.isClaimed());
+			
+			// Another process takes the lock over, e.g. after this one stalled for longer than the lock timeout
+			Files.write(lock, "other".getBytes(StandardCharsets.UTF_8));
+			long deadline = System.currentTimeMillis() + 10_000;
+			while (shard.isClaimed() && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertFalse(shard.isClaimed());
+			
+			// The heartbeat no longer touches the lock
+			Files.setLastModifiedTime(lock, FileTime.fromMillis(System.currentTimeMillis() - LOCK_TIMEOUT));
+			FileTime modified = Files.getLastModifiedTime(lock);
+			Thread.sleep(500);
+			assertEquals(modified, Files.getLastModifiedTime(lock));
+			
+			shard.release(true);
+		}
+		
+		assertFalse(Files.exists(temp.resolve("manifest/shard-00000.done")));
+		assertEquals("other", new String(Files.readAllBytes(lock), StandardCharsets.UTF_8));
+	}
+	
+	private List<String> readProgress(int shard) throws IOException {
+		return Files.readAllLines(temp.resolve(String.format("manifest/shard-%05d.progress", shard)), StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,141 @@
+package org.biofid.gazetteer.tree;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Microbenchmark of the child lookup in a node with 100, 1,000 and 100,000 children: {@link PerfectHashChildIndex}
+ * against the binary search of {@link ArrayTreeNode#searchChild(int, int, int)} and a {@link HashMap}. Keys and queries
+ * are drawn with a fixed seed and half of the queries are hits, so runs are reproducible. The best of several rounds
+ * is reported for each method.
+ * <p>
+ * Tagged {@code benchmark}, which the unit test run excludes, see the {@code excludedTestGroups} property in the POM.
+ */
+public class TestPerfectHashChildIndex {
+	
+	private static final int QUERY_COUNT = 1 << 20;
+	private static final int ROUNDS = 5;
+	private static final int KEY_RANGE = 10_000_000;
+	
+	@Test
+	@Tag("benchmark")
+	public void benchmarkChildLookup() {
+		Random random = new Random(1);
+		System.out.println("children\tperfect hash\tbinary search\tHashMap (ns per lookup)");
+		for (int fanOut : new int[]{100, 1_000, 100_000}) {
+			StarTree tree = new StarTree(random, fanOut);
+			int start = tree.childStart(0);
+			int end = tree.childStart(1);
+			PerfectHashChildIndex index = new PerfectHashChildIndex(tree, 2);
+			HashMap<Integer, Integer> map = new HashMap<>();
+			for (int child = start; child < end; child++) {
+				map.put(tree.nodeKey(child), child);
+			}
+			int[] queries = new int[QUERY_COUNT];
+			for (int i = 0; i < queries.length; i++) {
+				queries[i] = i % 2 == 0 ? tree.nodeKey(start + random.nextInt(fanOut)) : random.nextInt(KEY_RANGE) + 1;
+			}
+			
+			long[] best = {Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE};
+			for (int round = 0; round < ROUNDS; round++) {
+				long startTime = System.nanoTime();
+				long hashSum = 0;
+				for (int key : queries) {
+					hashSum += index.getChild(0, start, end, key);
+				}
+				best[0] = Math.min(best[0], System.nanoTime() - startTime);
+				
+				startTime = System.nanoTime();
+				long searchSum = 0;
+				for (int key : queries) {
+					searchSum += tree.searchChild(start, end, key);
+				}
+				best[1] = Math.min(best[1], System.nanoTime() - startTime);
+				
+				startTime = System.nanoTime();
+				long mapSum = 0;
+				for (int key : queries) {
+					Integer child = map.get(key);
+					mapSum += child == null ? -1 : child;
+				}
+				best[2] = Math.min(best[2], System.nanoTime() - startTime);
+				
+				assertEquals(searchSum, hashSum);
+				assertEquals(searchSum, mapSum);
+			}
+			System.out.printf("%d\t%.1f\t%.1f\t%.1f\n", fanOut,
+					best[0] / (double) QUERY_COUNT, best[1] / (double) QUERY_COUNT, best[2] / (double) QUERY_COUNT);
+		}
+	}
+	
+	/**
+	 * A root with the given number of children with random, sorted keys.
+	 */
+	private static class StarTree extends ArrayTreeNode {
+		
+		private final int[] keys;
+		
+		StarTree(Random random, int fanOut) {
+			TreeSet<Integer> sortedKeys = new TreeSet<>();
+			while (sortedKeys.size() < fanOut) {
+				sortedKeys.add(random.nextInt(KEY_RANGE) + 1);
+			}
+			keys = new int[fanOut + 1];
+			int node = 1;
+			for (int key : sortedKeys) {
+				keys[node++] = key;
+			}
+		}
+		
+		@Override
+		protected int childStart(int node) {
+			return node == 0 ? 1 : keys.length;
+		}
+		
+		@Override
+		protected int nodeKey(int node) {
+			return keys[node];
+		}
+		
+		@Override
+		protected int valueIndex(int node) {
+			return -1;
+		}
+		
+		@Override
+		public String getValue(int index) {
+			throw new IndexOutOfBoundsException();
+		}
+		
+		@Override
+		public int getValueIndex(String value) {
+			return -1;
+		}
+		
+		@Override
+		public int size() {
+			return keys.length;
+		}
+		
+		@Override
+		public int nodesWithValue() {
+			return 0;
+		}
+		
+		@Override
+		public int depth() {
+			return 1;
+		}
+		
+		@Override
+		public ITokenVocabulary getVocabulary() {
+			return null;
+		}
+	}
+}